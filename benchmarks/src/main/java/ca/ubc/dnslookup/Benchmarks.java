@@ -0,0 +1,28 @@
+package ca.ubc.dnslookup;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, which adds the allocation rate and the bytes
+ * allocated per operation (gc.alloc.rate.norm) to the results of every benchmark. Takes the
+ * same arguments as the JMH runner, e.g. to run the decoder benchmarks only, with results in
+ * JSON:
+ *
+ *     java -jar benchmarks/target/benchmarks.jar Decoder -rf json -rff decoder.json
+ */
+public class Benchmarks {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        Runner runner = new Runner(new OptionsBuilder().parent(options).addProfiler(GCProfiler.class).build());
+        if (options.shouldHelp())
+            options.showHelp();
+        else if (options.shouldList())
+            runner.list();
+        else
+            runner.run();
+    }
+}
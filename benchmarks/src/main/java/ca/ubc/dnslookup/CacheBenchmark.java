@@ -0,0 +1,95 @@
+package ca.ubc.dnslookup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures DNSCache reads, writes and expiration under contention, with 1, 4 and 16 threads
+ * (see the nested classes). The cache holds NODES nodes when each iteration starts:
+ * <ul>
+ * <li>getHit reads nodes that are cached, getMiss nodes that are not;</li>
+ * <li>add replaces the record of a random node, in a cache bounded to NODES records, so
+ * every other write of a new name evicts one;</li>
+ * <li>addExpiring adds records with a TTL of one second to a cache without bound, so after
+ * the first second the timing wheel reclaims as many nodes as are written.</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class CacheBenchmark {
+
+    static final int NODES = 100_000;
+
+    @State(Scope.Benchmark)
+    public static class Caches {
+
+        DNSNode[] nodes;
+        DNSNode[] missing;
+        DNSCache cache;
+        DNSCache bounded;
+        DNSCache expiring;
+
+        @Setup(Level.Iteration)
+        public void setUp() throws UnknownHostException {
+            nodes = new DNSNode[NODES];
+            missing = new DNSNode[NODES];
+            cache = new DNSCache();
+            bounded = DNSCache.withMaximumRecords(NODES);
+            expiring = new DNSCache();
+            for (int i = 0; i < NODES; i++) {
+                String name = "host" + i + ".example.com";
+                nodes[i] = new DNSNode(name, RecordType.A);
+                missing[i] = new DNSNode("missing" + i + ".example.com", RecordType.A);
+                ResourceRecord record = new ResourceRecord(name, RecordType.A, 3600,
+                        InetAddress.getByAddress(new byte[] { 10, (byte) (i >> 16), (byte) (i >> 8), (byte) i }));
+                cache.addResult(record);
+                bounded.addResult(record);
+            }
+        }
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> getHit(Caches caches) {
+        return caches.cache.getCachedResults(caches.nodes[ThreadLocalRandom.current().nextInt(NODES)]);
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> getMiss(Caches caches) {
+        return caches.cache.getCachedResults(caches.missing[ThreadLocalRandom.current().nextInt(NODES)]);
+    }
+
+    @Benchmark
+    public void add(Caches caches) throws UnknownHostException {
+        int i = ThreadLocalRandom.current().nextInt(2 * NODES);
+        String name = (i < NODES ? "host" : "new") + i + ".example.com";
+        caches.bounded.addResult(new ResourceRecord(name, RecordType.A, 3600,
+                InetAddress.getByAddress(new byte[] { 10, (byte) (i >> 16), (byte) (i >> 8), (byte) i })));
+    }
+
+    @Benchmark
+    public void addExpiring(Caches caches) {
+        int i = ThreadLocalRandom.current().nextInt(NODES);
+        caches.expiring.addResult(new ResourceRecord("expiring" + i + ".example.com", RecordType.CNAME, 1,
+                "www.example.com"));
+    }
+
+    @Threads(1)
+    public static class OneThread extends CacheBenchmark {
+    }
+
+    @Threads(4)
+    public static class FourThreads extends CacheBenchmark {
+    }
+
+    @Threads(16)
+    public static class SixteenThreads extends CacheBenchmark {
+    }
+}
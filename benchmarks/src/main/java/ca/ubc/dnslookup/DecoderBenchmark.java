@@ -0,0 +1,357 @@
+package ca.ubc.dnslookup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static test.HexDumps.*;
+
+/**
+ * Measures decodeAndCacheResponse and the flyweight parser alone on the recorded responses of
+ * the tests, and on larger synthetic responses: a long answer section, and a referral with
+ * many name servers and their glue. The decoder they replaced is measured for comparison.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecoderBenchmark {
+
+    @Param({ "stanford-cname-chain", "edu-referral", "google-mx", "answers-64", "referral-13" })
+    public String response;
+
+    private DNSCache cache;
+    private DNSResponseParser parser;
+    private DNSResponseParser.Visitor countingVisitor;
+    private ByteBuffer exact;
+
+    @Setup
+    public void setUp() {
+        byte[] raw;
+        switch (response) {
+            case "answers-64": raw = syntheticResponse(64, 0); break;
+            case "referral-13": raw = syntheticResponse(0, 13); break;
+            default: raw = recordedResponse(response);
+        }
+        cache = new DNSCache();
+        parser = new DNSResponseParser();
+        countingVisitor = (p, section) -> { };
+        exact = ByteBuffer.wrap(raw);
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> decodeAndCacheResponse() throws Exception {
+        return DNSQueryHandler.decodeAndCacheResponse(0, exact, cache);
+    }
+
+    @Benchmark
+    public void flyweightVisitOnly() throws Exception {
+        parser.parse(exact, countingVisitor);
+    }
+
+    /** Measures the original decoder, on the recorded responses only: it does not follow the
+     * compression pointers of the synthetic ones.
+     */
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(1)
+    @State(Scope.Thread)
+    public static class Original {
+
+        @Param({ "stanford-cname-chain", "edu-referral", "google-mx" })
+        public String response;
+
+        private DNSCache cache;
+        private ByteBuffer padded;
+
+        @Setup
+        public void setUp() {
+            cache = new DNSCache();
+            // The original decoder reads the response as a whole receive buffer
+            padded = ByteBuffer.wrap(Arrays.copyOf(recordedResponse(response), 65508));
+        }
+
+        @Benchmark
+        public Set<ResourceRecord> original() throws Exception {
+            return LegacyDecoder.decodeAndCacheResponse(0, padded, cache);
+        }
+    }
+
+    static byte[] recordedResponse(String name) {
+        switch (name) {
+            case "stanford-cname-chain": return fromHexString(STANFORD_EDU_RAW_RESPONSE);
+            case "edu-referral": return fromHexString(STANFORD_NS_RAW_RESPONSE);
+            case "google-mx": return fromHexString(GOOGLE_MX_RAW_RESPONSE);
+            default: throw new IllegalArgumentException("Unknown response " + name);
+        }
+    }
+
+    private static byte[] fromHexString(String packet) {
+        packet = packet.replaceAll("\\s+", "");
+        byte[] data = new byte[packet.length() / 2];
+        for (int i = 0; i < packet.length(); i += 2)
+            data[i / 2] = (byte) ((Character.digit(packet.charAt(i), 16) << 4) + Character.digit(packet.charAt(i + 1), 16));
+        return data;
+    }
+
+    /** Builds a response to www.example.com A, with the specified number of A records in its
+     * answer section, or a referral to the specified number of example.com name servers, each
+     * with an A record in the additional section. Names are compressed as a server would.
+     */
+    static byte[] syntheticResponse(int answers, int nameservers) {
+        ByteBuffer buffer = ByteBuffer.allocate(65508);
+        buffer.putShort((short) 0).putShort((short) (answers > 0 ? 0x8580 : 0x8000))
+                .putShort((short) 1).putShort((short) answers)
+                .putShort((short) nameservers).putShort((short) nameservers);
+        writeLabels(buffer, "www.example.com");
+        buffer.put((byte) 0).putShort((short) 1).putShort((short) 1);
+        final short question = (short) 0xc00c;
+        final short zone = (short) 0xc010; // example.com, after the www label of the question
+        for (int i = 0; i < answers; i++) {
+            buffer.putShort(question).putShort((short) 1).putShort((short) 1).putInt(300).putShort((short) 4)
+                    .put((byte) 10).put((byte) 0).put((byte) (i >> 8)).put((byte) i);
+        }
+        int[] nameserverOffsets = new int[nameservers];
+        for (int i = 0; i < nameservers; i++) {
+            String label = "ns" + i;
+            buffer.putShort(zone).putShort((short) 2).putShort((short) 1).putInt(172800)
+                    .putShort((short) (label.length() + 3));
+            nameserverOffsets[i] = buffer.position();
+            writeLabels(buffer, label);
+            buffer.putShort(zone);
+        }
+        for (int i = 0; i < nameservers; i++) {
+            buffer.putShort((short) (0xc000 | nameserverOffsets[i])).putShort((short) 1).putShort((short) 1)
+                    .putInt(172800).putShort((short) 4)
+                    .put((byte) 192).put((byte) 0).put((byte) 2).put((byte) i);
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static void writeLabels(ByteBuffer buffer, String name) {
+        for (String label : name.split("\\.")) {
+            buffer.put((byte) label.length()).put(label.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * The response decoder as it was before the flyweight parser, kept for comparison.
+     */
+    static class LegacyDecoder {
+
+        static Set<ResourceRecord> decodeAndCacheResponse(int transactionID, ByteBuffer responseBuffer,
+                                                                 DNSCache cache) throws IOException {
+            byte[] response = responseBuffer.array();
+            int replyCode = getReplyCode(response);
+            boolean isAuthoritative = isAuthoritative(response);
+            if (replyCode != 0) {
+                throw new IOException("Response RCODE: " + replyCode);
+            }
+            int numAnswers = getNumAnswers(response);
+            int numAuthority = getNumAuthority(response);
+            int numAdditional = getNumAdditional(response);
+            int numberOfRecords = numAnswers + numAdditional + numAuthority;
+            if (numberOfRecords == 0) {
+                throw new IOException("No records in server response");
+            }
+            int answerIndex = getAnswerIndex(response);
+
+            // TODO: Add the appropriate resource records and verbose print
+
+            List<ResourceRecord> additional = new ArrayList<>();
+            List<ResourceRecord> nameservers = new ArrayList<>();
+            List<ResourceRecord> answers = new ArrayList<>();
+
+            // Get Query DNSNode
+            // DNSNode dnsNode = getQueryDnsNode(response, nameIndex);
+            Set<ResourceRecord> recordSet = new HashSet<>();
+            for (int i = 0; i < numberOfRecords; i++) {
+                String hostName = parseName(response, answerIndex);
+                while (response[answerIndex] != 0) {
+                    answerIndex++;
+                }
+                if (response[answerIndex + 2] != 0 || response[answerIndex + 3] != 1) {
+                    answerIndex++;
+                }
+                RecordType recordType = getResponseType(response, answerIndex);
+                long ttl = getTTL(response, answerIndex);
+                int dataLength = getDataLength(response, answerIndex);
+
+                // If record type is other skip the record. TODO: Make sure that is correct
+                ResourceRecord resourceRecord = null;
+                if (recordType == RecordType.CNAME || recordType == RecordType.NS || recordType == RecordType.SOA) {
+                    String name = parseName(response, answerIndex + 10);
+                    resourceRecord = new ResourceRecord(hostName, recordType, ttl, name);
+                    cache.addResult(resourceRecord);
+                    if (recordType == RecordType.NS) {
+                        recordSet.add(resourceRecord);
+                    }
+                } else if (recordType == RecordType.MX) {
+                    String mxName = parseName(response, answerIndex + 12);
+                    resourceRecord = new ResourceRecord(hostName, recordType, ttl, mxName);
+                    cache.addResult(resourceRecord);
+                } else if (recordType == RecordType.AAAA){
+                    InetAddress ip = getIpv6Address(response, answerIndex);
+                    resourceRecord = new ResourceRecord(hostName, recordType, ttl, ip);
+                    cache.addResult(resourceRecord);
+                } else if (recordType == RecordType.A) {
+                    InetAddress ip = getIpv4Address(response, answerIndex);
+                    resourceRecord = new ResourceRecord(hostName, recordType, ttl, ip);
+                    cache.addResult(resourceRecord);
+                }
+
+                if (i < numAnswers) {
+                    answers.add(resourceRecord);
+                } else if (i < numAnswers + numAuthority) {
+                    nameservers.add(resourceRecord);
+                } else {
+                    additional.add(resourceRecord);
+                }
+                // advance index to next answer
+                answerIndex += dataLength + 10;
+            }
+
+            if (isAuthoritative && numAnswers == 0) {
+                throw new IOException("No answer found in authoritative in response");
+            }
+
+            return recordSet;
+        }
+
+        private static int getReplyCode(byte[] response) {
+            byte[] code = new byte[]{response[2], response[3]};
+            return 0b0000000000001111 & ByteBuffer.wrap(code).getShort();
+        }
+
+        private static boolean isAuthoritative(byte[] response) {
+            return (0b00000100 & response[2]) == 0b00000100;
+        }
+
+        private static int getNumberOfRecords(byte[] response) {
+            int records = 0;
+            for (int i = 6; i < 12; i+=2) {
+                byte[] bytes = new byte[] {response[i], response[i+1]};
+                records += ByteBuffer.wrap(bytes).getShort();
+            }
+            return records;
+        }
+
+        private static int getNumAnswers(byte[] response) {
+            byte[] bytes = new byte[] {response[6], response[7] };
+            return ByteBuffer.wrap(bytes).getShort();
+        }
+
+        private static int getNumAuthority(byte[] response) {
+            byte[] bytes = new byte[] {response[8], response[9]};
+            return ByteBuffer.wrap(bytes).getShort();
+        }
+
+        private static int getNumAdditional(byte[] response) {
+            byte[] bytes = new byte[] {response[10], response[11]};
+            return ByteBuffer.wrap(bytes).getShort();
+        }
+
+        private static String getHostName(byte[] response, int answerIndex) throws IOException {
+            byte bitmask = 0b00111111;
+            byte[] nameLocation = new byte[]{(byte) (bitmask & response[answerIndex]), response[answerIndex + 1]};
+            int hostIndex = ByteBuffer.wrap(nameLocation).getShort();
+            return parseName(response, hostIndex);
+        }
+
+        private static RecordType getResponseType(byte[] response, int answerIndex) {
+            byte[] type = new byte[] {response[answerIndex], response[answerIndex + 1]};
+            return RecordType.getByCode(ByteBuffer.wrap(type).getShort());
+        }
+
+        private static int getDataLength(byte[] response, int answerIndex) {
+            byte[] length = new byte[] {response[answerIndex + 8], response[answerIndex + 9]};
+            return ByteBuffer.wrap(length).getShort();
+        }
+
+        private static InetAddress getIpv4Address(byte[] response, int answerIndex) throws UnknownHostException {
+            byte[] ipBytes = new byte[4];
+            System.arraycopy(response, answerIndex + 10, ipBytes, 0, 4);
+            return InetAddress.getByAddress(ipBytes);
+        }
+
+        private static InetAddress getIpv6Address(byte[] response, int answerIndex) throws UnknownHostException {
+            byte[] ipBytes = new byte[16];
+            System.arraycopy(response, answerIndex + 10, ipBytes, 0, 16);
+            return InetAddress.getByAddress(ipBytes);
+        }
+
+        private static int getQDCount(byte[] response) {
+            byte[] qdCount = new byte[2];
+            qdCount[0] = response[4];
+            qdCount[1] = response[5];
+            return ByteBuffer.wrap(qdCount).getShort();
+        }
+
+        private static int getAnswerIndex(byte[] response) {
+            int qIndex = 12;
+            for (int i = getQDCount(response); i > 0; i--) {
+                while (!isEndOfQuery(response, qIndex)) {
+                    qIndex++;
+                }
+                qIndex += 4;
+            }
+            return qIndex;
+        }
+
+        private static String parseName(byte[] response, int nameIndex) throws IOException {
+            if (response[nameIndex] == (byte) 0xc0) {
+                return getHostName(response, nameIndex);
+            }
+            byte[] nameBytes = new byte[512];
+            int sectionSize = response[nameIndex];
+            int nameByteIndex = 0;
+            int responseIndex = nameIndex + 1;
+            while(sectionSize > 0) {
+                for (int i = 0; i < sectionSize; i++) {
+                    nameBytes[nameByteIndex++] = response[responseIndex++];
+                }
+                nameBytes[nameByteIndex++] = 0x2e;
+                sectionSize = 0x000000FF & response[responseIndex++];
+                if (sectionSize == 0xc0) {
+                    byte[] trimmedBytes = Arrays.copyOfRange(nameBytes, 0, nameByteIndex);
+                    return (new String(trimmedBytes, StandardCharsets.UTF_8)) + getHostName(response, responseIndex - 1);
+                }
+            }
+            nameBytes[nameByteIndex - 1] = 0;
+            return (new String(nameBytes, StandardCharsets.UTF_8)).trim();
+        }
+
+        private static long getTTL(byte[] response, int answerIndex) {
+            byte[] ttlBytes = new byte[4];
+            for (int i = answerIndex + 4, k = 0; i < answerIndex + 8; i++, k++) {
+                ttlBytes[k] = response[i];
+            }
+            return ByteBuffer.wrap(ttlBytes).getInt();
+        }
+
+        private static boolean isEndOfQuery(byte[] response, int index) {
+            return isValidType(response, index) && isValidClass(response, index + 2);
+        }
+
+        private static boolean isValidType(byte[] response, int index) {
+            byte first = response[index];
+            byte second = response[index + 1];
+            return first == 0 && (second == 1 || second == 5 || second == 6 || second == 15 || second == 28);
+        }
+
+        private static boolean isValidClass(byte[] response, int index) {
+            return response[index] == 0 && response[index + 1] == 1;
+        }
+
+    }
+}
@@ -0,0 +1,38 @@
+package ca.ubc.dnslookup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the encoding of a query (addHeader and newQueryWithQuestion), the way the resolver
+ * encodes every query it sends, into a new 512-byte message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncoderBenchmark {
+
+    @Param({ "www.cs.ubc.ca", "cluster96-elbwpeel-1kaykhn9v2d28-2075739460.us-east-1.elb.amazonaws.com" })
+    public String hostName;
+
+    private DNSNode node;
+    private InetAddress server;
+    private int id;
+
+    @Setup
+    public void setUp() throws UnknownHostException {
+        node = new DNSNode(hostName, RecordType.A);
+        server = InetAddress.getByName("198.162.35.1");
+    }
+
+    @Benchmark
+    public byte[] encodeQuery() {
+        return DNSQueryHandler.encodeQuery(new byte[512], id++ & 0xFFFF, node, server);
+    }
+}
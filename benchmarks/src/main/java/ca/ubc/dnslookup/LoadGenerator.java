@@ -0,0 +1,384 @@
+package ca.ubc.dnslookup;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+import test.FakeDnsHierarchy;
+import test.FakeDnsServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator for the resolver, in the manner of dnsperf. Lookups are started at
+ * a fixed rate whether or not earlier ones have completed, and the latency of each is
+ * measured from the time it was due to start, so a resolver falling behind shows in the
+ * latencies rather than lowering the load (no coordinated omission).
+ *
+ * Host names are either replayed from a query log, in the format of batch lookups (a name
+ * and an optional type per line), or drawn from a Zipf distribution over a synthetic name
+ * set, so a few names are very popular and most are rare. Lookups go through DNSResolver,
+ * as with DNSLookupService, either to a real root server or to a simulated hierarchy
+ * (FakeDnsHierarchy) started in this process, in which every synthetic name exists.
+ *
+ * Progress is printed every second. At the end, the achieved rate, the cache hit ratio (the
+ * fraction of lookups answered from the cache alone) and the latency percentiles are
+ * printed, and saved in three files so runs can be compared over time:
+ * <ul>
+ * <li>prefix.json, a summary of the run with its settings;</li>
+ * <li>prefix.hgrm, the latency percentile distribution, in milliseconds, as printed by
+ * HdrHistogram (and read by its plotter);</li>
+ * <li>prefix.hlog, a histogram log of one-second intervals, in nanoseconds.</li>
+ * </ul>
+ * Usage:
+ *
+ *     java -cp benchmarks/target/benchmarks.jar ca.ubc.dnslookup.LoadGenerator [options]
+ *
+ *     -qps n            lookups started per second (1000)
+ *     -duration s       length of the run, in seconds (30)
+ *     -log file         replay host names from a query log, repeating it as needed
+ *     -names n          number of synthetic names (10000)
+ *     -zipf exponent    exponent of the Zipf distribution (1.0)
+ *     -ttl s            TTL of the synthetic names in the simulated hierarchy (300)
+ *     -root address     root server to query, instead of the simulated hierarchy
+ *     -port n           port of the root server (53)
+ *     -latency min:max  latency of the simulated servers, in milliseconds (0:0)
+ *     -loss rate        fraction of queries lost by the simulated servers (0)
+ *     -seed n           seed of the name distribution and of the simulated faults (1)
+ *     -out prefix       path prefix of the result files (loadgen-date-time)
+ */
+public class LoadGenerator {
+
+    private static final String SYNTHETIC_DOMAIN = "example.com";
+    private static final String SYNTHETIC_SERVER = "127.0.0.4";
+
+    private final DNSResolver resolver;
+    private final NameSource names;
+    private final double qps;
+    private final long durationNanos;
+
+    private final Recorder recorder = new Recorder(3);
+    private final Histogram total = new Histogram(3);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private long elapsedNanos;
+
+    /** Source of the host names looked up. */
+    interface NameSource {
+        DNSNode next();
+    }
+
+    /**
+     * Creates a load generator.
+     *
+     * @param resolver        Resolver performing the lookups.
+     * @param names           Source of the host names looked up.
+     * @param qps             Number of lookups started per second.
+     * @param durationSeconds Length of the run, in seconds.
+     */
+    LoadGenerator(DNSResolver resolver, NameSource names, double qps, double durationSeconds) {
+        if (qps <= 0 || durationSeconds <= 0)
+            throw new IllegalArgumentException("Rate and duration must be positive");
+        this.resolver = resolver;
+        this.names = names;
+        this.qps = qps;
+        this.durationNanos = (long) (durationSeconds * 1e9);
+    }
+
+    /**
+     * Starts lookups at the target rate for the duration of the run, then waits for them to
+     * complete, at most until the lookup timeout of the resolver has passed.
+     *
+     * @param progress Stream to which progress is printed every second, with interval
+     *                 histograms written to the log, if any.
+     * @param log      Histogram log of the intervals, or null.
+     */
+    void run(PrintStream progress, HistogramLogWriter log) throws InterruptedException {
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        if (log != null) {
+            log.outputStartTime(System.currentTimeMillis());
+            log.outputLegend();
+        }
+        recorder.reset();
+        for (long i = 0; ; i++) {
+            long due = start + (long) (i * 1e9 / qps);
+            if (due - end >= 0)
+                break;
+            while (System.nanoTime() - due < 0) {
+                if (System.nanoTime() - nextReport >= 0) {
+                    report(progress, log, start);
+                    nextReport += TimeUnit.SECONDS.toNanos(1);
+                }
+                LockSupport.parkNanos(Math.min(due - System.nanoTime(), 1_000_000));
+            }
+            lookup(names.next(), due);
+        }
+
+        // Let the lookups still in flight complete or time out
+        long drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(resolver.getLookupTimeoutMillis() + 1000);
+        while (completed.sum() < sent.sum() && System.nanoTime() - drainDeadline < 0) {
+            Thread.sleep(10);
+            if (System.nanoTime() - nextReport >= 0) {
+                report(progress, log, start);
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+        }
+        elapsedNanos = System.nanoTime() - start;
+        report(progress, log, start);
+    }
+
+    private void lookup(DNSNode node, long dueNanos) {
+        sent.increment();
+        CompletableFuture<?> lookup = resolver.resolve(node);
+        // Lookups answered from the cache alone are complete when resolve returns
+        if (lookup.isDone())
+            cacheHits.increment();
+        lookup.whenComplete((results, error) -> {
+            recorder.recordValue(Math.max(0, System.nanoTime() - dueNanos));
+            if (error != null)
+                failed.increment();
+            completed.increment();
+        });
+    }
+
+    private synchronized void report(PrintStream progress, HistogramLogWriter log, long start) {
+        Histogram interval = recorder.getIntervalHistogram();
+        total.add(interval);
+        if (log != null)
+            log.outputIntervalHistogram(interval);
+        if (interval.getTotalCount() > 0)
+            progress.printf("%6.1f s: %d lookups/s, p50 %.3f ms, p99 %.3f ms, %d in flight%n",
+                    (System.nanoTime() - start) / 1e9, interval.getTotalCount(),
+                    interval.getValueAtPercentile(50) / 1e6, interval.getValueAtPercentile(99) / 1e6,
+                    sent.sum() - completed.sum());
+    }
+
+    long getSentCount() {
+        return sent.sum();
+    }
+
+    long getCompletedCount() {
+        return completed.sum();
+    }
+
+    long getFailureCount() {
+        return failed.sum();
+    }
+
+    /** Returns the fraction of lookups answered from the cache alone. */
+    double getCacheHitRatio() {
+        long count = sent.sum();
+        return count == 0 ? 0 : (double) cacheHits.sum() / count;
+    }
+
+    /** Returns the number of lookups completed per second. */
+    double getAchievedQps() {
+        return elapsedNanos == 0 ? 0 : completed.sum() * 1e9 / elapsedNanos;
+    }
+
+    /** Returns the latencies of all the completed lookups, in nanoseconds. */
+    Histogram getLatencies() {
+        return total;
+    }
+
+    /** Draws names from a Zipf distribution: the name of rank k is drawn with a probability
+     * proportional to 1 / k^exponent.
+     */
+    static class ZipfNames implements NameSource {
+
+        private final List<DNSNode> nodes;
+        private final double[] cumulative;
+        private final Random random;
+
+        ZipfNames(List<DNSNode> nodes, double exponent, long seed) {
+            this.nodes = nodes;
+            this.random = new Random(seed);
+            cumulative = new double[nodes.size()];
+            double sum = 0;
+            for (int k = 0; k < nodes.size(); k++)
+                cumulative[k] = sum += 1 / Math.pow(k + 1, exponent);
+            for (int k = 0; k < cumulative.length; k++)
+                cumulative[k] /= sum;
+        }
+
+        @Override
+        public synchronized DNSNode next() {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            return nodes.get(Math.min(nodes.size() - 1, index < 0 ? -index - 1 : index));
+        }
+    }
+
+    /** Replays the lookups of a query log in order, starting over at its end. */
+    static class ReplayedNames implements NameSource {
+
+        private final List<DNSNode> nodes;
+        private int next;
+
+        ReplayedNames(BufferedReader log) throws IOException {
+            nodes = new ArrayList<>();
+            String line;
+            while ((line = log.readLine()) != null) {
+                try {
+                    DNSNode node = BatchLookup.parseLookup(line);
+                    if (node != null)
+                        nodes.add(node);
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Invalid lookup ignored: " + line);
+                }
+            }
+            if (nodes.isEmpty())
+                throw new IOException("Query log holds no lookup");
+        }
+
+        @Override
+        public synchronized DNSNode next() {
+            DNSNode node = nodes.get(next);
+            next = (next + 1) % nodes.size();
+            return node;
+        }
+    }
+
+    static List<DNSNode> syntheticNames(int count) {
+        List<DNSNode> nodes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            nodes.add(new DNSNode("host" + i + "." + SYNTHETIC_DOMAIN, RecordType.A));
+        return nodes;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("-") || i + 1 == args.length) {
+                System.err.println("Invalid option: " + args[i] + ". See the LoadGenerator documentation for usage.");
+                System.exit(1);
+            }
+            options.put(args[i].substring(1), args[++i]);
+        }
+        double qps = Double.parseDouble(options.getOrDefault("qps", "1000"));
+        double duration = Double.parseDouble(options.getOrDefault("duration", "30"));
+        int nameCount = Integer.parseInt(options.getOrDefault("names", "10000"));
+        double exponent = Double.parseDouble(options.getOrDefault("zipf", "1.0"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "1"));
+        String prefix = options.getOrDefault("out",
+                "loadgen-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")));
+
+        FakeDnsHierarchy hierarchy = null;
+        InetAddress root;
+        int port;
+        List<DNSNode> synthetic = options.containsKey("log") ? null : syntheticNames(nameCount);
+        if (options.containsKey("root")) {
+            root = InetAddress.getByName(options.get("root"));
+            port = Integer.parseInt(options.getOrDefault("port", "53"));
+        } else {
+            hierarchy = FakeDnsHierarchy.load(FakeDnsHierarchy.DEFAULT_FIXTURE).seed(seed);
+            String[] latency = options.getOrDefault("latency", "0:0").split(":");
+            hierarchy.latency(Long.parseLong(latency[0]), Long.parseLong(latency[latency.length - 1]))
+                    .loss(Double.parseDouble(options.getOrDefault("loss", "0")));
+            if (synthetic != null) {
+                int ttl = Integer.parseInt(options.getOrDefault("ttl", "300"));
+                FakeDnsServer leaf = hierarchy.getServer(SYNTHETIC_SERVER);
+                for (int i = 0; i < synthetic.size(); i++)
+                    leaf.addRecord(synthetic.get(i).getHostName(), RecordType.A, ttl,
+                            "10." + (i >> 16 & 0xFF) + "." + (i >> 8 & 0xFF) + "." + (i & 0xFF));
+            }
+            root = hierarchy.getRootAddress();
+            port = hierarchy.getPort();
+        }
+
+        NameSource names;
+        if (synthetic == null) {
+            try (BufferedReader log = Files.newBufferedReader(Paths.get(options.get("log")))) {
+                names = new ReplayedNames(log);
+            }
+        } else {
+            names = new ZipfNames(synthetic, exponent, seed);
+        }
+
+        Instant startTime = Instant.now();
+        DNSTransport transport = new DNSTransport(port);
+        DNSResolver resolver = new DNSResolver(new DNSCache(), transport, root);
+        LoadGenerator generator = new LoadGenerator(resolver, names, qps, duration);
+        Path hlog = Paths.get(prefix + ".hlog");
+        try (PrintStream logStream = new PrintStream(Files.newOutputStream(hlog))) {
+            generator.run(System.err, new HistogramLogWriter(logStream));
+        } finally {
+            resolver.close();
+            transport.close();
+            if (hierarchy != null)
+                hierarchy.close();
+        }
+
+        Histogram latencies = generator.getLatencies();
+        System.out.printf("%d lookups started at %.0f/s, %d completed (%d failed): %.1f lookups/s, cache hit ratio %.1f%%%n",
+                generator.getSentCount(), qps, generator.getCompletedCount(), generator.getFailureCount(),
+                generator.getAchievedQps(), generator.getCacheHitRatio() * 100);
+        System.out.printf("latency ms: p50 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n",
+                latencies.getValueAtPercentile(50) / 1e6, latencies.getValueAtPercentile(99) / 1e6,
+                latencies.getValueAtPercentile(99.9) / 1e6, latencies.getMaxValue() / 1e6);
+
+        try (PrintStream hgrm = new PrintStream(Files.newOutputStream(Paths.get(prefix + ".hgrm")))) {
+            latencies.outputPercentileDistribution(hgrm, 1e6);
+        }
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("start", startTime.toString());
+        summary.put("source", synthetic == null ? "log:" + options.get("log") : "zipf");
+        if (synthetic != null) {
+            summary.put("names", nameCount);
+            summary.put("zipfExponent", exponent);
+        }
+        summary.put("root", hierarchy == null ? root.getHostAddress() + ":" + port : "simulated");
+        summary.put("targetQps", qps);
+        summary.put("durationSeconds", duration);
+        summary.put("seed", seed);
+        summary.put("sent", generator.getSentCount());
+        summary.put("completed", generator.getCompletedCount());
+        summary.put("failed", generator.getFailureCount());
+        summary.put("achievedQps", generator.getAchievedQps());
+        summary.put("cacheHitRatio", generator.getCacheHitRatio());
+        summary.put("p50Millis", latencies.getValueAtPercentile(50) / 1e6);
+        summary.put("p90Millis", latencies.getValueAtPercentile(90) / 1e6);
+        summary.put("p99Millis", latencies.getValueAtPercentile(99) / 1e6);
+        summary.put("p999Millis", latencies.getValueAtPercentile(99.9) / 1e6);
+        summary.put("maxMillis", latencies.getMaxValue() / 1e6);
+        summary.put("meanMillis", latencies.getMean() / 1e6);
+        Files.writeString(Paths.get(prefix + ".json"), toJson(summary));
+        System.out.println("Results saved to " + prefix + ".json, .hgrm and .hlog");
+    }
+
+    /** Formats a flat map of strings and numbers as a JSON object. */
+    static String toJson(Map<String, Object> values) {
+        StringBuilder json = new StringBuilder("{\n");
+        String separator = "";
+        for (Map.Entry<String, Object> value : values.entrySet()) {
+            json.append(separator).append("  \"").append(value.getKey()).append("\": ");
+            if (value.getValue() instanceof Number)
+                json.append(value.getValue());
+            else
+                json.append('"').append(value.getValue().toString().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            separator = ",\n";
+        }
+        return json.append("\n}\n").toString();
+    }
+}
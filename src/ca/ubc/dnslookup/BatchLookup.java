@@ -0,0 +1,261 @@
+package ca.ubc.dnslookup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Resolves a list of host names concurrently. Each line of the input holds a host name and
+ * an optional record type (A by default), as with the lookup command; blank lines and
+ * anything after a '#' are ignored. Every lookup runs on its own virtual thread when the JVM
+ * supports them, or on a pooled platform thread otherwise, and at most a fixed number of
+ * lookups are in flight at any time. Results are written as soon as each lookup completes,
+ * so they are not in the order of the input.
+ */
+public class BatchLookup {
+
+    /** Default maximum number of lookups in flight. */
+    public static final int DEFAULT_CONCURRENCY = 256;
+
+    private final DNSResolver resolver;
+    private final int maxConcurrency;
+    private final PrintStream out;
+
+    /** Creates a batch of lookups.
+     *
+     * @param resolver       Resolver performing the lookups, and whose cache they share.
+     * @param maxConcurrency Maximum number of lookups in flight.
+     * @param out            Stream to which the results are written.
+     */
+    public BatchLookup(DNSResolver resolver, int maxConcurrency, PrintStream out) {
+        if (maxConcurrency <= 0)
+            throw new IllegalArgumentException("Concurrency must be positive: " + maxConcurrency);
+        this.resolver = resolver;
+        this.maxConcurrency = maxConcurrency;
+        this.out = out;
+    }
+
+    /** Resolves every host name read from the input, and waits for all lookups to complete.
+     *
+     * @param input Reader from which host names and types are read, one per line.
+     * @return Number of lookups performed, and their latencies.
+     */
+    public Summary run(BufferedReader input) throws IOException, InterruptedException {
+        Semaphore permits = new Semaphore(maxConcurrency);
+        Summary summary = new Summary();
+        ExecutorService executor = newLookupExecutor();
+        long coalescedLookups = resolver.getCoalescedLookupCount();
+        long queries = resolver.getQueryCount();
+        long coalescedQueries = resolver.getCoalescedQueryCount();
+        long hedgeable = resolver.getHedgeableQueryCount();
+        long hedged = resolver.getHedgedQueryCount();
+        long hedgeWins = resolver.getHedgeWinCount();
+        long retries = resolver.getRetryCount();
+        long timeouts = resolver.getTimeoutCount();
+        long start = System.nanoTime();
+        try {
+            String line;
+            while ((line = input.readLine()) != null) {
+                DNSNode node = parse(line, summary);
+                if (node == null)
+                    continue;
+                permits.acquire();
+                executor.execute(() -> {
+                    try {
+                        lookup(node, summary);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+            // Once every permit is back, every lookup has completed
+            permits.acquire(maxConcurrency);
+        } finally {
+            executor.shutdown();
+        }
+        summary.elapsedNanos = System.nanoTime() - start;
+        summary.coalescedLookups = resolver.getCoalescedLookupCount() - coalescedLookups;
+        summary.queries = resolver.getQueryCount() - queries;
+        summary.coalescedQueries = resolver.getCoalescedQueryCount() - coalescedQueries;
+        summary.hedgeable = resolver.getHedgeableQueryCount() - hedgeable;
+        summary.hedged = resolver.getHedgedQueryCount() - hedged;
+        summary.hedgeWins = resolver.getHedgeWinCount() - hedgeWins;
+        summary.retries = resolver.getRetryCount() - retries;
+        summary.timeouts = resolver.getTimeoutCount() - timeouts;
+        return summary;
+    }
+
+    private void lookup(DNSNode node, Summary summary) {
+        long start = System.nanoTime();
+        Set<ResourceRecord> results;
+        try {
+            results = resolver.resolve(node).join();
+        } catch (CompletionException e) {
+            summary.failures.increment();
+            System.err.println(node.getHostName() + " " + node.getType() + ": " + e.getCause().getMessage());
+            results = Collections.emptySet();
+        }
+        summary.record(System.nanoTime() - start);
+        out.print(DNSLookupService.formatResults(node, results));
+    }
+
+    /** Parses a line of input, returning null (and counting the line if invalid) if it holds no lookup. */
+    private static DNSNode parse(String line, Summary summary) {
+        try {
+            return parseLookup(line);
+        } catch (IllegalArgumentException ignored) {
+        }
+        summary.invalid.increment();
+        System.err.println("Invalid lookup ignored: " + line.split("#", 2)[0].trim());
+        return null;
+    }
+
+    /** Parses a line of input: a host name and an optional record type, A by default.
+     *
+     * @param line Line of input, possibly blank or with a comment after a '#'.
+     * @return The node to be looked up, or null if the line holds no lookup.
+     * @throws IllegalArgumentException if the line is not a valid lookup.
+     */
+    static DNSNode parseLookup(String line) {
+        line = line.split("#", 2)[0].trim();
+        if (line.isEmpty())
+            return null;
+        String[] fields = line.split("\\s+");
+        if (fields.length == 1)
+            return new DNSNode(fields[0], RecordType.A);
+        if (fields.length == 2)
+            return new DNSNode(fields[0], RecordType.valueOf(fields[1].toUpperCase()));
+        throw new IllegalArgumentException("Invalid lookup: " + line);
+    }
+
+    /** Returns an executor starting a virtual thread per task. Virtual threads are looked up
+     * reflectively, so the client still builds and runs on JVMs without them; these get a
+     * cached pool of daemon threads instead, which the concurrency limit keeps bounded.
+     */
+    static ExecutorService newLookupExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "dns-batch-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /** Outcome of a batch: number of lookups, throughput and latency percentiles. Latencies
+     * are counted in a histogram, so a summary takes the same memory however many lookups the
+     * batch performs.
+     */
+    public static class Summary {
+
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder invalid = new LongAdder();
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private long elapsedNanos;
+        private long coalescedLookups;
+        private long queries;
+        private long coalescedQueries;
+        private long hedgeable;
+        private long hedged;
+        private long hedgeWins;
+        private long retries;
+        private long timeouts;
+
+        private void record(long latencyNanos) {
+            latencies.record(latencyNanos);
+        }
+
+        /** Returns the number of lookups performed, including failed ones. */
+        public long getLookupCount() {
+            return latencies.snapshot().getCount();
+        }
+
+        public long getFailureCount() {
+            return failures.sum();
+        }
+
+        /** Returns the number of input lines that could not be parsed. */
+        public long getInvalidCount() {
+            return invalid.sum();
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /** Returns the number of lookups that shared a lookup of the same node in flight. */
+        public long getCoalescedLookupCount() {
+            return coalescedLookups;
+        }
+
+        /** Returns the number of queries sent to DNS servers during the batch. */
+        public long getQueryCount() {
+            return queries;
+        }
+
+        /** Returns the number of queries not sent because the same question was already in flight. */
+        public long getCoalescedQueryCount() {
+            return coalescedQueries;
+        }
+
+        /** Returns the fraction of queries with another server available that were hedged to it. */
+        public double getHedgeRate() {
+            return hedgeable == 0 ? 0 : (double) hedged / hedgeable;
+        }
+
+        /** Returns the fraction of hedged queries answered first by the second server. */
+        public double getHedgeWinRate() {
+            return hedged == 0 ? 0 : (double) hedgeWins / hedged;
+        }
+
+        /** Returns the number of queries sent again because no server had responded. */
+        public long getRetryCount() {
+            return retries;
+        }
+
+        /** Returns the number of queries that got no response within their retransmission timeout. */
+        public long getTimeoutCount() {
+            return timeouts;
+        }
+
+        /** Returns the number of lookups completed per second. */
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : getLookupCount() * 1e9 / elapsedNanos;
+        }
+
+        /** Returns a latency percentile in nanoseconds, using the nearest-rank method, within
+         * the precision of the histogram (see LatencyHistogram).
+         *
+         * @param percentile Percentile between 0 and 100.
+         */
+        public long getLatencyPercentile(double percentile) {
+            return latencies.snapshot().getValueAtPercentile(percentile);
+        }
+
+        @Override
+        public String toString() {
+            LatencyHistogram.Snapshot times = latencies.snapshot();
+            long count = times.getCount();
+            return String.format("%d lookups (%d failed, %d invalid lines) in %.3f s: %.1f lookups/s%n"
+                            + "%d queries sent, %d coalesced, %d timed out, %d retried; %d lookups coalesced%n"
+                            + "hedge rate %.1f%% (%d of %d), hedge win rate %.1f%%%n"
+                            + "latency ms: p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f",
+                    count, getFailureCount(), getInvalidCount(), elapsedNanos / 1e9,
+                    elapsedNanos == 0 ? 0 : count * 1e9 / elapsedNanos,
+                    queries, coalescedQueries, timeouts, retries, coalescedLookups,
+                    getHedgeRate() * 100, hedged, hedgeable, getHedgeWinRate() * 100,
+                    times.getP50() / 1e6, times.getP90() / 1e6, times.getP99() / 1e6, times.getP999() / 1e6,
+                    times.getMax() / 1e6);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package ca.ubc.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A pool of direct byte buffers of a fixed capacity. Direct buffers are expensive to create
+ * but avoid a copy on every socket read and write, so the transport keeps reusing them. The
+ * pool never holds more than a fixed number of idle buffers; extra buffers released to a full
+ * pool are left to the garbage collector.
+ */
+final class BufferPool {
+
+    private final int bufferCapacity;
+    private final int maximumIdle;
+    private final ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    BufferPool(int bufferCapacity, int maximumIdle) {
+        this.bufferCapacity = bufferCapacity;
+        this.maximumIdle = maximumIdle;
+    }
+
+    /** Takes a cleared buffer from the pool, or allocates a new one if the pool is empty.
+     *
+     * @return A buffer ready to be written to.
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = idle.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(bufferCapacity);
+        idleCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Returns a buffer to the pool. The buffer must not be used by the caller afterwards.
+     *
+     * @param buffer Buffer previously obtained from acquire().
+     */
+    void release(ByteBuffer buffer) {
+        if (idleCount.incrementAndGet() <= maximumIdle)
+            idle.offer(buffer);
+        else
+            idleCount.decrementAndGet();
+    }
+}
@@ -0,0 +1,328 @@
+package ca.ubc.dnslookup;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/** An immutable group of resource records cached for a single DNS node. Entries are never
+ * modified in place: adding a record produces a new entry, which is then swapped into the
+ * cache map atomically. This allows readers to use an entry without any locking.
+ *
+ * A negative entry holds no records, but records that the node is known to have none, until
+ * its own deadline (see DNSCache.addNegativeResult).
+ *
+ * The only mutable state of an entry is the bookkeeping of refresh-ahead (see Prefetcher):
+ * how many times it was read, whether a refresh was requested, and, for an entry written by
+ * a refresh, whether it served a read the entry it replaced could not have served.
+ */
+final class CacheEntry {
+
+    /** Approximate heap footprint of an entry without its records: map node, entry, array. */
+    private static final long ENTRY_OVERHEAD = 96;
+    /** Approximate heap footprint of a record without its strings: record, node, date. */
+    private static final long RECORD_OVERHEAD = 112;
+    private static final long STRING_OVERHEAD = 56;
+    private static final long ADDRESS_OVERHEAD = 80;
+
+    private static final ResourceRecord[] NO_RECORDS = new ResourceRecord[0];
+
+    private static final AtomicIntegerFieldUpdater<CacheEntry> HITS =
+            AtomicIntegerFieldUpdater.newUpdater(CacheEntry.class, "hits");
+    private static final AtomicIntegerFieldUpdater<CacheEntry> FLAGS =
+            AtomicIntegerFieldUpdater.newUpdater(CacheEntry.class, "flags");
+    private static final int REFRESH_REQUESTED = 1;
+    private static final int PREFETCH_USED = 2;
+
+    private final DNSNode node;
+    private final ResourceRecord[] records;
+    /** Deadline of a negative entry, on the System.nanoTime() clock; unused otherwise. */
+    private final long negativeExpirationNanos;
+    /** True if the records of this entry were renewed by a refresh-ahead. */
+    private final boolean prefetched;
+    /** For a prefetched entry, when the entry it refreshed would have expired. */
+    private final long refreshedExpirationNanos;
+    /** Reads of this entry, only counted up to the number needed to trigger a refresh. */
+    private volatile int hits;
+    private volatile int flags;
+
+    CacheEntry(DNSNode node, ResourceRecord record) {
+        this(node, new ResourceRecord[]{record});
+    }
+
+    private CacheEntry(DNSNode node, ResourceRecord[] records) {
+        this(node, records, 0, false, 0);
+    }
+
+    private CacheEntry(DNSNode node, ResourceRecord[] records, long negativeExpirationNanos,
+                       boolean prefetched, long refreshedExpirationNanos) {
+        this.node = node;
+        this.records = records;
+        this.negativeExpirationNanos = negativeExpirationNanos;
+        this.prefetched = prefetched;
+        this.refreshedExpirationNanos = refreshedExpirationNanos;
+    }
+
+    /** Returns an entry with other records, still counted as prefetched if this one is. */
+    private CacheEntry derive(ResourceRecord[] records) {
+        if (!prefetched)
+            return new CacheEntry(node, records);
+        CacheEntry derived = new CacheEntry(node, records, 0, true, refreshedExpirationNanos);
+        derived.flags = flags & PREFETCH_USED;
+        return derived;
+    }
+
+    /** Creates a negative entry, recording that a node has no records.
+     *
+     * @param node            Node known to have no records.
+     * @param expirationNanos Time until which this is known, on the System.nanoTime() clock.
+     * @return A new negative entry.
+     */
+    static CacheEntry negative(DNSNode node, long expirationNanos) {
+        return new CacheEntry(node, NO_RECORDS, expirationNanos, false, 0);
+    }
+
+    boolean isNegative() {
+        return records.length == 0;
+    }
+
+    /** Returns true if this is a negative entry that has not expired at the specified time. */
+    boolean isValidNegative(long nowNanos) {
+        return records.length == 0 && negativeExpirationNanos - nowNanos > 0;
+    }
+
+    DNSNode getNode() {
+        return node;
+    }
+
+    int recordCount() {
+        return records.length;
+    }
+
+    /** Estimates the number of bytes of heap used by this entry, including its records.
+     *
+     * @return The estimated size of this entry in bytes.
+     */
+    long estimatedBytes() {
+        if (isNegative())
+            return ENTRY_OVERHEAD + RECORD_OVERHEAD + node.getHostName().length();
+        long bytes = ENTRY_OVERHEAD + 4L * records.length;
+        for (ResourceRecord record : records) {
+            bytes += RECORD_OVERHEAD + 2 * STRING_OVERHEAD
+                    + record.getHostName().length() + record.getTextResult().length();
+            if (record.getInetResult() != null)
+                bytes += ADDRESS_OVERHEAD;
+        }
+        return bytes;
+    }
+
+    /** Returns a new entry that includes the specified record. An equivalent record already in
+     * this entry is only replaced if the new record expires after it. Expired records are
+     * dropped from the new entry.
+     *
+     * @param record   Record to be added.
+     * @param nowNanos Time at which records are considered expired: the current value of
+     *                 System.nanoTime(), less the stale window of the cache.
+     * @return An entry including the record, or this same entry if nothing would change.
+     */
+    CacheEntry with(ResourceRecord record, long nowNanos) {
+        if (isNegative())
+            return new CacheEntry(node, record);
+        ResourceRecord[] updated = new ResourceRecord[records.length + 1];
+        int size = 0;
+        boolean replaced = false;
+        for (ResourceRecord existing : records) {
+            if (existing.equals(record)) {
+                if (!existing.expiresBefore(record))
+                    return this;
+                updated[size++] = record;
+                replaced = true;
+            } else if (existing.isStillValid(nowNanos)) {
+                updated[size++] = existing;
+            }
+        }
+        if (!replaced)
+            updated[size++] = record;
+        return derive(Arrays.copyOf(updated, size));
+    }
+
+    /** Returns an entry without the records that have expired at the specified time.
+     *
+     * @param nowNanos Time at which records are considered expired: the current value of
+     *                 System.nanoTime(), less the stale window of the cache.
+     * @return An entry with the remaining records, this same entry if none expired, or null
+     * if all records expired.
+     */
+    CacheEntry withoutExpired(long nowNanos) {
+        if (isNegative())
+            return isValidNegative(nowNanos) ? this : null;
+        ResourceRecord[] valid = filterValid(nowNanos);
+        if (valid == records)
+            return this;
+        return valid.length == 0 ? null : derive(valid);
+    }
+
+    /** Returns the time at which the first record of this entry expires.
+     *
+     * @return The earliest expiration deadline of the records, on the System.nanoTime() clock.
+     */
+    long earliestExpirationNanos() {
+        if (isNegative())
+            return negativeExpirationNanos;
+        long earliest = records[0].getExpirationNanos();
+        for (int i = 1; i < records.length; i++)
+            if (records[i].getExpirationNanos() - earliest < 0)
+                earliest = records[i].getExpirationNanos();
+        return earliest;
+    }
+
+    /** Counts a read of this entry, unless it was already read often enough.
+     *
+     * @param limit Number of reads after which reads are no longer counted.
+     * @return The number of reads counted so far, at most limit.
+     */
+    int recordHit(int limit) {
+        int count = hits;
+        // Hot entries stop writing to the shared counter once they are known to be hot
+        return count >= limit ? count : HITS.incrementAndGet(this);
+    }
+
+    /** Returns true if the first record to expire in this entry is in the last part of its
+     * TTL, and has not expired yet.
+     *
+     * @param nowNanos       Current value of System.nanoTime().
+     * @param windowFraction Fraction of the TTL, at its end, considered its last part.
+     */
+    boolean isInRefreshWindow(long nowNanos, double windowFraction) {
+        // Stale records, if any, are left out
+        ResourceRecord first = null;
+        for (ResourceRecord record : records)
+            if (record.isStillValid(nowNanos) && (first == null || record.expiresBefore(first)))
+                first = record;
+        return first != null
+                && first.getExpirationNanos() - nowNanos < first.getOriginalTtlNanos() * windowFraction;
+    }
+
+    /** Records that a refresh of this entry was requested.
+     *
+     * @return true if no refresh was requested before, false otherwise.
+     */
+    boolean requestRefresh() {
+        return setFlag(REFRESH_REQUESTED);
+    }
+
+    /** Forgets a refresh request that could not be carried out, so a later read can retry it. */
+    void cancelRefresh() {
+        FLAGS.getAndUpdate(this, current -> current & ~REFRESH_REQUESTED);
+    }
+
+    /** Returns a copy of this entry marked as renewed by a refresh-ahead.
+     *
+     * @param refreshedExpirationNanos Time at which the refreshed entry would have expired.
+     */
+    CacheEntry asPrefetched(long refreshedExpirationNanos) {
+        return new CacheEntry(node, records, 0, true, refreshedExpirationNanos);
+    }
+
+    /** Records a read of a prefetched entry at a time the entry it refreshed would have missed.
+     *
+     * @param nowNanos Current value of System.nanoTime().
+     * @return true the first time the prefetch proves useful, false otherwise.
+     */
+    boolean recordPrefetchUse(long nowNanos) {
+        if (!prefetched || nowNanos - refreshedExpirationNanos < 0)
+            return false;
+        return setFlag(PREFETCH_USED);
+    }
+
+    /** Sets a flag, returning true if it was not set before. Checks first, to avoid writing. */
+    private boolean setFlag(int flag) {
+        return (flags & flag) == 0 && (FLAGS.getAndUpdate(this, current -> current | flag) & flag) == 0;
+    }
+
+    /** Returns true if this entry was prefetched, and has not served any read that would have
+     * missed without the prefetch. */
+    boolean isUnusedPrefetch() {
+        return prefetched && (flags & PREFETCH_USED) == 0;
+    }
+
+    /** Returns the records of this entry that have not expired yet. The returned set is a
+     * read-only view of the entry, so this method does not copy unless some records expired.
+     *
+     * @param nowNanos Current value of System.nanoTime().
+     * @return A potentially empty, unmodifiable set of valid records.
+     */
+    Set<ResourceRecord> validRecords(long nowNanos) {
+        ResourceRecord[] valid = filterValid(nowNanos);
+        return valid.length == 0 ? Collections.emptySet() : new RecordSet(valid);
+    }
+
+    /** Returns the records of this entry that have expired, but for less than a stale window.
+     *
+     * @param nowNanos   Current value of System.nanoTime().
+     * @param staleNanos Length of the stale window, in nanoseconds.
+     * @return A potentially empty list of stale records.
+     */
+    List<ResourceRecord> staleRecords(long nowNanos, long staleNanos) {
+        List<ResourceRecord> stale = new ArrayList<>(records.length);
+        for (ResourceRecord record : records)
+            if (!record.isStillValid(nowNanos) && record.isStillValid(nowNanos - staleNanos))
+                stale.add(record);
+        return stale;
+    }
+
+    private ResourceRecord[] filterValid(long nowNanos) {
+        int valid = 0;
+        for (ResourceRecord record : records)
+            if (record.isStillValid(nowNanos))
+                valid++;
+        if (valid == records.length)
+            return records;
+
+        ResourceRecord[] filtered = new ResourceRecord[valid];
+        int i = 0;
+        for (ResourceRecord record : records)
+            if (record.isStillValid(nowNanos))
+                filtered[i++] = record;
+        return filtered;
+    }
+
+    /** Read-only set backed by an array of distinct records. */
+    private static final class RecordSet extends AbstractSet<ResourceRecord> {
+
+        private final ResourceRecord[] records;
+
+        RecordSet(ResourceRecord[] records) {
+            this.records = records;
+        }
+
+        @Override
+        public Iterator<ResourceRecord> iterator() {
+            return new Iterator<ResourceRecord>() {
+                private int index = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return index < records.length;
+                }
+
+                @Override
+                public ResourceRecord next() {
+                    if (index >= records.length)
+                        throw new NoSuchElementException();
+                    return records[index++];
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return records.length;
+        }
+    }
+}
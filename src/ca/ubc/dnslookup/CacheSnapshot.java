@@ -0,0 +1,459 @@
+package ca.ubc.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+
+/** Read-only snapshot of a cache in a memory-mapped file, used to start warm after a restart.
+ * Opening a snapshot maps the file, checks that every offset and length in it stays within
+ * the file, and reads the list of zones with NS records; a file that fails the checks is
+ * rejected as a whole. The records of a node are only decoded when the cache misses it (see
+ * DNSCache.loadSnapshot), once: the node is then dropped from the snapshot, so a node evicted
+ * or expired from the cache is not brought back.
+ *
+ * A mapped file cannot be replaced on every platform, so snapshots alternate between two
+ * files, the given path and a sibling with a ".1" suffix: a new snapshot is written to the
+ * one the cache was not loaded from, and the newer of the two is opened.
+ *
+ * The file is written in a compact binary format, without Java serialization. All numbers
+ * are big-endian, and offsets are from the start of the file:
+ * <pre>
+ * header   int magic "DNSC", int version, long write time (epoch ms), int node count,
+ *          int table capacity (a power of two), int zone count, int zone list offset
+ * table    capacity ints: offset of the node entry in each slot, or 0 if the slot is empty;
+ *          a node is in the first slot free from (hash &amp; (capacity - 1)) on (linear probing)
+ * entries  int hash, short type code, short name length, name (UTF-8), short record count,
+ *          then per record: long expiration (epoch ms), byte kind (0 text, 1 address),
+ *          short data length, data (UTF-8 text, or the 4 or 16 bytes of an address)
+ * zones    zone count ints: offset of the entry of each NS node
+ * </pre>
+ * The hash of a node is 31 times the hash code of its host name with ASCII letters lowercased
+ * (see DNSNode), plus its type code.
+ * Expirations are on the wall clock, so a snapshot remains valid across restarts.
+ */
+public final class CacheSnapshot {
+
+    private static final int MAGIC = 0x444E5343;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final byte KIND_TEXT = 0;
+    private static final byte KIND_ADDRESS = 1;
+
+    private final ByteBuffer buffer;
+    private final Path path;
+    /** One bit per table slot, set once the node in the slot has been loaded into a cache. */
+    private final AtomicLongArray loaded;
+    private final long writeTimeMillis;
+    private final int nodeCount;
+    private final int tableMask;
+    private final int zoneCount;
+    private final int zonesOffset;
+
+    private CacheSnapshot(Path path, ByteBuffer buffer) throws IOException {
+        this.path = path;
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC)
+            throw new IOException(path + " is not a cache snapshot");
+        if (buffer.getInt(4) != VERSION)
+            throw new IOException("Unsupported cache snapshot version " + buffer.getInt(4) + " in " + path);
+        writeTimeMillis = buffer.getLong(8);
+        nodeCount = buffer.getInt(16);
+        int capacity = buffer.getInt(20);
+        zoneCount = buffer.getInt(24);
+        zonesOffset = buffer.getInt(28);
+        long entriesOffset = HEADER_BYTES + 4L * capacity;
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1 || nodeCount < 0 || nodeCount >= capacity
+                || zoneCount < 0 || zonesOffset < entriesOffset || zonesOffset + 4L * zoneCount > buffer.capacity())
+            throw corrupted(path);
+        tableMask = capacity - 1;
+        loaded = new AtomicLongArray((capacity + 63) / 64);
+
+        int used = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            int offset = buffer.getInt(HEADER_BYTES + 4 * slot);
+            if (offset == 0)
+                continue;
+            if (!isEntry(offset, (int) entriesOffset))
+                throw corrupted(path);
+            used++;
+        }
+        // Lookups stop at the first empty slot, so there must be one
+        if (used != nodeCount)
+            throw corrupted(path);
+        for (int i = 0; i < zoneCount; i++)
+            if (!isEntry(buffer.getInt(zonesOffset + 4 * i), (int) entriesOffset))
+                throw corrupted(path);
+    }
+
+    private static IOException corrupted(Path path) {
+        return new IOException("Corrupted cache snapshot " + path);
+    }
+
+    /** Returns true if an entry, its name and all its records are between the table and the zones. */
+    private boolean isEntry(int offset, int entriesOffset) {
+        if (offset < entriesOffset || offset > zonesOffset - 10)
+            return false;
+        long position = offset + 8L + (buffer.getShort(offset + 6) & 0xFFFF);
+        if (position > zonesOffset - 2)
+            return false;
+        int count = buffer.getShort((int) position) & 0xFFFF;
+        position += 2;
+        for (int i = 0; i < count; i++) {
+            if (position > zonesOffset - 11)
+                return false;
+            position += 11 + (buffer.getShort((int) position + 9) & 0xFFFF);
+        }
+        return position <= zonesOffset;
+    }
+
+    /** Maps the newer of the two snapshot files of a path (see write), or the older one if the
+     * newer one is not valid. Only that file is mapped, so the other one can be replaced.
+     *
+     * @param path Path given to write.
+     * @return The mapped snapshot.
+     * @throws NoSuchFileException if no snapshot was written to the path.
+     * @throws IOException if the snapshot files cannot be read, or are not valid snapshots.
+     */
+    public static CacheSnapshot open(Path path) throws IOException {
+        Path[] files = { path, alternate(path) };
+        if (writeTime(files[1]) > writeTime(files[0]))
+            files = new Path[] { files[1], files[0] };
+        IOException failure = null;
+        for (Path file : files) {
+            try {
+                return map(file);
+            } catch (NoSuchFileException e) {
+                // Only one snapshot written so far
+            } catch (IOException e) {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+        throw failure != null ? failure : new NoSuchFileException(path.toString());
+    }
+
+    /** Returns the write time in the header of a snapshot file, or Long.MIN_VALUE if it has none. */
+    private static long writeTime(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(16);
+            while (header.hasRemaining())
+                if (channel.read(header) < 0)
+                    break;
+            return !header.hasRemaining() && header.getInt(0) == MAGIC ? header.getLong(8) : Long.MIN_VALUE;
+        } catch (IOException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private static CacheSnapshot map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Cache snapshot " + file + " is too large");
+            return new CacheSnapshot(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /** Returns the sibling file snapshots of a path alternate with. */
+    private static Path alternate(Path path) {
+        return path.resolveSibling(path.getFileName() + ".1");
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /** Returns the time at which the snapshot was written, in milliseconds since the epoch. */
+    public long getWriteTimeMillis() {
+        return writeTimeMillis;
+    }
+
+    /** Returns the number of nodes in the snapshot. */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /** Returns the records of a node that have not expired yet, and drops the node from the
+     * snapshot: it is only ever returned once.
+     *
+     * @param node     Host name and record type to be looked up.
+     * @param nowMillis Current wall-clock time, in milliseconds since the epoch.
+     * @return A potentially empty list of records, with their TTL set to the time they have left.
+     */
+    List<ResourceRecord> lookup(DNSNode node, long nowMillis) {
+        String name = node.getKey();
+        int hash = hash(name, node.getType());
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        for (int slot = hash & tableMask; ; slot = (slot + 1) & tableMask) {
+            int offset = buffer.getInt(HEADER_BYTES + 4 * slot);
+            if (offset == 0)
+                return Collections.emptyList();
+            if (buffer.getInt(offset) == hash && buffer.getShort(offset + 4) == node.getType().getCode()
+                    && nameMatches(offset + 6, nameBytes))
+                return markLoaded(slot) ? readRecords(offset, nowMillis) : Collections.emptyList();
+        }
+    }
+
+    /** Marks the node of a slot as loaded, returning false if it already was. */
+    private boolean markLoaded(int slot) {
+        long bit = 1L << slot;
+        while (true) {
+            long bits = loaded.get(slot >>> 6);
+            if ((bits & bit) != 0)
+                return false;
+            if (loaded.compareAndSet(slot >>> 6, bits, bits | bit))
+                return true;
+        }
+    }
+
+    private boolean isLoaded(int slot) {
+        return (loaded.get(slot >>> 6) & (1L << slot)) != 0;
+    }
+
+    /** Calls an action for the name of every zone whose NS records have not expired yet.
+     *
+     * @param nowMillis Current wall-clock time, in milliseconds since the epoch.
+     * @param action    Action called with the name of each zone.
+     */
+    void forEachZone(long nowMillis, java.util.function.Consumer<String> action) {
+        for (int i = 0; i < zoneCount; i++) {
+            int offset = buffer.getInt(zonesOffset + 4 * i);
+            if (!readRecords(offset, nowMillis).isEmpty())
+                action.accept(readName(offset + 6));
+        }
+    }
+
+    /** Calls an action for every node of the snapshot not loaded into a cache yet that still
+     * has records.
+     *
+     * @param nowMillis Current wall-clock time, in milliseconds since the epoch.
+     * @param action    Action called with each node and its records.
+     */
+    void forEachNode(long nowMillis, BiConsumer<DNSNode, List<ResourceRecord>> action) {
+        for (int slot = 0; slot <= tableMask; slot++) {
+            int offset = buffer.getInt(HEADER_BYTES + 4 * slot);
+            if (offset == 0 || isLoaded(slot))
+                continue;
+            List<ResourceRecord> records = readRecords(offset, nowMillis);
+            if (!records.isEmpty())
+                action.accept(records.get(0).getNode(), records);
+        }
+    }
+
+    private boolean nameMatches(int offset, byte[] lowercaseName) {
+        if ((buffer.getShort(offset) & 0xFFFF) != lowercaseName.length)
+            return false;
+        for (int i = 0; i < lowercaseName.length; i++) {
+            byte b = buffer.get(offset + 2 + i);
+            if (b >= 'A' && b <= 'Z')
+                b += 'a' - 'A';
+            if (b != lowercaseName[i])
+                return false;
+        }
+        return true;
+    }
+
+    private String readName(int offset) {
+        byte[] bytes = new byte[buffer.getShort(offset) & 0xFFFF];
+        buffer.get(offset + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private List<ResourceRecord> readRecords(int offset, long nowMillis) {
+        RecordType type = RecordType.getByCode(buffer.getShort(offset + 4));
+        String hostName = readName(offset + 6);
+        int position = offset + 8 + (buffer.getShort(offset + 6) & 0xFFFF);
+        int count = buffer.getShort(position) & 0xFFFF;
+        position += 2;
+        List<ResourceRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long expirationMillis = buffer.getLong(position);
+            byte kind = buffer.get(position + 8);
+            byte[] data = new byte[buffer.getShort(position + 9) & 0xFFFF];
+            buffer.get(position + 11, data);
+            position += 11 + data.length;
+            long ttl = (expirationMillis - nowMillis) / 1000;
+            if (ttl <= 0)
+                continue;
+            if (kind == KIND_ADDRESS) {
+                try {
+                    records.add(new ResourceRecord(hostName, type, ttl, InetAddress.getByAddress(data)));
+                } catch (UnknownHostException e) {
+                    // Not an address of a valid length: the record is skipped
+                }
+            } else {
+                records.add(new ResourceRecord(hostName, type, ttl, new String(data, StandardCharsets.UTF_8)));
+            }
+        }
+        return records;
+    }
+
+    private static int hash(String lowercaseName, RecordType type) {
+        return 31 * lowercaseName.hashCode() + type.getCode();
+    }
+
+    /** Writes the valid records of a cache to a snapshot file. Nodes of the snapshot the cache
+     * was loaded from, which the cache did not need yet, are carried over. The snapshot goes to
+     * whichever of the path and its ".1" sibling the cache was not loaded from, as that one
+     * is still mapped. It is written next to its destination first, then moved into place,
+     * so a snapshot mapped by another process, or read after a crash, is never partially
+     * written.
+     *
+     * @param cache Cache whose records are saved.
+     * @param path  Destination file, as given to open.
+     * @return The number of nodes written.
+     * @throws IOException if the file could not be written.
+     */
+    public static int write(DNSCache cache, Path path) throws IOException {
+        long now = System.currentTimeMillis();
+        Map<DNSNode, Set<ResourceRecord>> nodes = new LinkedHashMap<>();
+        cache.forEachNode((node, records) -> {
+            if (node.getType() != RecordType.OTHER)
+                nodes.put(node, records);
+        });
+        CacheSnapshot previous = cache.getSnapshot();
+        if (previous != null)
+            previous.forEachNode(now, (node, records) -> nodes.putIfAbsent(node, new HashSet<>(records)));
+
+        // Encode every node first, so the size of the file is known before it is mapped
+        List<byte[]> entries = new ArrayList<>(nodes.size());
+        List<Integer> hashes = new ArrayList<>(nodes.size());
+        int zoneCount = 0;
+        long size = 0;
+        for (Map.Entry<DNSNode, Set<ResourceRecord>> node : nodes.entrySet()) {
+            byte[] entry = encode(node.getKey(), node.getValue());
+            if (entry == null)
+                continue;
+            entries.add(entry);
+            hashes.add(hash(node.getKey().getKey(), node.getKey().getType()));
+            if (node.getKey().getType() == RecordType.NS)
+                zoneCount++;
+            size += entry.length;
+        }
+        int capacity = Integer.highestOneBit(Math.max(16, entries.size() * 2 - 1)) << 1;
+        long entriesOffset = HEADER_BYTES + 4L * capacity;
+        long zonesOffset = entriesOffset + size;
+        long total = zonesOffset + 4L * zoneCount;
+        if (total > Integer.MAX_VALUE)
+            throw new IOException("Cache too large for a snapshot");
+
+        Path destination = previous != null && previous.path.equals(path) ? alternate(path) : path;
+        Path temporary = destination.resolveSibling(destination.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, total);
+            out.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, now).putInt(16, entries.size())
+                    .putInt(20, capacity).putInt(24, zoneCount).putInt(28, (int) zonesOffset);
+            int position = (int) entriesOffset;
+            int zone = 0;
+            for (int i = 0; i < entries.size(); i++) {
+                int hash = hashes.get(i);
+                int slot = hash & (capacity - 1);
+                while (out.getInt(HEADER_BYTES + 4 * slot) != 0)
+                    slot = (slot + 1) & (capacity - 1);
+                out.putInt(HEADER_BYTES + 4 * slot, position);
+                if (out.put(position, entries.get(i)).getShort(position + 4) == RecordType.NS.getCode())
+                    out.putInt((int) zonesOffset + 4 * zone++, position);
+                position += entries.get(i).length;
+            }
+            out.force();
+        }
+        Files.move(temporary, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return entries.size();
+    }
+
+    /** Encodes the entry of a node, or returns null if it has no record that can be saved. */
+    private static byte[] encode(DNSNode node, Set<ResourceRecord> records) {
+        byte[] name = node.getHostName().getBytes(StandardCharsets.UTF_8);
+        List<byte[]> data = new ArrayList<>(records.size());
+        List<ResourceRecord> saved = new ArrayList<>(records.size());
+        int size = 10 + name.length;
+        for (ResourceRecord record : records) {
+            byte[] bytes = record.getInetResult() != null
+                    ? record.getInetResult().getAddress()
+                    : record.getTextResult().getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF)
+                continue;
+            data.add(bytes);
+            saved.add(record);
+            size += 11 + bytes.length;
+        }
+        if (saved.isEmpty() || name.length > 0xFFFF || saved.size() > 0xFFFF)
+            return null;
+
+        ByteBuffer entry = ByteBuffer.allocate(size);
+        entry.putInt(hash(node.getKey(), node.getType()))
+                .putShort((short) node.getType().getCode())
+                .putShort((short) name.length).put(name)
+                .putShort((short) saved.size());
+        for (int i = 0; i < saved.size(); i++) {
+            ResourceRecord record = saved.get(i);
+            entry.putLong(record.getExpirationMillis())
+                    .put(record.getInetResult() != null ? KIND_ADDRESS : KIND_TEXT)
+                    .putShort((short) data.get(i).length).put(data.get(i));
+        }
+        return entry.array();
+    }
+
+    /** Writes the snapshot of a cache periodically, and once more when closed, e.g. on
+     * shutdown. Failed writes are reported on standard error, and retried at the next period.
+     */
+    public static final class Writer implements Closeable {
+
+        private final DNSCache cache;
+        private final Path path;
+        private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "dns-cache-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        /** Starts writing snapshots of a cache.
+         *
+         * @param cache           Cache whose records are saved.
+         * @param path            Snapshot file.
+         * @param intervalSeconds Time between two snapshots.
+         */
+        public Writer(DNSCache cache, Path path, long intervalSeconds) {
+            this.cache = cache;
+            this.path = path;
+            timer.scheduleWithFixedDelay(this::writeQuietly, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+
+        private synchronized void writeQuietly() {
+            try {
+                write(cache, path);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Could not write cache snapshot " + path + " (" + e.getMessage() + ").");
+            }
+        }
+
+        /** Stops the periodic writes, and writes a last snapshot. */
+        @Override
+        public void close() {
+            timer.shutdownNow();
+            writeQuietly();
+        }
+    }
+}
@@ -1,19 +1,162 @@
 package ca.ubc.dnslookup;
 
+import java.lang.ref.WeakReference;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
 
 /** This class handles a cache of DNS results. It is based on a map that links nodes (queries)
  * to a set of resource records (results). Cached results are only maintained for the duration
- * of the TTL (time-to-live) returned by the server, and are deleted before being returned to
- * the user.
+ * of the TTL (time-to-live) returned by the server, and are filtered out before being returned
+ * to the user.
+ *
+ * The cache is safe for use by concurrent lookups. Results are kept in a concurrent hash map
+ * of immutable entries: readers never lock and never modify the map, while writers replace a
+ * node's entry atomically.
+ *
+ * The cache may be bounded either by a number of records or by an estimated number of bytes.
+ * Once the limit is reached, nodes are evicted using a frequency-aware policy (see
+ * WindowTinyLfuPolicy). The limit of the shared instance is read from the system properties
+ * dnslookup.cache.maxRecords or dnslookup.cache.maxBytes.
+ *
+ * Expired records are reclaimed by a timing wheel (see TimingWheel), advanced on every write
+ * and once per second by a background thread, so nodes nobody reads again are removed too.
+ * Reads only compare record deadlines against the monotonic clock, and never sweep.
+ *
+ * Negative answers are cached too (RFC 2308): a node known to have no records of its type
+ * (NODATA), or a name known not to exist at all (NXDOMAIN), is remembered for the negative TTL
+ * of the response, so it can be answered without querying any server.
+ *
+ * The zones for which NS records are cached are also indexed (see DelegationIndex), so a
+ * lookup can find the closest enclosing delegation of a name, and start there rather than at
+ * the root.
+ *
+ * With a Prefetcher attached, the cache counts how often each entry is read, and asks the
+ * prefetcher to refresh popular entries in the background once they enter the last part of
+ * their TTL, so they are renewed before they expire instead of missing.
+ *
+ * Optionally, expired records are kept for a stale window (RFC 8767), during which they are
+ * no longer returned by getCachedResults, but can still be served by getStaleResults when no
+ * server answers in time. The stale window of the shared instance is read from the system
+ * property dnslookup.cache.staleSeconds; it is 0 (no stale records) by default.
+ *
+ * A cache can be started warm from a snapshot written by an earlier run (see CacheSnapshot),
+ * whose records are read lazily, the first time each node misses, and only that time.
  */
 public class DNSCache {
 
-    private static DNSCache instance = new DNSCache();
+    private static final long DEFAULT_MAX_RECORDS = 1_000_000;
+    /** Expected size of a cached node, used to size the frequency sketch for a byte budget. */
+    private static final long AVERAGE_ENTRY_BYTES = 512;
 
+    /** Longest time a negative answer is cached, in seconds, as suggested by RFC 2308. */
+    private static final long MAX_NEGATIVE_TTL = 3 * 60 * 60;
 
-    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
+    /** TTL of the stale records returned to clients, in seconds, as suggested by RFC 8767. */
+    public static final long STALE_ANSWER_TTL = 30;
+
+    private static final long EXPIRY_INTERVAL_MILLIS = 1000;
+    private static final ScheduledExecutorService expiryTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "dns-cache-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static DNSCache instance = fromSystemProperties();
+
+
+    private final ConcurrentHashMap<DNSNode, CacheEntry> cachedResults = new ConcurrentHashMap<>();
+    private final DelegationIndex delegations = new DelegationIndex();
+
+    // Eviction and expiration state, guarded by the eviction lock; the policy is null when the
+    // cache is unbounded
+    private final WindowTinyLfuPolicy policy;
+    private final boolean weighByBytes;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final ReadBuffer readBuffer = new ReadBuffer();
+    private final TimingWheel timingWheel = new TimingWheel(System.nanoTime());
+    private long expirationCount;
+
+    private volatile long staleNanos = 0;
+    private volatile Prefetcher prefetcher;
+    private volatile CacheSnapshot snapshot;
+    private final LongAdder prefetchedEntries = new LongAdder();
+    private final LongAdder prefetchHits = new LongAdder();
+    private final LongAdder prefetchWaste = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder inserts = new LongAdder();
+
+    /** Creates a cache without any size limit. Records are kept until they expire.
+     */
+    public DNSCache() {
+        this(null, false);
+    }
+
+    private DNSCache(long maximumWeight, boolean weighByBytes) {
+        this(new WindowTinyLfuPolicy(maximumWeight,
+                weighByBytes ? maximumWeight / AVERAGE_ENTRY_BYTES : maximumWeight), weighByBytes);
+    }
+
+    private DNSCache(WindowTinyLfuPolicy policy, boolean weighByBytes) {
+        this.policy = policy;
+        this.weighByBytes = weighByBytes;
+        ExpiryTask.start(this);
+    }
+
+    /** Creates a cache holding at most the specified number of resource records.
+     *
+     * @param maximumRecords Maximum number of records kept in the cache.
+     * @return A new bounded cache.
+     */
+    public static DNSCache withMaximumRecords(long maximumRecords) {
+        if (maximumRecords <= 0)
+            throw new IllegalArgumentException("Maximum number of records must be positive");
+        return new DNSCache(maximumRecords, false);
+    }
+
+    /** Creates a cache whose records use at most approximately the specified amount of heap.
+     *
+     * @param maximumBytes Maximum estimated size of the cache, in bytes.
+     * @return A new bounded cache.
+     */
+    public static DNSCache withMaximumBytes(long maximumBytes) {
+        if (maximumBytes <= 0)
+            throw new IllegalArgumentException("Maximum number of bytes must be positive");
+        return new DNSCache(maximumBytes, true);
+    }
+
+    private static DNSCache fromSystemProperties() {
+        Long maximumBytes = Long.getLong("dnslookup.cache.maxBytes");
+        DNSCache cache = maximumBytes != null
+                ? withMaximumBytes(maximumBytes)
+                : withMaximumRecords(Long.getLong("dnslookup.cache.maxRecords", DEFAULT_MAX_RECORDS));
+        cache.setStaleWindow(Long.getLong("dnslookup.cache.staleSeconds", 0));
+        return cache;
+    }
+
+    /** Sets how long records are kept after they expire, to be served stale if their servers
+     * cannot be reached (RFC 8767). Records that already expired are not brought back.
+     *
+     * @param seconds Stale window in seconds, or 0 to drop records as soon as they expire.
+     */
+    public void setStaleWindow(long seconds) {
+        if (seconds < 0)
+            throw new IllegalArgumentException("Stale window must not be negative");
+        staleNanos = seconds * 1_000_000_000L;
+    }
+
+    /** Returns how long records are kept after they expire, in seconds. */
+    public long getStaleWindowSeconds() {
+        return staleNanos / 1_000_000_000L;
+    }
 
     /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
      * method returns the single DNS cache instance.
@@ -25,20 +168,121 @@ public class DNSCache {
     }
 
     /** Returns a set of resource records already cached for a particular query. If no results
-     * are cached for the specified query, returns an empty set. Expired results are removed
-     * from the cache before being returned. This method does not perform the query itself, it
-     * only returns previously cached results.
+     * are cached for the specified query, returns an empty set. Expired results are left out
+     * of the returned set. This method does not perform the query itself, it only returns
+     * previously cached results.
      *
      * @param node DNS query (host name and record type) to obtain cached results.
      * @return A potentially empty set of resources associated to the query.
      */
     public Set<ResourceRecord> getCachedResults(DNSNode node) {
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
-        if (results == null)
+        CacheEntry entry = cachedResults.get(node);
+        if (policy != null && readBuffer.offer(node))
+            tryDrainReadBuffer();
+        if (entry == null) {
+            CacheSnapshot current = snapshot;
+            if (current == null || (entry = loadFromSnapshot(node, current)) == null) {
+                misses.increment();
+                return Collections.emptySet();
+            }
+        }
+
+        long now = System.nanoTime();
+        Set<ResourceRecord> results = entry.validRecords(now);
+        (results.isEmpty() ? misses : hits).increment();
+        Prefetcher current = prefetcher;
+        if (current != null && !results.isEmpty())
+            checkRefreshAhead(entry, now, current);
+        return results;
+    }
+
+    /** Copies the records of a node from the snapshot the cache was started with, the first
+     * time the node misses; the snapshot then drops the node, so later misses (e.g. once the
+     * node is evicted or expired) are not served from it. Records expired since the snapshot
+     * was written are left out.
+     *
+     * @return The new entry of the node, or null if the snapshot has no valid records for it.
+     */
+    private CacheEntry loadFromSnapshot(DNSNode node, CacheSnapshot current) {
+        List<ResourceRecord> records = current.lookup(node, System.currentTimeMillis());
+        for (ResourceRecord record : records)
+            addResult(record);
+        return records.isEmpty() ? null : cachedResults.get(node);
+    }
+
+    /** Starts the cache warm from a snapshot written by an earlier run (see CacheSnapshot).
+     * Only the zones of the snapshot are indexed right away; the records of a node are copied
+     * into the cache the first time getCachedResults misses it, so loading takes about as long
+     * as mapping the file. Records already in the cache take precedence over the snapshot.
+     *
+     * @param snapshot Snapshot to be read, or null to stop reading the current one.
+     */
+    public void loadSnapshot(CacheSnapshot snapshot) {
+        if (snapshot != null)
+            snapshot.forEachZone(System.currentTimeMillis(), delegations::add);
+        this.snapshot = snapshot;
+    }
+
+    /** Returns the snapshot the cache was started with, or null if it was started cold. */
+    CacheSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /** Returns the records of a node that have expired, but are still in the stale window,
+     * with their TTL set to STALE_ANSWER_TTL. They are meant to answer a client when the
+     * servers of the node do not respond in time, never to be cached again.
+     *
+     * @param node DNS query (host name and record type) to obtain stale results.
+     * @return A potentially empty set of copies of the stale records.
+     */
+    public Set<ResourceRecord> getStaleResults(DNSNode node) {
+        long stale = staleNanos;
+        CacheEntry entry = cachedResults.get(node);
+        if (stale == 0 || entry == null)
             return Collections.emptySet();
+        Set<ResourceRecord> results = new HashSet<>();
+        for (ResourceRecord record : entry.staleRecords(System.nanoTime(), stale))
+            results.add(record.getInetResult() != null
+                    ? new ResourceRecord(record.getHostName(), record.getType(), STALE_ANSWER_TTL, record.getInetResult())
+                    : new ResourceRecord(record.getHostName(), record.getType(), STALE_ANSWER_TTL, record.getTextResult()));
+        return results;
+    }
 
-        results.keySet().removeIf(record -> !record.isStillValid());
-        return Collections.unmodifiableSet(results.keySet());
+    /** Counts a read of an entry, and has it refreshed if it is popular and about to expire. */
+    private void checkRefreshAhead(CacheEntry entry, long now, Prefetcher current) {
+        if (entry.recordPrefetchUse(now))
+            prefetchHits.increment();
+        int minimumHits = current.getMinimumHits();
+        if (entry.recordHit(minimumHits) >= minimumHits
+                && entry.isInRefreshWindow(now, current.getWindowFraction())
+                && entry.requestRefresh()
+                && !current.prefetch(entry.getNode(), entry.earliestExpirationNanos()))
+            entry.cancelRefresh();
+    }
+
+    /** Attaches the prefetcher asked to refresh popular entries before they expire.
+     *
+     * @param prefetcher Prefetcher to be used, or null to stop refreshing entries ahead.
+     */
+    void setPrefetcher(Prefetcher prefetcher) {
+        this.prefetcher = prefetcher;
+    }
+
+    /** Marks the entry of a node as renewed by a refresh-ahead, if its records now expire
+     * after those it had before the refresh.
+     *
+     * @param node                     Node that was refreshed.
+     * @param refreshedExpirationNanos Time at which the entry would have expired without the refresh.
+     */
+    void markPrefetched(DNSNode node, long refreshedExpirationNanos) {
+        cachedResults.computeIfPresent(node, (k, entry) -> {
+            if (entry.isNegative() || entry.earliestExpirationNanos() - refreshedExpirationNanos <= 0)
+                return entry;
+            if (entry.isUnusedPrefetch())
+                prefetchWaste.increment();
+            prefetchedEntries.increment();
+            return entry.asPrefetched(refreshedExpirationNanos);
+        });
     }
 
     /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
@@ -50,44 +294,381 @@ public class DNSCache {
      */
     public void addResult(ResourceRecord record) {
 
-        if (!record.isStillValid()) return;
+        long now = System.nanoTime();
+        if (!record.isStillValid(now)) return;
+
+        cachedResults.compute(record.getNode(),
+                (node, entry) -> entry == null ? new CacheEntry(node, record) : entry.with(record, now - staleNanos));
+        inserts.increment();
+        DNSEvents.CacheInsert event = new DNSEvents.CacheInsert();
+        if (event.shouldCommit()) {
+            event.name = record.getHostName();
+            event.type = record.getType().name();
+            event.ttl = record.getTTL();
+            event.commit();
+        }
+        if (record.getType() == RecordType.NS)
+            delegations.add(record.getHostName());
+        afterWrite(record.getNode(), now);
+    }
+
+    /** Caches a negative answer (RFC 2308). A name error (NXDOMAIN) means that the host name
+     * does not exist at all, so it applies to every record type of the name. Otherwise
+     * (NODATA) the name exists, but has no records of the node's type. Negative answers do not
+     * replace valid records already cached for the node, and are kept for at most three
+     * hours.
+     *
+     * @param node      Host name and record type that have no records.
+     * @param ttl       Negative TTL, in seconds: the smaller of the TTL of the SOA record in
+     *                  the response and of the SOA MINIMUM field.
+     * @param nameError true if the host name does not exist, false if it has no records of
+     *                  the node's type only.
+     */
+    public void addNegativeResult(DNSNode node, long ttl, boolean nameError) {
+        if (ttl <= 0) return;
 
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(record.getNode());
-        if (results == null) {
-            results = new HashMap<>();
-            cachedResults.put(record.getNode(), results);
+        long now = System.nanoTime();
+        long expirationNanos = now + Math.min(ttl, MAX_NEGATIVE_TTL) * 1_000_000_000L;
+        DNSNode key = nameError ? nameErrorKey(node.getHostName()) : node;
+        cachedResults.compute(key, (k, entry) -> {
+            if (entry != null && (entry.isNegative()
+                    ? entry.earliestExpirationNanos() - expirationNanos >= 0
+                    : !entry.validRecords(now).isEmpty()))
+                return entry;
+            return CacheEntry.negative(k, expirationNanos);
+        });
+        inserts.increment();
+        DNSEvents.CacheInsert event = new DNSEvents.CacheInsert();
+        if (event.shouldCommit()) {
+            event.name = key.getHostName();
+            event.type = key.getType().name();
+            event.ttl = Math.min(ttl, MAX_NEGATIVE_TTL);
+            event.negative = true;
+            event.commit();
         }
+        afterWrite(key, now);
+    }
+
+    /** Returns true if a negative answer is cached for a node: either the node has no records
+     * of its type, or its host name does not exist. If so, the node should not be queried.
+     *
+     * @param node DNS query (host name and record type) to be checked.
+     * @return true if the node is known to have no records, false otherwise.
+     */
+    public boolean isNegativelyCached(DNSNode node) {
+        long now = System.nanoTime();
+        return isValidNegative(node, now) || isValidNegative(nameErrorKey(node.getHostName()), now);
+    }
 
-        ResourceRecord oldRecord = results.get(record);
-        if (oldRecord == null || oldRecord.expiresBefore(record))
-            results.put(record, record);
+    private boolean isValidNegative(DNSNode key, long nowNanos) {
+        CacheEntry entry = cachedResults.get(key);
+        if (entry == null)
+            return false;
+        if (policy != null && readBuffer.offer(key))
+            tryDrainReadBuffer();
+        return entry.isValidNegative(nowNanos);
+    }
+
+    /** Returns the node under which a name error is cached. The OTHER type is never queried,
+     * so this node holds no records of its own.
+     */
+    private static DNSNode nameErrorKey(String hostName) {
+        return new DNSNode(hostName, RecordType.OTHER);
+    }
+
+    /** Schedules the expiry of a node just written, accounts for its weight (possibly evicting
+     * other nodes) and reclaims expired records.
+     */
+    private void afterWrite(DNSNode node, long now) {
+        evictionLock.lock();
+        try {
+            // Read the entry under the lock, as a concurrent eviction may have removed it
+            CacheEntry entry = cachedResults.get(node);
+            if (entry != null) {
+                timingWheel.schedule(node, entry.earliestExpirationNanos() + staleNanos);
+                if (policy != null) {
+                    readBuffer.drainTo(policy::recordAccess);
+                    policy.recordWrite(node, weigh(entry), this::evict);
+                }
+            }
+            timingWheel.advance(now, this::expire);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /** Returns the zones enclosing a host name (including the name itself) for which NS records
+     * may be cached, the deepest first. The NS records may have expired since, so callers
+     * still look them up with getCachedResults.
+     *
+     * @param hostName Host name being looked up.
+     * @return A potentially empty list of zone names, found in time proportional to the
+     * number of labels of the host name.
+     */
+    List<String> getEnclosingDelegations(String hostName) {
+        return delegations.enclosingZones(hostName);
+    }
+
+    /** Returns the number of zones for which NS records are cached.
+     *
+     * @return The number of zone cuts in the delegation index.
+     */
+    public int getDelegationCount() {
+        return delegations.size();
     }
 
     /** Perform a specific action for each query and its set of cached records. This action can
-     * be specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * be specified using a lambda expression or method name. Expired records are skipped.
      *
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            if (!entry.getValue().keySet().isEmpty())
-                consumer.accept(entry.getKey(), entry.getValue().keySet());
+        long now = System.nanoTime();
+        for (CacheEntry entry : cachedResults.values()) {
+            Set<ResourceRecord> records = entry.validRecords(now);
+            if (!records.isEmpty())
+                consumer.accept(entry.getNode(), records);
         }
     }
 
     /** Perform a specific action for each query and individual record. This action can be
-     * specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * specified using a lambda expression or method name. Expired records are skipped.
      *
      * @param consumer Action to be performed for each query and record.
      */
     public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
+        long now = System.nanoTime();
+        for (CacheEntry entry : cachedResults.values())
+            entry.validRecords(now).forEach(record -> consumer.accept(entry.getNode(), record));
+    }
+
+    /** Removes the records whose TTL has ended. This is done automatically every second and
+     * whenever a record is added, so calling this method is never required.
+     */
+    public void cleanUp() {
+        evictionLock.lock();
+        try {
+            timingWheel.advance(System.nanoTime(), this::expire);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /** Returns the number of nodes currently held in the cache, including nodes whose records
+     * have expired but have not been reclaimed yet.
+     *
+     * @return The number of nodes in the cache.
+     */
+    public int getNodeCount() {
+        return cachedResults.size();
+    }
+
+    /** Returns the number of reads of getCachedResults that returned records. Lookups read
+     * the cache several times (for CNAME records and name servers too), so this is not a
+     * number of lookups.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /** Returns the number of reads of getCachedResults that returned no record. */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /** Returns the fraction of reads of getCachedResults that returned records. */
+    public double getHitRatio() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /** Returns the number of records and negative answers added to the cache. */
+    public long getInsertCount() {
+        return inserts.sum();
+    }
+
+    /** Returns the number of expired records reclaimed so far.
+     *
+     * @return The number of records removed from the cache because their TTL ended.
+     */
+    public long getExpirationCount() {
+        evictionLock.lock();
+        try {
+            return expirationCount;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /** Returns the number of nodes evicted so far to keep the cache within its size limit.
+     *
+     * @return The number of evicted nodes, always 0 for an unbounded cache.
+     */
+    public long getEvictionCount() {
+        return withEvictionLock(() -> policy.evictionCount());
+    }
+
+    /** Returns the total weight (records or estimated bytes, depending on how the cache is
+     * bounded) of the nodes evicted so far.
+     *
+     * @return The weight evicted so far, always 0 for an unbounded cache.
+     */
+    public long getEvictedWeight() {
+        return withEvictionLock(() -> policy.evictedWeight());
+    }
+
+    /** Returns the number of newly added nodes that were evicted right away because they were
+     * accessed less often than the nodes they would have replaced.
+     *
+     * @return The number of rejected nodes, always 0 for an unbounded cache.
+     */
+    public long getRejectedCount() {
+        return withEvictionLock(() -> policy.rejectedCount());
+    }
+
+    /** Returns the current weight of the cache, in records or estimated bytes depending on how
+     * the cache is bounded.
+     *
+     * @return The current weight of the cache, always 0 for an unbounded cache.
+     */
+    public long getWeightedSize() {
+        return withEvictionLock(() -> policy.weightedSize());
+    }
+
+    /** Returns the number of entries renewed by a refresh-ahead before they expired. */
+    public long getPrefetchedCount() {
+        return prefetchedEntries.sum();
+    }
+
+    /** Returns the number of prefetched entries read after the entry they refreshed would
+     * have expired, i.e. the number of misses avoided by refreshing ahead.
+     */
+    public long getPrefetchHitCount() {
+        return prefetchHits.sum();
+    }
+
+    /** Returns the number of prefetched entries that expired, were evicted or were refreshed
+     * again without being read after the entry they refreshed would have expired.
+     */
+    public long getPrefetchWasteCount() {
+        return prefetchWaste.sum();
+    }
+
+    private void expire(DNSNode node) {
+        // Records are only reclaimed once they are past the stale window too
+        long stale = staleNanos;
+        long now = System.nanoTime() - stale;
+        CacheEntry entry = cachedResults.get(node);
+        if (entry == null)
+            return;
+        CacheEntry remaining = entry.withoutExpired(now);
+        if (remaining == entry) {
+            timingWheel.schedule(node, entry.earliestExpirationNanos() + stale);
+            return;
+        }
+        // Only replace the entry if no writer changed it in the meantime; the writer will then
+        // reschedule the node itself.
+        if (remaining == null ? !cachedResults.remove(node, entry) : !cachedResults.replace(node, entry, remaining))
+            return;
+        expirationCount += entry.recordCount() - (remaining == null ? 0 : remaining.recordCount());
+        if (remaining != null) {
+            timingWheel.schedule(node, remaining.earliestExpirationNanos() + stale);
+            if (policy != null)
+                policy.updateWeight(node, weigh(remaining));
+        } else {
+            if (policy != null)
+                policy.remove(node);
+            removeDelegation(node);
+            if (entry.isUnusedPrefetch())
+                prefetchWaste.increment();
+            recordEviction(node, entry, "expired");
+        }
+    }
+
+    private void evict(DNSNode node) {
+        CacheEntry entry = cachedResults.remove(node);
+        if (entry != null && entry.isUnusedPrefetch())
+            prefetchWaste.increment();
+        timingWheel.deschedule(node);
+        removeDelegation(node);
+        if (entry != null)
+            recordEviction(node, entry, "evicted");
+    }
+
+    private static void recordEviction(DNSNode node, CacheEntry entry, String cause) {
+        DNSEvents.CacheEvict event = new DNSEvents.CacheEvict();
+        if (event.shouldCommit()) {
+            event.name = node.getHostName();
+            event.type = node.getType().name();
+            event.records = entry.recordCount();
+            event.cause = cause;
+            event.commit();
+        }
+    }
+
+    private void removeDelegation(DNSNode node) {
+        if (node.getType() != RecordType.NS)
+            return;
+        delegations.remove(node.getHostName());
+        // A writer may have cached the zone again in the meantime
+        if (cachedResults.containsKey(node))
+            delegations.add(node.getHostName());
+    }
+
+    private long weigh(CacheEntry entry) {
+        if (weighByBytes)
+            return entry.estimatedBytes();
+        // A negative entry counts as one record
+        return Math.max(1, entry.recordCount());
+    }
+
+    private void tryDrainReadBuffer() {
+        if (evictionLock.tryLock()) {
+            try {
+                readBuffer.drainTo(policy::recordAccess);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /** Periodically advances the timing wheel of a cache. The task only keeps a weak reference
+     * to the cache, and cancels itself once the cache has been garbage collected.
+     */
+    private static final class ExpiryTask implements Runnable {
+        private final WeakReference<DNSCache> cache;
+        private volatile ScheduledFuture<?> future;
+
+        private ExpiryTask(DNSCache cache) {
+            this.cache = new WeakReference<>(cache);
+        }
+
+        static void start(DNSCache cache) {
+            ExpiryTask task = new ExpiryTask(cache);
+            task.future = expiryTimer.scheduleWithFixedDelay(task,
+                    EXPIRY_INTERVAL_MILLIS, EXPIRY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            DNSCache target = cache.get();
+            if (target != null)
+                target.cleanUp();
+            else if (future != null)
+                future.cancel(false);
+        }
+    }
+
+    private long withEvictionLock(LongSupplier statistic) {
+        if (policy == null)
+            return 0;
+        evictionLock.lock();
+        try {
+            return statistic.getAsLong();
+        } finally {
+            evictionLock.unlock();
         }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,171 @@
+package ca.ubc.dnslookup;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/** Java Flight Recorder events of the resolver, so lookups and upstream queries can be lined
+ * up with GC pauses and I/O in the same recording. Events are only recorded while a recording
+ * runs, e.g. one started with
+ * <pre>
+ * java -XX:StartFlightRecording:settings=profile,filename=dns.jfr -jar DNSLookupService.jar ...
+ * </pre>
+ * The cache events, of which there is one per record, are disabled by default; a recording
+ * enables them with ca.ubc.dnslookup.CacheInsert#enabled=true and
+ * ca.ubc.dnslookup.CacheEvict#enabled=true.
+ *
+ * Events are created where they happen and only filled in if {@code shouldCommit()}; while
+ * an event type is disabled, that check is constant and the JIT removes the event altogether.
+ * Stack traces are not recorded, since every event of a type comes from the same place.
+ */
+final class DNSEvents {
+
+    private static final String CATEGORY = "DNS Resolver";
+
+    private DNSEvents() {
+    }
+
+    @Name("ca.ubc.dnslookup.QuerySent")
+    @Label("Query Sent")
+    @Category({ CATEGORY, "Upstream" })
+    @Description("Query sent to a DNS server")
+    @StackTrace(false)
+    static final class QuerySent extends Event {
+        @Label("Server")
+        String server;
+        @Label("Transaction ID")
+        int id;
+        @Label("Host Name")
+        String name;
+        @Label("Record Type")
+        String type;
+        @Label("Size")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("ca.ubc.dnslookup.QueryAnswered")
+    @Label("Query Answered")
+    @Category({ CATEGORY, "Upstream" })
+    @Description("Response received from a DNS server; the duration is the round-trip time")
+    @StackTrace(false)
+    static final class QueryAnswered extends Event {
+        @Label("Server")
+        String server;
+        @Label("Transaction ID")
+        int id;
+        @Label("Host Name")
+        String name;
+        @Label("Record Type")
+        String type;
+        @Label("Query Size")
+        @DataAmount
+        int queryBytes;
+        @Label("Response Size")
+        @DataAmount
+        int responseBytes;
+    }
+
+    @Name("ca.ubc.dnslookup.QueryTimedOut")
+    @Label("Query Timed Out")
+    @Category({ CATEGORY, "Upstream" })
+    @Description("Query that got no response within its retransmission timeout, which is the duration")
+    @StackTrace(false)
+    static final class QueryTimedOut extends Event {
+        @Label("Server")
+        String server;
+        @Label("Transaction ID")
+        int id;
+        @Label("Host Name")
+        String name;
+        @Label("Record Type")
+        String type;
+        @Label("Query Size")
+        @DataAmount
+        int queryBytes;
+    }
+
+    @Name("ca.ubc.dnslookup.ResponseDecoded")
+    @Label("Response Decoded")
+    @Category(CATEGORY)
+    @Description("Response decoded and cached; the duration is the decode time")
+    @StackTrace(false)
+    static final class ResponseDecoded extends Event {
+        @Label("Transaction ID")
+        int id;
+        @Label("Answers")
+        int answers;
+        @Label("Authority Records")
+        int authorities;
+        @Label("Additional Records")
+        int additionals;
+        @Label("Negative Answer")
+        boolean negative;
+    }
+
+    @Name("ca.ubc.dnslookup.CacheInsert")
+    @Label("Cache Insert")
+    @Category({ CATEGORY, "Cache" })
+    @Description("Record or negative answer added to the cache")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class CacheInsert extends Event {
+        @Label("Host Name")
+        String name;
+        @Label("Record Type")
+        String type;
+        @Label("TTL")
+        @Timespan(Timespan.SECONDS)
+        long ttl;
+        @Label("Negative Answer")
+        boolean negative;
+    }
+
+    @Name("ca.ubc.dnslookup.CacheEvict")
+    @Label("Cache Evict")
+    @Category({ CATEGORY, "Cache" })
+    @Description("Node removed from the cache, because its records expired or to keep the cache within its size limit")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class CacheEvict extends Event {
+        @Label("Host Name")
+        String name;
+        @Label("Record Type")
+        String type;
+        @Label("Records")
+        int records;
+        @Label("Cause")
+        String cause;
+    }
+
+    @Name("ca.ubc.dnslookup.LookupCompleted")
+    @Label("Lookup Completed")
+    @Category(CATEGORY)
+    @Description("Client lookup completed; the duration is its total latency")
+    @StackTrace(false)
+    static final class LookupCompleted extends Event {
+        @Label("Host Name")
+        String name;
+        @Label("Record Type")
+        String type;
+        @Label("Round Trips")
+        int queries;
+        @Label("Referrals")
+        int referrals;
+        @Label("CNAME Records")
+        int cnames;
+        @Label("Records")
+        int records;
+        @Label("Cached")
+        @Description("Answered from the cache without querying any server")
+        boolean cached;
+        @Label("Error")
+        String error;
+    }
+}
@@ -1,18 +1,54 @@
 package ca.ubc.dnslookup;
 
+import javax.management.JMException;
+import java.io.BufferedReader;
 import java.io.Console;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 
 public class DNSLookupService {
 
     private static boolean p1Flag = false; // isolating part 1
-    private static final int MAX_INDIRECTION_LEVEL = 10;
     private static InetAddress rootServer;
     private static DNSCache cache = DNSCache.getInstance();
+    private static DNSResolver resolver;
+    private static Prefetcher prefetcher;
+    private static DNSMetrics metrics;
+
+    /** Default time between two cache snapshots, in seconds. */
+    private static final long DEFAULT_SNAPSHOT_INTERVAL_SECONDS = 300;
+
+    /**
+     * Loads the cache snapshot written by the last run, if any, then writes a new one
+     * periodically and on exit.
+     *
+     * @param path            Snapshot file.
+     * @param intervalSeconds Time between two snapshots.
+     */
+    private static void startSnapshots(Path path, long intervalSeconds) {
+        try {
+            CacheSnapshot snapshot = CacheSnapshot.open(path);
+            cache.loadSnapshot(snapshot);
+            System.out.println("Loaded cache snapshot with " + snapshot.getNodeCount() + " nodes.");
+        } catch (NoSuchFileException e) {
+            // First run: start cold
+        } catch (IOException e) {
+            System.err.println("Could not load cache snapshot " + path + " (" + e.getMessage() + ").");
+        }
+        CacheSnapshot.Writer writer = new CacheSnapshot.Writer(cache, path, intervalSeconds);
+        Runtime.getRuntime().addShutdownHook(new Thread(writer::close, "dns-cache-snapshot-shutdown"));
+    }
 
     /**
      * Main function, called when program is first invoked.
@@ -21,12 +57,28 @@ public class DNSLookupService {
      */
     public static void main(String[] args) {
 
+        String batchFile = null;
+        int batchConcurrency = BatchLookup.DEFAULT_CONCURRENCY;
         if (args.length == 2 && args[1].equals("-p1")) {
             p1Flag = true;
+        } else if ((args.length == 3 || args.length == 4) && args[1].equals("-batch")) {
+            batchFile = args[2];
+            try {
+                if (args.length == 4)
+                    batchConcurrency = Integer.parseInt(args[3]);
+            } catch (NumberFormatException ex) {
+                batchConcurrency = 0;
+            }
+            if (batchConcurrency <= 0) {
+                System.err.println("Invalid concurrency: " + args[3]);
+                System.exit(1);
+            }
         } else if (args.length != 1) {
             System.err.println("Invalid call. Usage:");
-            System.err.println("\tjava -jar DNSLookupService.jar rootServer");
+            System.err.println("\tjava -jar DNSLookupService.jar rootServer [-batch file [concurrency]]");
             System.err.println("where rootServer is the IP address (in dotted form) of the root DNS server to start the search at.");
+            System.err.println("With -batch, the host names listed in file (or standard input if file is -) are looked up,");
+            System.err.println("at most concurrency at a time, and the program exits.");
             System.exit(1);
         }
 
@@ -39,12 +91,46 @@ public class DNSLookupService {
         }
 
         try {
-            DNSQueryHandler.openSocket();
+            resolver = new DNSResolver(cache, DNSQueryHandler.getTransport(), rootServer);
         } catch (SocketException ex) {
             ex.printStackTrace();
             System.exit(1);
         }
 
+        // Expose the counters of the resolver through JMX, and print them periodically if asked to
+        metrics = new DNSMetrics(resolver);
+        try {
+            metrics.register();
+        } catch (JMException | SecurityException ex) {
+            System.err.println("Could not register metrics MBean (" + ex.getMessage() + ").");
+        }
+        long dumpSeconds = Long.getLong("dnslookup.metrics.dumpSeconds", 0);
+        if (dumpSeconds > 0)
+            metrics.dumpPeriodically(System.err, dumpSeconds);
+
+        // Refresh popular names before they expire, unless the rate is set to 0
+        double prefetchRate = Double.parseDouble(System.getProperty("dnslookup.prefetch.maxPerSecond",
+                String.valueOf(Prefetcher.DEFAULT_MAX_PER_SECOND)));
+        if (prefetchRate > 0 && !p1Flag) {
+            prefetcher = new Prefetcher(resolver, Prefetcher.DEFAULT_WINDOW_FRACTION,
+                    Prefetcher.DEFAULT_MINIMUM_HITS, prefetchRate);
+            prefetcher.start();
+        }
+
+        // Start warm from the snapshot of the last run, and keep it up to date
+        String snapshotFile = System.getProperty("dnslookup.cache.snapshot");
+        if (snapshotFile != null && !p1Flag)
+            startSnapshots(Paths.get(snapshotFile),
+                    Long.getLong("dnslookup.cache.snapshotSeconds", DEFAULT_SNAPSHOT_INTERVAL_SECONDS));
+
+        if (batchFile != null) {
+            // Batch mode: results on standard output, summary on standard error
+            boolean success = runBatch(batchFile, batchConcurrency, System.err);
+            resolver.close();
+            DNSQueryHandler.closeSocket();
+            System.exit(success ? 0 : 1);
+        }
+
         Scanner in = new Scanner(System.in);
         Console console = System.console();
         do {
@@ -78,6 +164,7 @@ public class DNSLookupService {
                 if (commandArgs.length == 2) {
                     try {
                         rootServer = InetAddress.getByName(commandArgs[1]);
+                        resolver.setRootServer(rootServer);
                         System.out.println("Root DNS server is now: " + rootServer.getHostAddress());
                     } catch (UnknownHostException e) {
                         System.out.println("Invalid root server (" + e.getMessage() + ").");
@@ -86,24 +173,45 @@ public class DNSLookupService {
                     System.out.println("Invalid call. Format:\n\tserver IP");
                 }
             } else if (commandArgs[0].equalsIgnoreCase("trace")) {
-                // TRACE: Turn trace setting on or off
-                if (commandArgs.length == 2) {
-                    boolean verboseTracing = false;
-                    if (commandArgs[1].equalsIgnoreCase("on")) {
-                        verboseTracing = true;
-                        DNSQueryHandler.setVerboseTracing(true);
-                    }
-                    else if (commandArgs[1].equalsIgnoreCase("off")) {
-                        DNSQueryHandler.setVerboseTracing(false);
+                // TRACE: Turn trace setting on or off, optionally writing it to a file
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                    DNSQueryHandler.setTrace(null);
+                    System.out.println("Verbose tracing is now: OFF");
+                } else if (commandArgs.length >= 2 && commandArgs.length <= 4 && commandArgs[1].equalsIgnoreCase("on")) {
+                    TraceLog.Format format = TraceLog.Format.TEXT;
+                    try {
+                        if (commandArgs.length == 4)
+                            format = TraceLog.Format.valueOf(commandArgs[3].toUpperCase());
+                    } catch (IllegalArgumentException ex) {
+                        System.err.println("Invalid call. Format:\n\ttrace on [file [text|binary]]|off");
+                        continue;
                     }
-                    else {
-                        System.err.println("Invalid call. Format:\n\ttrace on|off");
+                    try {
+                        DNSQueryHandler.setTrace(commandArgs.length == 2 ? TraceLog.toStandardOutput()
+                                : TraceLog.open(Paths.get(commandArgs[2]), format, TraceLog.DEFAULT_CAPACITY));
+                    } catch (IOException ex) {
+                        System.err.println("Could not open trace file (" + ex.getMessage() + ").");
                         continue;
                     }
-                    System.out.println("Verbose tracing is now: " + (verboseTracing ? "ON" : "OFF"));
+                    System.out.println("Verbose tracing is now: ON");
                 } else {
-                    System.err.println("Invalid call. Format:\n\ttrace on|off");
+                    System.err.println("Invalid call. Format:\n\ttrace on [file [text|binary]]|off");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("timeout")) {
+                // TIMEOUT: Change the time allowed for a whole lookup
+                long timeout = 0;
+                try {
+                    if (commandArgs.length == 2)
+                        timeout = Long.parseLong(commandArgs[1]);
+                } catch (NumberFormatException ex) {
+                    timeout = 0;
+                }
+                if (timeout <= 0) {
+                    System.err.println("Invalid call. Format:\n\ttimeout milliseconds");
+                    continue;
                 }
+                resolver.setLookupTimeout(timeout, TimeUnit.MILLISECONDS);
+                System.out.println("Lookup timeout is now: " + timeout + " ms");
             } else if (commandArgs[0].equalsIgnoreCase("lookup") ||
                     commandArgs[0].equalsIgnoreCase("l")) {
                 // LOOKUP: Find and print all results associated to a name.
@@ -122,20 +230,42 @@ public class DNSLookupService {
                     continue;
                 }
                 findAndPrintResults(commandArgs[1], type);
+            } else if (commandArgs[0].equalsIgnoreCase("batch")) {
+                // BATCH: Look up all host names listed in a file, concurrently
+                int concurrency = BatchLookup.DEFAULT_CONCURRENCY;
+                try {
+                    if (commandArgs.length == 3)
+                        concurrency = Integer.parseInt(commandArgs[2]);
+                } catch (NumberFormatException ex) {
+                    concurrency = 0;
+                }
+                if ((commandArgs.length != 2 && commandArgs.length != 3) || concurrency <= 0) {
+                    System.err.println("Invalid call. Format:\n\tbatch file [concurrency]");
+                    continue;
+                }
+                runBatch(commandArgs[1], concurrency, System.out);
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
                 // DUMP: Print all results still cached
                 cache.forEachNode(DNSLookupService::printResults);
+            } else if (commandArgs[0].equalsIgnoreCase("stats")) {
+                // STATS: Print the counters and latency percentiles of the resolver
+                System.out.println(metrics);
             } else {
                 System.err.println("Invalid command. Valid commands are:");
                 System.err.println("\tlookup fqdn [type]");
-                System.err.println("\ttrace on|off");
+                System.err.println("\tbatch file [concurrency]");
+                System.err.println("\ttrace on [file [text|binary]]|off");
+                System.err.println("\ttimeout milliseconds");
                 System.err.println("\tserver IP");
                 System.err.println("\tdump");
+                System.err.println("\tstats");
                 System.err.println("\tquit");
             }
 
         } while (true);
 
+        DNSQueryHandler.setTrace(null);
+        resolver.close();
         DNSQueryHandler.closeSocket();
         System.out.println("Goodbye!");
     }
@@ -148,129 +278,108 @@ public class DNSLookupService {
      */
     private static void findAndPrintResults(String hostName, RecordType type) {
         DNSNode node = new DNSNode(hostName, type);
-        printResults(node, getResults(node, 0));
+        Set<ResourceRecord> results = getResults(node);
+        // Print the trace of the lookup before its results
+        TraceLog trace = DNSQueryHandler.getTrace();
+        if (trace != null)
+            trace.flush();
+        printResults(node, results);
     }
 
     /**
-     * Finds all the results for a specific node.
+     * Looks up all host names listed in a file, and prints their results as they complete,
+     * followed by the throughput and latency percentiles of the batch.
      *
-     * @param node             Host and record type to be used for search.
-     * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
-     *                         The initial call should be made with 0 (zero), while recursive calls for
-     *                         regarding CNAME results should increment this value by 1. Once this value
-     *                         reaches MAX_INDIRECTION_LEVEL, the function prints an error message and
-     *                         returns an empty set.
-     * @return A set of resource records corresponding to the specific query requested.
+     * @param fileName    Name of the file listing one host name and optional type per line, or
+     *                    "-" for the standard input.
+     * @param concurrency Maximum number of lookups in flight.
+     * @param summaryOut  Stream on which the summary is printed.
+     * @return true if the file could be read, false otherwise.
      */
-    private static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel) {
-        try {
+    private static boolean runBatch(String fileName, int concurrency, PrintStream summaryOut) {
+        BatchLookup batch = new BatchLookup(resolver, concurrency, System.out);
+        try (BufferedReader input = fileName.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in))
+                : new BufferedReader(new FileReader(fileName))) {
+            summaryOut.println(batch.run(input));
+            if (prefetcher != null)
+                summaryOut.println(prefetcher);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Could not read " + fileName + " (" + e.getMessage() + ").");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
 
-            if (p1Flag) { // For isolating part 1 testing only
+    /**
+     * Finds all the results for a specific node. The lookup itself is performed by the
+     * asynchronous resolver; this method waits for it to complete.
+     *
+     * @param node Host and record type to be used for search.
+     * @return A set of resource records corresponding to the specific query requested.
+     */
+    private static Set<ResourceRecord> getResults(DNSNode node) {
+        if (p1Flag) { // For isolating part 1 testing only
+            try {
                 retrieveResultsFromServer(node, rootServer);
-                return Collections.emptySet();
-            } else if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
-                System.err.println("Maximum number of indirection levels reached.");
-                return Collections.emptySet();
+            } catch (IOException | DNSParsingException e) {
+                System.out.println(e.getMessage());
             }
-
-
-            // 1. Check if there is a record of the proper type corresponding to the node. If so, we are done.
-            if (!cache.getCachedResults(node).isEmpty()) {
-                return cache.getCachedResults(node);
-            }
-
-            // 2. Check if there is a CNAME record that corresponds to the Node
-            // If there is recursively search for it
-            Set<ResourceRecord> cnameRecords = cache.getCachedResults(new DNSNode(node.getHostName(), RecordType.CNAME));
-            for (ResourceRecord cnameRecord : cnameRecords) {
-                return getResults(new DNSNode(cnameRecord.getTextResult(), node.getType()), indirectionLevel + 1);
-            }
-            retrieveResultsFromServer(node, rootServer);
-
-        } catch (IOException e) {
-            System.out.println(e.getMessage());
-            return Collections.emptySet();
-        } catch (DNSParsingException e) {
-            System.out.println(e.getMessage());
             return Collections.emptySet();
         }
-        return getResults(node, 0);
 
-        // 3. Select a potential nameserver and if its address is in the additional information or the cache,
-        // repeat the query to this new nameserver
+        try {
+            return resolver.resolve(node).join();
+        } catch (CompletionException e) {
+            System.out.println(e.getCause().getMessage());
+            return Collections.emptySet();
+        }
     }
 
     /**
-     * Retrieves DNS results from a specified DNS server. Queries are sent in iterative mode,
-     * and the query is repeated with a new server if the provided one is non-authoritative.
-     * Results are stored in the cache.
+     * Retrieves DNS results from a specified DNS server, and stores them in the cache. Only
+     * used to test part 1: the query is not repeated with the servers of a referral.
      *
      * @param node   Host name and record type to be used for the query.
      * @param server Address of the server to be used for the query.
      */
     private static void retrieveResultsFromServer(DNSNode node, InetAddress server) throws IOException, DNSParsingException {
         byte[] message = new byte[512]; // query is no longer than 512 bytes
-        DNSServerResponse serverResponse = DNSQueryHandler.buildAndSendQuery(message, server, node);
+        DNSServerResponse serverResponse = DNSQueryHandler.buildAndSendQuery(message, server, node, resolver);
 
-        Set<ResourceRecord> nameservers = DNSQueryHandler.decodeAndCacheResponse(serverResponse.getTransactionID(),
+        DNSQueryHandler.decodeAndCacheResponse(serverResponse.getTransactionID(),
                 serverResponse.getResponse(),
                 cache);
-        if (nameservers == null) nameservers = Collections.emptySet();
-
-        if (p1Flag) return; // For testing part 1 only
-
-        queryNextLevel(node, nameservers);
     }
 
     /**
-     * Query the next level DNS Server, if necessary
+     * Prints the result of a DNS query.
      *
-     * @param node        Host name and record type of the query.
-     * @param nameservers List of name servers returned from the previous level to query the next level.
+     * @param node    Host name and record type used for the query.
+     * @param results Set of results to be printed for the node.
      */
-    private static void queryNextLevel(DNSNode node, Set<ResourceRecord> nameservers) throws IOException, DNSParsingException {
-        // If we have already cached the ip address don't query the next level
-        if (!cache.getCachedResults(node).isEmpty()) {
-            return;
-        }
-
-        // If any of the name server ips have been cached send the next query to that ip
-        for (ResourceRecord nameserver : nameservers) {
-            Set<ResourceRecord> nameServerIpRecords = cache.getCachedResults(new DNSNode(nameserver.getTextResult(), RecordType.A));
-            if (!nameServerIpRecords.isEmpty()) {
-                retrieveResultsFromServer(node, nameServerIpRecords.iterator().next().getInetResult());
-                return;
-            }
-        }
-
-        // If an ip is not in the cache, query the root server for the ip
-        for (ResourceRecord nameserver : nameservers) {
-            DNSNode targetNode = new DNSNode(nameserver.getTextResult(), RecordType.A);
-            getResults(targetNode, 0);
-            Set<ResourceRecord> nameServerIpRecords = cache.getCachedResults(new DNSNode(nameserver.getTextResult(), RecordType.A));
-            if (!nameServerIpRecords.isEmpty()) {
-                retrieveResultsFromServer(node, nameServerIpRecords.iterator().next().getInetResult());
-                return;
-            }
-        }
-
-        // TODO: Handle case where we cannot find name server ip
-
+    private static void printResults(DNSNode node, Set<ResourceRecord> results) {
+        System.out.print(formatResults(node, results));
     }
 
     /**
-     * Prints the result of a DNS query.
+     * Formats the result of a DNS query, one line per record, as printed by printResults.
      *
      * @param node    Host name and record type used for the query.
-     * @param results Set of results to be printed for the node.
+     * @param results Set of results to be formatted for the node.
      */
-    private static void printResults(DNSNode node, Set<ResourceRecord> results) {
+    static String formatResults(DNSNode node, Set<ResourceRecord> results) {
+        StringBuilder lines = new StringBuilder();
+        Formatter formatter = new Formatter(lines);
         if (results.isEmpty())
-            System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
+            formatter.format("%-30s %-5s %-8d %s\n", node.getHostName(),
                     node.getType(), -1, "0.0.0.0");
         for (ResourceRecord record : results) {
-            System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
+            formatter.format("%-30s %-5s %-8d %s\n", node.getHostName(),
                     node.getType(), record.getTTL(), record.getTextResult());
         }
+        return lines.toString();
     }
 }
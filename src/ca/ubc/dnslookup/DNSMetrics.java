@@ -0,0 +1,189 @@
+package ca.ubc.dnslookup;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** Counters and distributions of a resolver and its cache, as printed by the stats command and
+ * exposed through JMX. Nothing is computed until read: the resolver, the cache and the query
+ * handler keep their own adders and histograms, and this class only reads them.
+ *
+ * Query and decode times are shared by all the resolvers of the process; the other values
+ * belong to one resolver and its cache.
+ */
+public final class DNSMetrics implements DNSMetricsMXBean {
+
+    /** Name under which the metrics are registered with the platform MBean server. */
+    public static final String OBJECT_NAME = "ca.ubc.dnslookup:type=Resolver";
+
+    private final DNSResolver resolver;
+    private final DNSCache cache;
+
+    public DNSMetrics(DNSResolver resolver) {
+        this.resolver = resolver;
+        this.cache = resolver.getCache();
+    }
+
+    /** Registers these metrics with the platform MBean server, replacing metrics registered before.
+     *
+     * @throws JMException If the metrics could not be registered.
+     */
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        try {
+            server.registerMBean(this, name);
+        } catch (InstanceAlreadyExistsException e) {
+            server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        }
+    }
+
+    /** Prints the metrics periodically, from a daemon thread, until the returned handle is closed.
+     *
+     * @param out             Stream to print to.
+     * @param intervalSeconds Time between two reports.
+     * @return A handle stopping the reports when closed.
+     */
+    public Closeable dumpPeriodically(PrintStream out, long intervalSeconds) {
+        if (intervalSeconds <= 0)
+            throw new IllegalArgumentException("Interval must be positive");
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "dns-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> out.println(this), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        return scheduler::shutdownNow;
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cache.getHitCount();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cache.getMissCount();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        return cache.getHitRatio();
+    }
+
+    @Override
+    public long getCacheInserts() {
+        return cache.getInsertCount();
+    }
+
+    @Override
+    public long getCacheExpirations() {
+        return cache.getExpirationCount();
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return cache.getEvictionCount();
+    }
+
+    @Override
+    public int getCacheNodes() {
+        return cache.getNodeCount();
+    }
+
+    @Override
+    public long getLookups() {
+        return resolver.getLookupCount();
+    }
+
+    @Override
+    public long getQueries() {
+        return resolver.getQueryCount();
+    }
+
+    @Override
+    public long getRetries() {
+        return resolver.getRetryCount();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return resolver.getTimeoutCount();
+    }
+
+    @Override
+    public long getStaleAnswers() {
+        return resolver.getStaleAnswerCount();
+    }
+
+    @Override
+    public long getTruncatedResponses() {
+        return resolver.getTransport().getTruncatedCount();
+    }
+
+    @Override
+    public long getTcpConnections() {
+        return resolver.getTransport().getTcpConnectionCount();
+    }
+
+    @Override
+    public long getReceiveErrors() {
+        return resolver.getTransport().getReceiveErrorCount();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getQueryTimes() {
+        return DNSQueryHandler.getQueryTimes().snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getDecodeTimes() {
+        return DNSQueryHandler.getDecodeTimes().snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getReferralDepths() {
+        return resolver.getReferralDepths().snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getCnameDepths() {
+        return resolver.getCnameDepths().snapshot();
+    }
+
+    /** Returns a report of the metrics, one group per line. */
+    @Override
+    public String toString() {
+        return String.format("Cache:     %d hits, %d misses (%.1f%% hits), %d inserts, %d expirations, %d evictions, %d nodes%n",
+                        getCacheHits(), getCacheMisses(), 100 * getCacheHitRatio(), getCacheInserts(),
+                        getCacheExpirations(), getCacheEvictions(), getCacheNodes())
+                + String.format("Resolver:  %d lookups, %d queries, %d retries, %d timeouts, %d stale answers, %d receive errors%n",
+                        getLookups(), getQueries(), getRetries(), getTimeouts(), getStaleAnswers(), getReceiveErrors())
+                + String.format("TCP:       %d truncated responses sent again over %d connections%n",
+                        getTruncatedResponses(), getTcpConnections())
+                + "Query:     " + formatTimes(getQueryTimes(), TimeUnit.MILLISECONDS, "ms") + "\n"
+                + "Decode:    " + formatTimes(getDecodeTimes(), TimeUnit.MICROSECONDS, "us") + "\n"
+                + "Referrals: " + formatDepths(getReferralDepths()) + "\n"
+                + "CNAMEs:    " + formatDepths(getCnameDepths());
+    }
+
+    private static String formatTimes(LatencyHistogram.Snapshot times, TimeUnit unit, String symbol) {
+        double nanos = unit.toNanos(1);
+        return String.format("%d, mean %.2f, p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f %s",
+                times.getCount(), times.getMean() / nanos, times.getP50() / nanos, times.getP90() / nanos,
+                times.getP99() / nanos, times.getP999() / nanos, times.getMax() / nanos, symbol);
+    }
+
+    private static String formatDepths(LatencyHistogram.Snapshot depths) {
+        return String.format("%d lookups, mean %.2f, p99 %d, max %d",
+                depths.getCount(), depths.getMean(), depths.getP99(), depths.getMax());
+    }
+}
@@ -0,0 +1,45 @@
+package ca.ubc.dnslookup;
+
+/** Management interface of DNSMetrics, exposing the counters and distributions of a resolver
+ * and its cache as JMX attributes. Times are in nanoseconds.
+ */
+public interface DNSMetricsMXBean {
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRatio();
+
+    long getCacheInserts();
+
+    long getCacheExpirations();
+
+    long getCacheEvictions();
+
+    int getCacheNodes();
+
+    long getLookups();
+
+    long getQueries();
+
+    long getRetries();
+
+    long getTimeouts();
+
+    long getStaleAnswers();
+
+    long getTruncatedResponses();
+
+    long getTcpConnections();
+
+    long getReceiveErrors();
+
+    LatencyHistogram.Snapshot getQueryTimes();
+
+    LatencyHistogram.Snapshot getDecodeTimes();
+
+    LatencyHistogram.Snapshot getReferralDepths();
+
+    LatencyHistogram.Snapshot getCnameDepths();
+}
@@ -4,16 +4,40 @@ import java.io.Serializable;
 
 /** DNS nodes can be used to specify an individual DNS query or the key to a specific result.
  * Each node represents a fully-qualified domain name (represented by hostName) and a record
- * type. Two nodes with the same host name and type are considered equal.
+ * type. Two nodes with the same host name and type are considered equal. Host names are
+ * compared ignoring ASCII case, as required by DNS (RFC 4343), so nodes can be used as hash
+ * keys: equals, hashCode and compareTo all use the same lowercased key.
  */
 public class DNSNode implements Comparable<DNSNode>, Serializable {
 
-    private String hostName;
-    private RecordType type;
+    private static final long serialVersionUID = 1L;
+
+    private final String hostName;
+    private final RecordType type;
+    /** Host name with ASCII letters lowercased; other characters are compared as they are. */
+    private final String key;
+    private final int hash;
 
     public DNSNode(String hostName, RecordType type) {
         this.hostName = hostName;
         this.type = type;
+        this.key = toKey(hostName);
+        this.hash = 31 * key.hashCode() + type.ordinal();
+    }
+
+    /** Returns a host name with its ASCII letters lowercased, the form in which it is compared. */
+    static String toKey(String hostName) {
+        for (int i = 0; i < hostName.length(); i++) {
+            char c = hostName.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                char[] chars = hostName.toCharArray();
+                for (int j = i; j < chars.length; j++)
+                    if (chars[j] >= 'A' && chars[j] <= 'Z')
+                        chars[j] += 'a' - 'A';
+                return new String(chars);
+            }
+        }
+        return hostName;
     }
 
     public String getHostName() {
@@ -24,6 +48,11 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
         return type;
     }
 
+    /** Returns the host name as compared: with its ASCII letters lowercased. */
+    String getKey() {
+        return key;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -31,15 +60,13 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
 
         DNSNode dnsNode = (DNSNode) o;
 
-        if (!hostName.equals(dnsNode.hostName)) return false;
-        return type == dnsNode.type;
+        if (hash != dnsNode.hash || type != dnsNode.type) return false;
+        return key.equals(dnsNode.key);
     }
 
     @Override
     public int hashCode() {
-        int result = hostName.hashCode();
-        result = 31 * result + type.hashCode();
-        return result;
+        return hash;
     }
 
     @Override
@@ -49,8 +76,8 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
 
     @Override
     public int compareTo(DNSNode o) {
-        if (!hostName.equalsIgnoreCase(o.hostName))
-            return hostName.compareToIgnoreCase(o.hostName);
+        if (!key.equals(o.key))
+            return key.compareTo(o.key);
         else
             return type.compareTo(o.type);
     }
@@ -1,6 +1,8 @@
 package ca.ubc.dnslookup;
 
 public class DNSParsingException extends Exception {
+    private static final long serialVersionUID = 1L;
+
     DNSParsingException(String message) {
         super(message);
     }
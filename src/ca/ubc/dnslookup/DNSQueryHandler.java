@@ -3,80 +3,164 @@ package ca.ubc.dnslookup;
 import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public class DNSQueryHandler {
 
-    private static final int DEFAULT_DNS_PORT = 53;
-    private static DatagramSocket socket;
-    private static boolean verboseTracing = false;
+    /** Port of the name servers, 53 unless the system property dnslookup.port is set, e.g.
+     * to query a simulated hierarchy on the local machine. */
+    private static final int DNS_PORT = Integer.getInteger("dnslookup.port", 53);
+    private static final int RCODE_NAME_ERROR = 3;
+    /** Number of times a query is sent before buildAndSendQuery gives up. */
+    static final int MAX_ATTEMPTS = 3;
+    private static DNSTransport transport;
+    /** Trace of the queries and responses, or null when trace is off. */
+    private static volatile TraceLog trace;
+    private static final LatencyHistogram queryTimes = new LatencyHistogram();
+    private static final LatencyHistogram decodeTimes = new LatencyHistogram();
+    private static final ThreadLocal<DNSResponseParser> parser = ThreadLocal.withInitial(DNSResponseParser::new);
 
     /**
-     * Sets up the socket and set the timeout to 5 seconds
+     * Opens the transport used to send queries, if it is not open already. All queries share
+     * a single socket.
      *
      * @throws SocketException if the socket could not be opened, or if there was an
      *                         error with the underlying protocol
      */
-    public static void openSocket() throws SocketException {
-        socket = new DatagramSocket();
-        socket.setSoTimeout(5000);
+    public static synchronized void openSocket() throws SocketException {
+        if (transport != null) return;
+        try {
+            transport = new DNSTransport(DNS_PORT);
+        } catch (SocketException e) {
+            throw e;
+        } catch (IOException e) {
+            SocketException socketException = new SocketException(e.getMessage());
+            socketException.initCause(e);
+            throw socketException;
+        }
     }
 
     /**
      * Closes the socket
      */
-    public static void closeSocket() {
-        socket.close();
+    public static synchronized void closeSocket() {
+        if (transport != null) {
+            transport.close();
+            transport = null;
+        }
+    }
+
+    /**
+     * Returns the transport used to send queries, opening it if necessary.
+     *
+     * @return The shared transport.
+     * @throws SocketException if the socket could not be opened.
+     */
+    public static synchronized DNSTransport getTransport() throws SocketException {
+        openSocket();
+        return transport;
+    }
+
+    /**
+     * Returns the time between sending each query and receiving its response, in nanoseconds,
+     * for the queries of every resolver and of buildAndSendQuery.
+     */
+    public static LatencyHistogram getQueryTimes() {
+        return queryTimes;
+    }
+
+    /**
+     * Returns the time taken to decode and cache each response, in nanoseconds.
+     */
+    public static LatencyHistogram getDecodeTimes() {
+        return decodeTimes;
     }
 
     /**
-     * Set verboseTracing to tracing
+     * Turns trace on, printed on the standard output, or off
      */
     public static void setVerboseTracing(boolean tracing) {
-        verboseTracing = tracing;
+        setTrace(tracing ? TraceLog.toStandardOutput() : null);
     }
 
     /**
-     * Builds the query, sends it to the server, and returns the response.
+     * Sets the trace queries and responses are written to, closing the previous one, or turns
+     * trace off if null.
      *
-     * @param message Byte array used to store the query to DNS servers.
-     * @param server  The IP address of the server to which the query is being sent.
-     * @param node    Host and record type to be used for search.
+     * @param log Trace to write to, or null.
+     */
+    public static synchronized void setTrace(TraceLog log) {
+        TraceLog previous = trace;
+        trace = log;
+        if (previous != null)
+            previous.close();
+    }
+
+    /**
+     * Returns the trace queries and responses are written to, or null when trace is off.
+     */
+    public static TraceLog getTrace() {
+        return trace;
+    }
+
+    /**
+     * Builds the query, sends it to the server, and returns the response. A query that gets
+     * no response within the retransmission timeout of the server is sent again, with the
+     * timeout doubled, up to MAX_ATTEMPTS times. The query goes through the transport of a
+     * resolver, and is accounted for like the resolver's own queries: in the round-trip times
+     * of its servers, and in its query, retry and timeout counts.
+     *
+     * @param message  Byte array used to store the query to DNS servers.
+     * @param server   The IP address of the server to which the query is being sent.
+     * @param node     Host and record type to be used for search.
+     * @param resolver Resolver whose transport, server statistics and counters are used.
      * @return A DNSServerResponse Object containing the response buffer and the transaction ID.
      * @throws IOException if an IO Exception occurs
      */
     public static DNSServerResponse buildAndSendQuery(byte[] message, InetAddress server,
-                                                      DNSNode node) throws IOException {
-        //TODO: add verbose logging
-        // TODO: add timeout if no response received. Retry the request 10 times.
-        int id = addHeader(message);
-        verbosePrintQuery(node, id, server);
-        byte[] query = newQueryWithQuestion(message, node);
-
-        byte[] buffer = new byte[65508];
-        DatagramPacket queryPacket = new DatagramPacket(query, query.length, server, DEFAULT_DNS_PORT);
-        DatagramPacket responsePacket = new DatagramPacket(buffer, buffer.length);
-
-        openSocket();
-        socket.send(queryPacket);
-        socket.receive(responsePacket);
-
-        byte[] responseData = responsePacket.getData();
-        byte[] responseId = new byte[2];
-        responseId[0] = responseData[0];
-        responseId[1] = responseData[1];
+                                                      DNSNode node, DNSResolver resolver) throws IOException {
+        InfrastructureCache servers = resolver.getInfrastructureCache();
+        long timeout = servers.getRetransmissionTimeoutMillis(server);
+        for (int attempt = 1; ; attempt++) {
+            if (attempt > 1)
+                resolver.recordRetry(false);
+            resolver.recordQuery();
+            long start = System.nanoTime();
+            try {
+                DNSServerResponse response = resolver.getTransport().sendAndWait(server, node,
+                        id -> encodeQuery(message, id, node, server), timeout);
+                long elapsed = System.nanoTime() - start;
+                servers.recordResponse(server, elapsed);
+                queryTimes.record(elapsed);
+                return response;
+            } catch (SocketTimeoutException e) {
+                resolver.recordTimeout(server);
+                if (attempt == MAX_ATTEMPTS)
+                    throw e;
+                timeout = Math.min(timeout * 2, InfrastructureCache.MAX_RTO_MILLIS);
+            }
+        }
+    }
 
-        return new DNSServerResponse(ByteBuffer.wrap(responseData), ByteBuffer.wrap(responseId).getShort());
+    /**
+     * Encodes a query with the specified transaction ID, and traces it.
+     *
+     * @param message Byte array used to store the query.
+     * @param id      Transaction ID of the query.
+     * @param node    Host and record type to be used for search.
+     * @param server  The IP address of the server to which the query is being sent.
+     * @return The encoded query, trimmed to its actual length.
+     */
+    static byte[] encodeQuery(byte[] message, int id, DNSNode node, InetAddress server) {
+        addHeader(message, id);
+        verbosePrintQuery(node, id, server);
+        return newQueryWithQuestion(message, node);
     }
 
-    private static int addHeader(byte[] message) {
-        final Random random = new Random();
-        final byte[] id = new byte[2];
-        random.nextBytes(id);
+    private static void addHeader(byte[] message, int id) {
         // Id
-        message[0] = id[0];
-        message[1] = id[1];
+        message[0] = (byte) (id >>> 8);
+        message[1] = (byte) id;
         // flags
         message[2] = 0x00;
         message[3] = 0x00;
@@ -92,7 +176,6 @@ public class DNSQueryHandler {
         // number of additional PRs
         message[10] = 0x00;
         message[11] = 0x00;
-        return 0xffff & ByteBuffer.wrap(id).getShort();
     }
 
     private static byte[] newQueryWithQuestion(byte[] message, DNSNode dnsNode) {
@@ -143,260 +226,206 @@ public class DNSQueryHandler {
     }
 
     /**
-     * Decodes the DNS server response and caches it.
+     * Decodes the DNS server response and caches it. Negative answers, i.e. a name error
+     * (NXDOMAIN) or a response without any answer that is not a referral (NODATA), are cached
+     * as well, for the name at the end of any CNAME chain in the answer section and for the
+     * negative TTL given by the SOA record of the authority section (RFC 2308); they are not
+     * cached if the response has no SOA record.
      *
      * @param transactionID  Transaction ID of the current communication with the DNS server
      * @param responseBuffer DNS server's response
      * @param cache          To store the decoded server's response
-     * @return A set of resource records corresponding to the name servers of the response.
+     * @return A set of resource records corresponding to the name servers of the response,
+     * empty for a negative answer.
      */
     public static Set<ResourceRecord> decodeAndCacheResponse(int transactionID, ByteBuffer responseBuffer,
                                                              DNSCache cache) throws IOException, DNSParsingException {
-        // TODO (PART 1): Implement this
-        byte[] response = responseBuffer.array();
-        int replyCode = getReplyCode(response);
-        boolean isAuthoritative = isAuthoritative(response);
-        if (replyCode != 0) {
-            throw new DNSParsingException("Response RCODE: " + replyCode);
+        DNSEvents.ResponseDecoded event = new DNSEvents.ResponseDecoded();
+        event.begin();
+        CachingVisitor visitor = new CachingVisitor(cache);
+        long start = System.nanoTime();
+        try {
+            return decode(transactionID, responseBuffer, visitor);
+        } finally {
+            decodeTimes.record(System.nanoTime() - start);
+            event.end();
+            if (event.shouldCommit()) {
+                event.id = 0xFFFF & transactionID;
+                event.answers = visitor.answers.size();
+                event.authorities = visitor.nameservers.size();
+                event.additionals = visitor.additional.size();
+                event.negative = visitor.negative;
+                event.commit();
+            }
         }
-        int numAnswers = getNumAnswers(response);
-        int numAuthority = getNumAuthority(response);
-        int numAdditional = getNumAdditional(response);
-        int numberOfRecords = numAnswers + numAdditional + numAuthority;
-        if (numberOfRecords == 0) {
-            throw new DNSParsingException("No records in server response");
+    }
+
+    private static Set<ResourceRecord> decode(int transactionID, ByteBuffer responseBuffer,
+                                              CachingVisitor visitor) throws IOException, DNSParsingException {
+        parser.get().parse(responseBuffer, visitor);
+
+        verbosePrintResponse(0xFFFF & transactionID, visitor.authoritative, visitor.answers,
+                visitor.nameservers, visitor.additional);
+
+        // A CNAME chain ending without an answer is negative for the name it ends at
+        String negativeName = visitor.negativeName();
+        if (visitor.nameError || (!visitor.hasAnswer(negativeName)
+                && (visitor.authoritative || (visitor.negativeTtl >= 0 && visitor.nameserverRecords.isEmpty())))) {
+            visitor.negative = true;
+            if (negativeName != null && visitor.negativeTtl >= 0)
+                visitor.cache.addNegativeResult(new DNSNode(negativeName, visitor.questionType),
+                        visitor.negativeTtl, visitor.nameError);
+            return Collections.emptySet();
         }
-        int answerIndex = getAnswerIndex(response);
 
-        // TODO: Add the appropriate resource records and verbose print
+        return visitor.nameserverRecords;
+    }
 
-        List<ResourceRecord> additional = new ArrayList<>();
-        List<ResourceRecord> nameservers = new ArrayList<>();
-        List<ResourceRecord> answers = new ArrayList<>();
+    /**
+     * Visitor turning the records of a response into resource records, caching them as they
+     * are decoded.
+     */
+    private static class CachingVisitor implements DNSResponseParser.Visitor {
+        private final DNSCache cache;
+        private final List<ResourceRecord> answers = new ArrayList<>();
+        private final List<ResourceRecord> nameservers = new ArrayList<>();
+        private final List<ResourceRecord> additional = new ArrayList<>();
+        private final Set<ResourceRecord> nameserverRecords = new HashSet<>();
+        private boolean authoritative;
+        private boolean negative;
+        private boolean nameError;
+        private String questionName;
+        private RecordType questionType;
+        /** Negative TTL given by the SOA record of the authority section, or -1 if there is none. */
+        private long negativeTtl = -1;
+
+        CachingVisitor(DNSCache cache) {
+            this.cache = cache;
+        }
 
-        // Get Query DNSNode
-        // DNSNode dnsNode = getQueryDnsNode(response, nameIndex);
-        Set<ResourceRecord> recordSet = new HashSet<>();
-        for (int i = 0; i < numberOfRecords; i++) {
-            String hostName = parseName(response, answerIndex);
-            while (response[answerIndex] != 0) {
-                answerIndex++;
+        @Override
+        public void visitHeader(DNSResponseParser parser) throws DNSParsingException {
+            nameError = parser.getReplyCode() == RCODE_NAME_ERROR;
+            if (parser.getReplyCode() != 0 && !nameError) {
+                throw new DNSParsingException("Response RCODE: " + parser.getReplyCode());
             }
-            if (response[answerIndex + 2] != 0 || response[answerIndex + 3] != 1) {
-                answerIndex++;
+            // The transport sends truncated queries again over TCP; caching part of an answer
+            // set would hide the rest of it until the records expire
+            if (parser.isTruncated())
+                throw new DNSParsingException("Truncated response");
+            authoritative = parser.isAuthoritative();
+            if (!nameError && !authoritative
+                    && parser.getAnswerCount() + parser.getAuthorityCount() + parser.getAdditionalCount() == 0) {
+                throw new DNSParsingException("No records in server response");
             }
-            RecordType recordType = getResponseType(response, answerIndex);
-            long ttl = getTTL(response, answerIndex);
-            int dataLength = getDataLength(response, answerIndex);
-
-            // If record type is other skip the record. TODO: Make sure that is correct
-            ResourceRecord resourceRecord = null;
-            if (recordType == RecordType.CNAME || recordType == RecordType.NS || recordType == RecordType.SOA) {
-                String name = parseName(response, answerIndex + 10);
-                resourceRecord = new ResourceRecord(hostName, recordType, ttl, name);
-                cache.addResult(resourceRecord);
-                if (recordType == RecordType.NS) {
-                    recordSet.add(resourceRecord);
-                }
-            } else if (recordType == RecordType.MX) {
-                String mxName = parseName(response, answerIndex + 12);
-                resourceRecord = new ResourceRecord(hostName, recordType, ttl, mxName);
-                cache.addResult(resourceRecord);
-            } else if (recordType == RecordType.AAAA){
-                InetAddress ip = getIpv6Address(response, answerIndex);
-                resourceRecord = new ResourceRecord(hostName, recordType, ttl, ip);
-                cache.addResult(resourceRecord);
-            } else if (recordType == RecordType.A) {
-                InetAddress ip = getIpv4Address(response, answerIndex);
-                resourceRecord = new ResourceRecord(hostName, recordType, ttl, ip);
-                cache.addResult(resourceRecord);
+        }
+
+        @Override
+        public void visitQuestion(DNSResponseParser parser) {
+            questionName = parser.getName().toString();
+            questionType = parser.getType();
+        }
+
+        @Override
+        public void visitRecord(DNSResponseParser parser, int section) throws DNSParsingException {
+            ResourceRecord resourceRecord = toResourceRecord(parser);
+            // Records of other types are skipped
+            if (resourceRecord == null) return;
+
+            if (resourceRecord.getType() == RecordType.SOA && section == DNSResponseParser.AUTHORITY
+                    && parser.getDataLength() >= 4) {
+                // The negative TTL is the smaller of the SOA record's TTL and its MINIMUM field
+                long minimum = parser.getDataUnsignedInt(parser.getDataLength() - 4);
+                negativeTtl = Math.max(0, Math.min(parser.getTTL(), minimum));
             }
 
-            if (i < numAnswers) {
+            cache.addResult(resourceRecord);
+            if (resourceRecord.getType() == RecordType.NS) {
+                nameserverRecords.add(resourceRecord);
+            }
+            if (section == DNSResponseParser.ANSWER) {
                 answers.add(resourceRecord);
-            } else if (i < numAnswers + numAuthority) {
+            } else if (section == DNSResponseParser.AUTHORITY) {
                 nameservers.add(resourceRecord);
             } else {
                 additional.add(resourceRecord);
             }
-            // advance index to next answer
-            answerIndex += dataLength + 10;
-        }
-        verbosePrintResponse(0xFFFF & transactionID, isAuthoritative, answers, nameservers, additional);
-
-        if (isAuthoritative && numAnswers == 0) {
-            throw new DNSParsingException("No answer found in authoritative in response");
         }
 
-        return recordSet;
-    }
-
-    private static int getReplyCode(byte[] response) {
-        byte[] code = new byte[]{response[2], response[3]};
-        return 0b0000000000001111 & ByteBuffer.wrap(code).getShort();
-    }
-
-    private static boolean isAuthoritative(byte[] response) {
-        return (0b00000100 & response[2]) == 0b00000100;
-    }
-
-    private static int getNumberOfRecords(byte[] response) {
-        int records = 0;
-        for (int i = 6; i < 12; i+=2) {
-            byte[] bytes = new byte[] {response[i], response[i+1]};
-            records += ByteBuffer.wrap(bytes).getShort();
-        }
-        return records;
-    }
-
-    private static int getNumAnswers(byte[] response) {
-        byte[] bytes = new byte[] {response[6], response[7] };
-        return ByteBuffer.wrap(bytes).getShort();
-    }
-
-    private static int getNumAuthority(byte[] response) {
-        byte[] bytes = new byte[] {response[8], response[9]};
-        return ByteBuffer.wrap(bytes).getShort();
-    }
-
-    private static int getNumAdditional(byte[] response) {
-        byte[] bytes = new byte[] {response[10], response[11]};
-        return ByteBuffer.wrap(bytes).getShort();
-    }
-
-    private static String getHostName(byte[] response, int answerIndex) throws IOException {
-        byte bitmask = 0b00111111;
-        byte[] nameLocation = new byte[]{(byte) (bitmask & response[answerIndex]), response[answerIndex + 1]};
-        int hostIndex = ByteBuffer.wrap(nameLocation).getShort();
-        return parseName(response, hostIndex);
-    }
-
-    private static RecordType getResponseType(byte[] response, int answerIndex) {
-        byte[] type = new byte[] {response[answerIndex], response[answerIndex + 1]};
-        return RecordType.getByCode(ByteBuffer.wrap(type).getShort());
-    }
-
-    private static int getDataLength(byte[] response, int answerIndex) {
-        byte[] length = new byte[] {response[answerIndex + 8], response[answerIndex + 9]};
-        return ByteBuffer.wrap(length).getShort();
-    }
-
-    private static InetAddress getIpv4Address(byte[] response, int answerIndex) throws UnknownHostException {
-        byte[] ipBytes = new byte[4];
-        System.arraycopy(response, answerIndex + 10, ipBytes, 0, 4);
-        return InetAddress.getByAddress(ipBytes);
-    }
-
-    private static InetAddress getIpv6Address(byte[] response, int answerIndex) throws UnknownHostException {
-        byte[] ipBytes = new byte[16];
-        System.arraycopy(response, answerIndex + 10, ipBytes, 0, 16);
-        return InetAddress.getByAddress(ipBytes);
-    }
-
-    private static int getQDCount(byte[] response) {
-        byte[] qdCount = new byte[2];
-        qdCount[0] = response[4];
-        qdCount[1] = response[5];
-        return ByteBuffer.wrap(qdCount).getShort();
-    }
-
-    private static int getAnswerIndex(byte[] response) {
-        int qIndex = 12;
-        for (int i = getQDCount(response); i > 0; i--) {
-            while (!isEndOfQuery(response, qIndex)) {
-                qIndex++;
+        /** Returns the name a negative answer applies to: the question's name, or the end of
+         * the CNAME chain the answer section leads to from it.
+         */
+        String negativeName() {
+            String name = questionName;
+            if (questionType == RecordType.CNAME)
+                return name;
+            for (int i = 0; i <= answers.size(); i++) {
+                String next = null;
+                for (ResourceRecord answer : answers)
+                    if (answer.getType() == RecordType.CNAME && answer.getHostName().equalsIgnoreCase(name))
+                        next = answer.getTextResult();
+                if (next == null)
+                    break;
+                name = next;
             }
-            qIndex += 4;
+            return name;
         }
-        return qIndex;
-    }
 
-    private static String parseName(byte[] response, int nameIndex) throws IOException {
-        if (response[nameIndex] == (byte) 0xc0) {
-            return getHostName(response, nameIndex);
+        /** Returns whether the answer section holds a record of the question's type for a name. */
+        boolean hasAnswer(String name) {
+            for (ResourceRecord answer : answers)
+                if (answer.getType() == questionType && answer.getHostName().equalsIgnoreCase(name))
+                    return true;
+            return false;
         }
-        byte[] nameBytes = new byte[512];
-        int sectionSize = response[nameIndex];
-        int nameByteIndex = 0;
-        int responseIndex = nameIndex + 1;
-        while(sectionSize > 0) {
-            for (int i = 0; i < sectionSize; i++) {
-                nameBytes[nameByteIndex++] = response[responseIndex++];
-            }
-            nameBytes[nameByteIndex++] = 0x2e;
-            sectionSize = 0x000000FF & response[responseIndex++];
-            if (sectionSize == 0xc0) {
-                byte[] trimmedBytes = Arrays.copyOfRange(nameBytes, 0, nameByteIndex);
-                return (new String(trimmedBytes, StandardCharsets.UTF_8)) + getHostName(response, responseIndex - 1);
-            }
-        }
-        nameBytes[nameByteIndex - 1] = 0;
-        return (new String(nameBytes, StandardCharsets.UTF_8)).trim();
-    }
-
-    private static long getTTL(byte[] response, int answerIndex) {
-        byte[] ttlBytes = new byte[4];
-        for (int i = answerIndex + 4, k = 0; i < answerIndex + 8; i++, k++) {
-            ttlBytes[k] = response[i];
-        }
-        return ByteBuffer.wrap(ttlBytes).getInt();
-    }
-
-    private static boolean isEndOfQuery(byte[] response, int index) {
-        return isValidType(response, index) && isValidClass(response, index + 2);
-    }
-
-    private static boolean isValidType(byte[] response, int index) {
-        byte first = response[index];
-        byte second = response[index + 1];
-        return first == 0 && (second == 1 || second == 5 || second == 6 || second == 15 || second == 28);
-    }
-
-    private static boolean isValidClass(byte[] response, int index) {
-        return response[index] == 0 && response[index + 1] == 1;
     }
 
     /**
-     * Formats and prints record details (for when trace is on)
+     * Builds a resource record from the record the parser is currently visiting.
      *
-     * @param record The record to be printed
-     * @param rtype  The type of the record to be printed
+     * @param parser Parser positioned on a record.
+     * @return The corresponding resource record, or null if the record type is not supported.
+     * @throws DNSParsingException if the record data is malformed.
      */
-    private static void verbosePrintResourceRecord(ResourceRecord record, int rtype) {
-        if (verboseTracing) {
-            System.out.format("       %-30s %-10d %-4s %s\n", record.getHostName(),
-                    record.getTTL(),
-                    record.getType() == RecordType.OTHER ? rtype : record.getType(),
-                    record.getTextResult());
-            System.out.flush();
+    static ResourceRecord toResourceRecord(DNSResponseParser parser) throws DNSParsingException {
+        RecordType recordType = parser.getType();
+        String hostName = parser.getName().toString();
+        long ttl = parser.getTTL();
+        switch (recordType) {
+            case CNAME:
+            case NS:
+            case SOA:
+                return new ResourceRecord(hostName, recordType, ttl, parser.decodeDataName(0).toString());
+            case MX:
+                return new ResourceRecord(hostName, recordType, ttl, parser.decodeDataName(2).toString());
+            case A:
+            case AAAA:
+                byte[] address = new byte[recordType == RecordType.A ? 4 : 16];
+                if (parser.getDataLength() != address.length) {
+                    throw new DNSParsingException("Invalid address length for " + recordType + " record");
+                }
+                parser.copyData(address);
+                try {
+                    return new ResourceRecord(hostName, recordType, ttl, InetAddress.getByAddress(address));
+                } catch (UnknownHostException e) {
+                    throw new DNSParsingException(e.getMessage());
+                }
+            default:
+                return null;
         }
     }
 
     private static void verbosePrintQuery(DNSNode node, int id, InetAddress server) {
-        if (verboseTracing) {
-            System.out.format("\n\nQuery ID     %d %s  %s --> %s\n",
-                    id, node.getHostName(), node.getType(), server.getHostAddress());
-            System.out.flush();
-        }
+        TraceLog log = trace;
+        if (log != null)
+            log.query(id, node, server);
     }
 
     private static void verbosePrintResponse(int id, boolean auth, List<ResourceRecord> answers,
                                              List<ResourceRecord> nameServers, List<ResourceRecord> add) {
-        if (verboseTracing) {
-            System.out.format("Response ID: %d Authoritative = %b\n", id, auth);
-            System.out.format("  Answers(%d)\n", answers.size());
-            for (ResourceRecord resourceRecord : answers) {
-                verbosePrintResourceRecord(resourceRecord, resourceRecord.getType().getCode());
-            }
-            System.out.format("  Nameservers(%d)\n", nameServers.size());
-            for (ResourceRecord resourceRecord : nameServers) {
-                verbosePrintResourceRecord(resourceRecord, resourceRecord.getType().getCode());
-            }
-            System.out.format("  Additional Information(%d)\n", add.size());
-            for (ResourceRecord resourceRecord : add) {
-                verbosePrintResourceRecord(resourceRecord, resourceRecord.getType().getCode());
-            }
-        }
+        TraceLog log = trace;
+        if (log != null)
+            log.response(id, auth, answers, nameServers, add);
     }
 
 }
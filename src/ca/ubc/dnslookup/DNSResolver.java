@@ -0,0 +1,606 @@
+package ca.ubc.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/** Event-driven iterative resolver. Each lookup is an explicit state machine (see Resolution)
+ * that sends a query, and gives its thread back until the response arrives. Responses are
+ * decoded and the lookup continued on a small pool of worker threads, so a handful of threads
+ * can drive any number of lookups in flight at the same time.
+ *
+ * Work in flight is shared rather than repeated (single flight): a request for a node that is
+ * already being looked up waits for that lookup instead of starting its own, and a question
+ * that has already been sent to a server, and not answered yet, is not sent again; every
+ * lookup asking it waits for the same response.
+ *
+ * When several name servers can answer a query, the query goes to the one expected to respond
+ * fastest, according to the round-trip times measured so far (see InfrastructureCache). If it
+ * is slower than usual, the query is hedged: sent to a second server as well, and the first
+ * response wins. A query that gets no response within the retransmission timeout of its
+ * server is sent again, to another server if there is one (see ServerQuery).
+ *
+ * Every lookup must complete before its deadline, DEFAULT_LOOKUP_TIMEOUT_MILLIS unless the
+ * caller sets another one. The whole lookup shares it: CNAME records followed, referrals,
+ * lookups of name server addresses, queries and their retries.
+ *
+ * If the cache keeps stale records (see DNSCache.setStaleWindow), a client whose lookup does
+ * not complete within the stale answer timeout, or fails, gets the stale records of the node
+ * instead (RFC 8767). The lookup still continues in the background and caches its result.
+ *
+ * A resolver using its own pool of worker threads must be closed once it is no longer used.
+ */
+public class DNSResolver implements Closeable {
+
+    /** Maximum number of CNAME records followed by a single lookup. */
+    public static final int MAX_INDIRECTION_LEVEL = 10;
+    /** Time allowed for a lookup, unless set otherwise. */
+    public static final long DEFAULT_LOOKUP_TIMEOUT_MILLIS = 10_000;
+    /** Time after which a client gets stale records rather than waiting, as suggested by RFC 8767. */
+    public static final long DEFAULT_STALE_ANSWER_TIMEOUT_MILLIS = 1800;
+
+    private final DNSCache cache;
+    private final DNSTransport transport;
+    private final Executor executor;
+    /** Pool created by this resolver, and shut down when it is closed, or null. */
+    private final ExecutorService workerPool;
+    private volatile InetAddress rootServer;
+    private volatile long lookupTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_LOOKUP_TIMEOUT_MILLIS);
+    private volatile long staleAnswerTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_STALE_ANSWER_TIMEOUT_MILLIS);
+    private final InfrastructureCache infrastructure = new InfrastructureCache();
+
+    private final ConcurrentHashMap<DNSNode, InFlightLookup> lookupsInFlight = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<UpstreamQuery, CompletableFuture<Set<ResourceRecord>>> queriesInFlight =
+            new ConcurrentHashMap<>();
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder coalescedLookups = new LongAdder();
+    private final LongAdder abandonedLookups = new LongAdder();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder coalescedQueries = new LongAdder();
+    private final LongAdder hedgeableQueries = new LongAdder();
+    private final LongAdder hedgedQueries = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder failovers = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder staleAnswers = new LongAdder();
+    private final LatencyHistogram referralDepths = new LatencyHistogram();
+    private final LatencyHistogram cnameDepths = new LatencyHistogram();
+
+    /** Creates a resolver using its own pool of worker threads, one per available processor.
+     *
+     * @param cache      Cache used to store and look up results.
+     * @param transport  Transport used to send queries.
+     * @param rootServer Address of the root DNS server where lookups start.
+     */
+    public DNSResolver(DNSCache cache, DNSTransport transport, InetAddress rootServer) {
+        this(cache, transport, rootServer, newWorkerPool(), true);
+    }
+
+    /** Creates a resolver continuing lookups on the specified executor.
+     *
+     * @param cache      Cache used to store and look up results.
+     * @param transport  Transport used to send queries.
+     * @param rootServer Address of the root DNS server where lookups start.
+     * @param executor   Executor on which responses are decoded and lookups continued.
+     */
+    public DNSResolver(DNSCache cache, DNSTransport transport, InetAddress rootServer, Executor executor) {
+        this(cache, transport, rootServer, executor, false);
+    }
+
+    private DNSResolver(DNSCache cache, DNSTransport transport, InetAddress rootServer, Executor executor,
+                        boolean ownsExecutor) {
+        this.cache = cache;
+        this.transport = transport;
+        this.rootServer = rootServer;
+        this.executor = executor;
+        this.workerPool = ownsExecutor ? (ExecutorService) executor : null;
+    }
+
+    /** Shuts down the pool of worker threads of this resolver, if it created one. Lookups
+     * still in flight are not continued. The cache, transport and executor given by the caller
+     * are left open.
+     */
+    @Override
+    public void close() {
+        if (workerPool != null)
+            workerPool.shutdownNow();
+    }
+
+    /** Resolves a host name and record type within the lookup timeout of this resolver.
+     *
+     * @param node Host name and record type to be resolved.
+     * @return A future completed with the set of records found, possibly empty.
+     * @see #resolve(DNSNode, long, TimeUnit)
+     */
+    public CompletableFuture<Set<ResourceRecord>> resolve(DNSNode node) {
+        return resolve(node, lookupTimeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Resolves a host name and record type. CNAME records are followed, and results are
+     * served from the cache when possible. The returned future completes exceptionally with an
+     * IOException or a DNSParsingException if the lookup fails, in particular with a
+     * LookupTimeoutException if it does not complete in time. If stale records of the node
+     * are cached, they are returned instead when the lookup fails or is slow.
+     *
+     * @param node    Host name and record type to be resolved.
+     * @param timeout Time allowed for the whole lookup.
+     * @param unit    Unit of the timeout.
+     * @return A future completed with the set of records found, possibly empty.
+     */
+    public CompletableFuture<Set<ResourceRecord>> resolve(DNSNode node, long timeout, TimeUnit unit) {
+        CompletableFuture<Set<ResourceRecord>> lookup = resolve(node, 0, System.nanoTime() + unit.toNanos(timeout));
+        if (lookup.isDone() && !lookup.isCompletedExceptionally())
+            return lookup;
+        Set<ResourceRecord> stale = cache.getStaleResults(node);
+        return stale.isEmpty() ? lookup : serveStale(lookup, stale);
+    }
+
+    /** Answers a client with the result of a lookup if it completes within the stale answer
+     * timeout, and otherwise, or if the lookup fails, with stale records. The lookup goes on
+     * regardless, so the records are refreshed in the background.
+     */
+    private CompletableFuture<Set<ResourceRecord>> serveStale(CompletableFuture<Set<ResourceRecord>> lookup,
+                                                              Set<ResourceRecord> stale) {
+        CompletableFuture<Set<ResourceRecord>> answer = new CompletableFuture<>();
+        Runnable answerStale = () -> {
+            // Counted first, so the count includes every stale answer a client has seen
+            staleAnswers.increment();
+            if (!answer.complete(stale))
+                staleAnswers.decrement();
+        };
+        lookup.whenComplete((results, error) -> {
+            if (error == null)
+                answer.complete(results);
+            else
+                answerStale.run();
+        });
+        atDeadline(answer, System.nanoTime() + staleAnswerTimeoutNanos, answerStale, executor);
+        return answer;
+    }
+
+    /** Resolves a node on behalf of another lookup, e.g. to find a name server's address.
+     *
+     * A request joins a lookup of the same node already in flight if that lookup is nested
+     * deeper than the request. Since a lookup then only ever waits for deeper ones, lookups
+     * can never end up waiting for each other in a cycle. Requests from clients (depth 0) are
+     * not waited for by any lookup, so they can join any lookup. A request joining a lookup
+     * with a later deadline still fails at its own deadline; one joining a lookup with an
+     * earlier deadline is limited by that deadline.
+     *
+     * @param node          Host name and record type to be resolved.
+     * @param depth         Number of lookups waiting on this one.
+     * @param deadlineNanos Value of System.nanoTime() by which the lookup must complete.
+     */
+    CompletableFuture<Set<ResourceRecord>> resolve(DNSNode node, int depth, long deadlineNanos) {
+        lookups.increment();
+        Set<ResourceRecord> cached = cache.getCachedResults(node);
+        if (!cached.isEmpty() || cache.isNegativelyCached(node)) {
+            if (depth == 0)
+                recordCachedLookup(node, cached);
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        Resolution resolution = new Resolution(this, node, depth, deadlineNanos, false);
+        InFlightLookup lookup = new InFlightLookup(resolution, depth);
+        InFlightLookup existing = lookupsInFlight.putIfAbsent(node, lookup);
+        if (existing != null && (depth == 0 || existing.depth > depth) && existing.join()) {
+            coalescedLookups.increment();
+            CompletableFuture<Set<ResourceRecord>> joined = existing.resolution.getResult().copy();
+            if (existing.resolution.getDeadlineNanos() - deadlineNanos > 0) {
+                long joinedNanos = System.nanoTime();
+                failAtDeadline(joined, deadlineNanos, () -> joinTimeout(node, joinedNanos), executor);
+            }
+            return joined;
+        }
+        if (existing == null)
+            resolution.getResult().whenComplete((results, error) -> lookupsInFlight.remove(node, lookup));
+        resolution.start();
+        return resolution.getResult();
+    }
+
+    /** Looks up a node again although it is cached, so its records are renewed before they
+     * expire (see Prefetcher). A refresh neither joins nor can be joined by other lookups.
+     *
+     * @param node Host name and record type to be refreshed.
+     * @return A future completed with the records found.
+     */
+    CompletableFuture<Set<ResourceRecord>> refresh(DNSNode node) {
+        Resolution resolution = new Resolution(this, node, 0, System.nanoTime() + lookupTimeoutNanos, true);
+        resolution.start();
+        return resolution.getResult();
+    }
+
+    /** Commits a LookupCompleted event for a client lookup answered from the cache. */
+    private static void recordCachedLookup(DNSNode node, Set<ResourceRecord> cached) {
+        DNSEvents.LookupCompleted event = new DNSEvents.LookupCompleted();
+        if (event.shouldCommit()) {
+            event.name = node.getHostName();
+            event.type = node.getType().name();
+            event.records = cached.size();
+            event.cached = true;
+            event.commit();
+        }
+    }
+
+    private static LookupTimeoutException joinTimeout(DNSNode node, long joinedNanos) {
+        long[] spent = new long[LookupTimeoutException.Stage.values().length];
+        spent[LookupTimeoutException.Stage.JOINED.ordinal()] = System.nanoTime() - joinedNanos;
+        return new LookupTimeoutException(node, LookupTimeoutException.Stage.JOINED, spent, 0, 0);
+    }
+
+    /** Fails a future with an exception when a deadline passes, unless it is complete by then.
+     * The timer is cancelled as soon as the future completes.
+     *
+     * @param future        Future to be failed.
+     * @param deadlineNanos Value of System.nanoTime() at which the future fails.
+     * @param error         Supplier of the exception, called on the executor.
+     * @param executor      Executor on which the future is failed.
+     */
+    static <T> void failAtDeadline(CompletableFuture<T> future, long deadlineNanos,
+                                   Supplier<? extends Throwable> error, Executor executor) {
+        atDeadline(future, deadlineNanos, () -> future.completeExceptionally(error.get()), executor);
+    }
+
+    /** Runs an action when a deadline passes, unless a future is complete by then. The timer
+     * is cancelled as soon as the future completes.
+     *
+     * @param future        Future whose completion cancels the action.
+     * @param deadlineNanos Value of System.nanoTime() at which the action runs.
+     * @param action        Action run on the executor.
+     * @param executor      Executor on which the action runs.
+     */
+    static void atDeadline(CompletableFuture<?> future, long deadlineNanos, Runnable action, Executor executor) {
+        CompletableFuture<Void> timer = new CompletableFuture<>();
+        timer.orTimeout(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS)
+                .whenCompleteAsync((ignored, timeout) -> {
+                    if (timeout != null && !future.isDone())
+                        action.run();
+                }, executor);
+        future.whenComplete((result, failure) -> timer.complete(null));
+    }
+
+    /** Abandons a lookup whose result is no longer needed, e.g. the address of a name server
+     * when that of another one is already known. The lookup stops before sending any further
+     * query, unless other requests joined it, in which case it continues for them.
+     *
+     * @param node   Node being looked up.
+     * @param result Future returned by resolve for the lookup.
+     */
+    void abandon(DNSNode node, CompletableFuture<Set<ResourceRecord>> result) {
+        InFlightLookup lookup = lookupsInFlight.get(node);
+        if (lookup == null || lookup.resolution.getResult() != result || !lookup.abandon())
+            return;
+        lookupsInFlight.remove(node, lookup);
+        lookup.resolution.abandon();
+        abandonedLookups.increment();
+    }
+
+    /** Sends a question to a server, then decodes and caches the response. If the same
+     * question is already in flight to the same server, no new query is sent, and the
+     * returned future completes with the response to the earlier query.
+     *
+     * @param server        Address of the server to which the question is sent.
+     * @param question      Host name and record type to be queried.
+     * @param timeoutMillis Time to wait for the response; at least 1.
+     * @return A future completed with the name servers of a referral, or an empty set.
+     */
+    CompletableFuture<Set<ResourceRecord>> query(InetAddress server, DNSNode question, long timeoutMillis) {
+        UpstreamQuery key = new UpstreamQuery(server, question);
+        CompletableFuture<Set<ResourceRecord>> result = new CompletableFuture<>();
+        CompletableFuture<Set<ResourceRecord>> existing = queriesInFlight.putIfAbsent(key, result);
+        if (existing != null) {
+            coalescedQueries.increment();
+            return existing;
+        }
+        recordQuery();
+        long start = System.nanoTime();
+        transport.send(server, question, id -> DNSQueryHandler.encodeQuery(new byte[512], id, question, server),
+                        timeoutMillis)
+                .whenCompleteAsync((response, error) -> {
+                    queriesInFlight.remove(key, result);
+                    if (error != null) {
+                        IOException exception = DNSTransport.asIOException(Resolution.unwrap(error));
+                        if (exception instanceof SocketTimeoutException)
+                            recordTimeout(server);
+                        result.completeExceptionally(exception);
+                        return;
+                    }
+                    long elapsed = System.nanoTime() - start;
+                    infrastructure.recordResponse(server, elapsed);
+                    DNSQueryHandler.getQueryTimes().record(elapsed);
+                    try {
+                        Set<ResourceRecord> referral = DNSQueryHandler.decodeAndCacheResponse(
+                                response.getTransactionID(), response.getResponse(), cache);
+                        result.complete(referral == null ? Collections.emptySet() : referral);
+                    } catch (IOException | DNSParsingException e) {
+                        result.completeExceptionally(e);
+                    }
+                }, executor);
+        return result;
+    }
+
+    /** Sends a question to the best of several equivalent servers, hedging it to a second
+     * server if the first is slow to respond, and retrying it if no server responds.
+     *
+     * @param servers       Addresses of the servers able to answer the question; must not be empty.
+     * @param question      Host name and record type to be queried.
+     * @param deadlineNanos Value of System.nanoTime() after which no query is sent or waited for.
+     * @return A future completed with the name servers of a referral, or an empty set.
+     */
+    CompletableFuture<Set<ResourceRecord>> query(List<InetAddress> servers, DNSNode question, long deadlineNanos) {
+        return ServerQuery.send(this, question, servers, deadlineNanos);
+    }
+
+    /** Returns the addresses of the servers to which a question about a host name can be
+     * sent: the name servers of the closest enclosing zone whose NS records and name server
+     * addresses are cached, or the root server if there is none.
+     *
+     * @param hostName Host name being looked up.
+     * @return Addresses of the servers where the lookup should start.
+     */
+    List<InetAddress> findClosestServers(String hostName) {
+        for (String zone : cache.getEnclosingDelegations(hostName)) {
+            List<InetAddress> servers = getNameserverAddresses(cache.getCachedResults(new DNSNode(zone, RecordType.NS)));
+            if (!servers.isEmpty())
+                return servers;
+        }
+        return Collections.singletonList(rootServer);
+    }
+
+    /** Returns the cached addresses of a zone's name servers: their IPv4 addresses, or if
+     * none is cached, their IPv6 addresses the transport can reach.
+     *
+     * @param nameservers NS records of the zone.
+     * @return The addresses of the name servers, empty if none is cached.
+     */
+    List<InetAddress> getNameserverAddresses(Set<ResourceRecord> nameservers) {
+        List<InetAddress> addresses = getNameserverAddresses(nameservers, RecordType.A);
+        return addresses.isEmpty() ? getNameserverAddresses(nameservers, RecordType.AAAA) : addresses;
+    }
+
+    private List<InetAddress> getNameserverAddresses(Set<ResourceRecord> nameservers, RecordType type) {
+        List<InetAddress> addresses = new ArrayList<>();
+        for (ResourceRecord nameserver : nameservers)
+            for (ResourceRecord address : cache.getCachedResults(new DNSNode(nameserver.getTextResult(), type)))
+                if (transport.canReach(address.getInetResult()))
+                    addresses.add(address.getInetResult());
+        return addresses;
+    }
+
+    /** Returns the round-trip time statistics of the servers queried by this resolver. */
+    public InfrastructureCache getInfrastructureCache() {
+        return infrastructure;
+    }
+
+    /** Returns the number of lookups requested, including nested and coalesced ones. */
+    public long getLookupCount() {
+        return lookups.sum();
+    }
+
+    /** Returns the number of lookups that joined a lookup of the same node already in flight. */
+    public long getCoalescedLookupCount() {
+        return coalescedLookups.sum();
+    }
+
+    /** Returns the number of lookups abandoned because their result was no longer needed. */
+    public long getAbandonedLookupCount() {
+        return abandonedLookups.sum();
+    }
+
+    /** Returns the number of queries sent to DNS servers. */
+    public long getQueryCount() {
+        return queries.sum();
+    }
+
+    /** Returns the number of queries not sent because the same question was in flight to the same server. */
+    public long getCoalescedQueryCount() {
+        return coalescedQueries.sum();
+    }
+
+    /** Returns the number of queries that had another server to be hedged to. */
+    public long getHedgeableQueryCount() {
+        return hedgeableQueries.sum();
+    }
+
+    /** Returns the number of queries hedged to a second server. */
+    public long getHedgedQueryCount() {
+        return hedgedQueries.sum();
+    }
+
+    /** Returns the number of hedged queries answered first by the second server. */
+    public long getHedgeWinCount() {
+        return hedgeWins.sum();
+    }
+
+    /** Returns the number of queries sent again after every earlier query for the same question failed. */
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    /** Returns the number of retries sent to a server other than those already tried. */
+    public long getFailoverCount() {
+        return failovers.sum();
+    }
+
+    /** Returns the number of queries that got no response within their retransmission timeout. */
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    /** Returns the number of lookups answered with stale records. */
+    public long getStaleAnswerCount() {
+        return staleAnswers.sum();
+    }
+
+    /** Returns the number of referrals followed by each lookup that was not answered from the cache alone. */
+    public LatencyHistogram getReferralDepths() {
+        return referralDepths;
+    }
+
+    /** Returns the number of CNAME records followed by each lookup that was not answered from the cache alone. */
+    public LatencyHistogram getCnameDepths() {
+        return cnameDepths;
+    }
+
+    void recordLookup(int referrals, int cnames) {
+        referralDepths.record(referrals);
+        cnameDepths.record(cnames);
+    }
+
+    void recordHedgeable() {
+        hedgeableQueries.increment();
+    }
+
+    void recordHedge() {
+        hedgedQueries.increment();
+    }
+
+    void recordHedgeWin() {
+        hedgeWins.increment();
+    }
+
+    void recordRetry(boolean failover) {
+        retries.increment();
+        if (failover)
+            failovers.increment();
+    }
+
+    void recordQuery() {
+        queries.increment();
+    }
+
+    /** Counts a query that got no response in time, and charges it to its server. */
+    void recordTimeout(InetAddress server) {
+        timeouts.increment();
+        infrastructure.recordTimeout(server);
+    }
+
+    /** Returns the time allowed for a lookup, in milliseconds. */
+    public long getLookupTimeoutMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lookupTimeoutNanos);
+    }
+
+    /** Sets the time allowed for lookups started from now on.
+     *
+     * @param timeout Time allowed for a lookup; must be positive.
+     * @param unit    Unit of the timeout.
+     */
+    public void setLookupTimeout(long timeout, TimeUnit unit) {
+        if (timeout <= 0)
+            throw new IllegalArgumentException("Lookup timeout must be positive");
+        lookupTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /** Returns how long a client waits for a lookup before getting stale records, in milliseconds. */
+    public long getStaleAnswerTimeoutMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(staleAnswerTimeoutNanos);
+    }
+
+    /** Sets how long a client waits for a lookup before getting stale records, if any.
+     *
+     * @param timeout Time after which stale records are returned; must not be negative.
+     * @param unit    Unit of the timeout.
+     */
+    public void setStaleAnswerTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0)
+            throw new IllegalArgumentException("Stale answer timeout must not be negative");
+        staleAnswerTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    public InetAddress getRootServer() {
+        return rootServer;
+    }
+
+    public void setRootServer(InetAddress rootServer) {
+        this.rootServer = rootServer;
+    }
+
+    DNSCache getCache() {
+        return cache;
+    }
+
+    DNSTransport getTransport() {
+        return transport;
+    }
+
+    Executor getExecutor() {
+        return executor;
+    }
+
+    private static final class InFlightLookup {
+        final Resolution resolution;
+        final int depth;
+        // Guarded by this
+        private boolean joined = false;
+        private boolean abandoned = false;
+
+        InFlightLookup(Resolution resolution, int depth) {
+            this.resolution = resolution;
+            this.depth = depth;
+        }
+
+        /** Records that another request waits for this lookup, unless it was abandoned. */
+        synchronized boolean join() {
+            if (abandoned)
+                return false;
+            joined = true;
+            return true;
+        }
+
+        /** Marks this lookup abandoned, unless another request waits for it. */
+        synchronized boolean abandon() {
+            if (joined)
+                return false;
+            abandoned = true;
+            return true;
+        }
+    }
+
+    private static final class UpstreamQuery {
+        final InetAddress server;
+        final DNSNode question;
+
+        UpstreamQuery(InetAddress server, DNSNode question) {
+            this.server = server;
+            this.question = question;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof UpstreamQuery)) return false;
+            UpstreamQuery that = (UpstreamQuery) o;
+            return server.equals(that.server) && question.equals(that.question);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(server, question);
+        }
+    }
+
+    private static ExecutorService newWorkerPool() {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), task -> {
+            Thread thread = new Thread(task, "dns-resolver-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,305 @@
+package ca.ubc.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/** Flyweight parser for DNS responses. The parser reads the response buffer in place using
+ * absolute gets, and passes each question and resource record to a visitor. While a record
+ * is being visited, the parser itself gives access to the record's fields; names are decoded
+ * into reusable scratch buffers and exposed as CharSequence views, so parsing a response does
+ * not allocate anything unless the visitor decides to materialize a field (e.g., with
+ * toString()).
+ *
+ * A parser instance can be reused for any number of responses, but not by several threads at
+ * the same time. The views returned by the parser are only valid until the visitor returns.
+ */
+public final class DNSResponseParser {
+
+    public static final int ANSWER = 0;
+    public static final int AUTHORITY = 1;
+    public static final int ADDITIONAL = 2;
+
+    private static final int HEADER_LENGTH = 12;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int MAX_POINTERS = 64;
+
+    /** Receives the contents of a response as the parser walks through it. */
+    public interface Visitor {
+
+        /** Called once with the response header, before any question or record.
+         *
+         * @param parser Parser giving access to the header fields.
+         * @throws DNSParsingException to abort parsing, e.g., because of an error code.
+         */
+        default void visitHeader(DNSResponseParser parser) throws DNSParsingException {
+        }
+
+        /** Called for each entry of the question section.
+         *
+         * @param parser Parser giving access to the question's name and type.
+         */
+        default void visitQuestion(DNSResponseParser parser) {
+        }
+
+        /** Called for each resource record of the answer, authority and additional sections.
+         *
+         * @param parser  Parser giving access to the record's fields.
+         * @param section One of ANSWER, AUTHORITY or ADDITIONAL.
+         * @throws DNSParsingException if the record's data is malformed.
+         */
+        void visitRecord(DNSResponseParser parser, int section) throws DNSParsingException;
+    }
+
+    private ByteBuffer buffer;
+    private int base;
+    private int limit;
+
+    private final NameView name = new NameView();
+    private final NameView target = new NameView();
+    private int typeCode;
+    private long ttl;
+    private int dataOffset;
+    private int dataLength;
+
+    /** Parses a DNS response, starting at the buffer's current position and ending at its
+     * limit. The buffer's position and limit are not modified.
+     *
+     * @param response Buffer containing the response.
+     * @param visitor  Visitor receiving the header, questions and records of the response.
+     * @throws DNSParsingException if the response is malformed or the visitor rejects it.
+     */
+    public void parse(ByteBuffer response, Visitor visitor) throws DNSParsingException {
+        parse(response, visitor, true);
+    }
+
+    /** Parses only the header and question section of a DNS response, e.g. to match the
+     * response with the query it answers. The visitor's visitRecord method is never called.
+     *
+     * @param response Buffer containing the response.
+     * @param visitor  Visitor receiving the header and questions of the response.
+     * @throws DNSParsingException if the response is malformed or the visitor rejects it.
+     */
+    public void parseQuestions(ByteBuffer response, Visitor visitor) throws DNSParsingException {
+        parse(response, visitor, false);
+    }
+
+    private void parse(ByteBuffer response, Visitor visitor, boolean records) throws DNSParsingException {
+        buffer = response;
+        base = response.position();
+        limit = response.limit();
+        try {
+            if (limit - base < HEADER_LENGTH)
+                throw new DNSParsingException("Response shorter than a DNS header");
+            visitor.visitHeader(this);
+
+            int offset = base + HEADER_LENGTH;
+            for (int i = getQuestionCount(); i > 0; i--) {
+                offset = decodeName(offset, name);
+                checkAvailable(offset, 4);
+                typeCode = getUnsignedShort(offset);
+                visitor.visitQuestion(this);
+                offset += 4;
+            }
+            if (!records)
+                return;
+
+            int answers = getAnswerCount();
+            int authority = getAuthorityCount();
+            int total = answers + authority + getAdditionalCount();
+            for (int i = 0; i < total; i++) {
+                offset = decodeName(offset, name);
+                checkAvailable(offset, 10);
+                typeCode = getUnsignedShort(offset);
+                ttl = buffer.getInt(offset + 4);
+                dataLength = getUnsignedShort(offset + 8);
+                dataOffset = offset + 10;
+                checkAvailable(dataOffset, dataLength);
+                visitor.visitRecord(this, i < answers ? ANSWER : i < answers + authority ? AUTHORITY : ADDITIONAL);
+                offset = dataOffset + dataLength;
+            }
+        } finally {
+            buffer = null;
+        }
+    }
+
+    public int getTransactionID() {
+        return getUnsignedShort(base);
+    }
+
+    public int getFlags() {
+        return getUnsignedShort(base + 2);
+    }
+
+    public int getReplyCode() {
+        return getFlags() & 0x000F;
+    }
+
+    public boolean isAuthoritative() {
+        return (getFlags() & 0x0400) != 0;
+    }
+
+    public boolean isTruncated() {
+        return (getFlags() & 0x0200) != 0;
+    }
+
+    public int getQuestionCount() {
+        return getUnsignedShort(base + 4);
+    }
+
+    public int getAnswerCount() {
+        return getUnsignedShort(base + 6);
+    }
+
+    public int getAuthorityCount() {
+        return getUnsignedShort(base + 8);
+    }
+
+    public int getAdditionalCount() {
+        return getUnsignedShort(base + 10);
+    }
+
+    /** Returns the owner name of the current question or record, without a trailing dot.
+     *
+     * @return A view of the name, valid until the visitor returns.
+     */
+    public CharSequence getName() {
+        return name;
+    }
+
+    public int getTypeCode() {
+        return typeCode;
+    }
+
+    public RecordType getType() {
+        return RecordType.getByCode(typeCode);
+    }
+
+    /** Returns the TTL of the current record, in seconds. As in the original decoder, TTLs are
+     * read as signed 32-bit values.
+     *
+     * @return The TTL of the current record.
+     */
+    public long getTTL() {
+        return ttl;
+    }
+
+    /** Returns the offset of the current record's data within the response buffer.
+     *
+     * @return The absolute index of the first byte of the record's data.
+     */
+    public int getDataOffset() {
+        return dataOffset;
+    }
+
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    /** Decodes a domain name found in the data of the current record, such as the target of a
+     * CNAME or NS record, or the exchange of an MX record.
+     *
+     * @param offsetInData Offset of the name from the start of the record's data.
+     * @return A view of the name, valid until the next call of this method or until the
+     * visitor returns.
+     * @throws DNSParsingException if the name is malformed.
+     */
+    public CharSequence decodeDataName(int offsetInData) throws DNSParsingException {
+        if (offsetInData >= dataLength)
+            throw new DNSParsingException("Name outside of record data");
+        decodeName(dataOffset + offsetInData, target);
+        return target;
+    }
+
+    /** Reads an unsigned 32-bit value from the data of the current record.
+     *
+     * @param offsetInData Offset of the value from the start of the record's data.
+     * @return The value read.
+     * @throws DNSParsingException if the value lies outside of the record's data.
+     */
+    public long getDataUnsignedInt(int offsetInData) throws DNSParsingException {
+        if (offsetInData < 0 || offsetInData + 4 > dataLength)
+            throw new DNSParsingException("Value outside of record data");
+        return buffer.getInt(dataOffset + offsetInData) & 0xFFFFFFFFL;
+    }
+
+    /** Copies the data of the current record into an array, e.g. to build an address.
+     *
+     * @param destination Array receiving the data; must be at least as long as the data.
+     */
+    public void copyData(byte[] destination) {
+        for (int i = 0; i < dataLength; i++)
+            destination[i] = buffer.get(dataOffset + i);
+    }
+
+    private int getUnsignedShort(int index) {
+        return buffer.getShort(index) & 0xFFFF;
+    }
+
+    private void checkAvailable(int offset, int length) throws DNSParsingException {
+        if (offset + length > limit)
+            throw new DNSParsingException("Truncated response");
+    }
+
+    /** Decodes the name starting at an offset into a view, following compression pointers.
+     *
+     * @return The offset of the first byte after the name at its original location.
+     */
+    private int decodeName(int offset, NameView view) throws DNSParsingException {
+        view.length = 0;
+        int next = -1;
+        int pointers = 0;
+        while (true) {
+            checkAvailable(offset, 1);
+            int labelLength = buffer.get(offset) & 0xFF;
+            if ((labelLength & 0xC0) == 0xC0) {
+                checkAvailable(offset, 2);
+                if (next < 0)
+                    next = offset + 2;
+                if (++pointers > MAX_POINTERS)
+                    throw new DNSParsingException("Compression loop in name");
+                offset = base + (getUnsignedShort(offset) & 0x3FFF);
+            } else if (labelLength == 0) {
+                return next < 0 ? offset + 1 : next;
+            } else if ((labelLength & 0xC0) != 0) {
+                throw new DNSParsingException("Unsupported label type");
+            } else {
+                checkAvailable(offset + 1, labelLength);
+                if (view.length + labelLength + 1 > MAX_NAME_LENGTH)
+                    throw new DNSParsingException("Name too long");
+                if (view.length > 0)
+                    view.bytes[view.length++] = '.';
+                for (int i = 1; i <= labelLength; i++)
+                    view.bytes[view.length++] = buffer.get(offset + i);
+                offset += labelLength + 1;
+            }
+        }
+    }
+
+    /** Reusable view of a decoded name. Names are treated as single-byte characters. */
+    private static final class NameView implements CharSequence {
+        final byte[] bytes = new byte[MAX_NAME_LENGTH];
+        int length;
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index >= length)
+                throw new IndexOutOfBoundsException();
+            return (char) (bytes[index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
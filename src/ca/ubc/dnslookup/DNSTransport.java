@@ -0,0 +1,429 @@
+package ca.ubc.dnslookup;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/** UDP transport multiplexing any number of outstanding DNS queries over a single, long-lived
+ * non-blocking datagram channel. Each query is given a transaction ID that is not already in
+ * use with the same server, and is recorded in a table of pending queries. A dedicated thread
+ * waits on a selector for incoming datagrams, reads them into pooled direct buffers, and
+ * completes the pending query whose server, transaction ID and question match the response.
+ * Responses that match no pending query (late, duplicated or spoofed) are dropped.
+ *
+ * A query whose response is truncated (TC bit set) is sent again over TCP (RFC 7766), on a
+ * persistent connection to the server shared with other queries (see TcpTransport), and
+ * completes with the TCP response.
+ */
+public class DNSTransport implements AutoCloseable {
+
+    private static final int MAX_UDP_PAYLOAD = 65535;
+    private static final int MAX_QUERY_LENGTH = 512;
+    private static final int MAX_ID_ATTEMPTS = 64;
+    /** Requested socket receive buffer, so bursts of responses are not dropped by the kernel. */
+    private static final int RECEIVE_BUFFER_SIZE = 4 << 20;
+
+    private final int serverPort;
+    private final DatagramChannel channel;
+    private final boolean ipv6;
+    private final Selector selector;
+    private final Thread receiver;
+    private final BufferPool queryBuffers = new BufferPool(MAX_QUERY_LENGTH, 256);
+    private final BufferPool receiveBuffers = new BufferPool(MAX_UDP_PAYLOAD, 4);
+    private final ConcurrentHashMap<PendingKey, PendingQuery> pending = new ConcurrentHashMap<>();
+    private final DNSResponseParser parser = new DNSResponseParser();
+    private final QuestionMatcher matcher = new QuestionMatcher();
+    private final LongAdder truncated = new LongAdder();
+    private final LongAdder receiveErrors = new LongAdder();
+    private TcpTransport tcp; // Opened when the first truncated response arrives, guarded by this
+    private volatile boolean closed = false;
+
+    /** Opens a transport sending queries to the specified port of DNS servers.
+     *
+     * @param serverPort UDP port DNS servers listen to, normally 53.
+     * @throws IOException if the channel could not be opened.
+     */
+    public DNSTransport(int serverPort) throws IOException {
+        this.serverPort = serverPort;
+        this.channel = DatagramChannel.open();
+        this.channel.configureBlocking(false);
+        this.channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        this.channel.bind(null);
+        this.ipv6 = ((InetSocketAddress) channel.getLocalAddress()).getAddress() instanceof Inet6Address;
+        this.selector = Selector.open();
+        this.channel.register(selector, SelectionKey.OP_READ);
+        this.receiver = new Thread(this::receiveLoop, "dns-transport");
+        this.receiver.setDaemon(true);
+        this.receiver.start();
+    }
+
+    /** Returns true if queries can be sent to IPv6 servers, that is, if the channel is an IPv6
+     * (dual-stack) one. IPv4 servers can always be reached.
+     */
+    public boolean canReachIPv6() {
+        return ipv6;
+    }
+
+    /** Returns true if queries can be sent to a server at this address. */
+    public boolean canReach(InetAddress server) {
+        return ipv6 || server instanceof Inet4Address;
+    }
+
+    /** Sends a query to a DNS server. The query itself is produced by an encoder, which is
+     * given the transaction ID chosen for the query, and is called again with another ID if
+     * the query has to be sent over TCP.
+     *
+     * @param server        Address of the server to which the query is sent.
+     * @param question      Host name and record type the query asks for.
+     * @param encoder       Function returning the encoded query for a given transaction ID.
+     * @param timeoutMillis Time after which the query fails with a SocketTimeoutException, or
+     *                      twice that time (for the handshake) once it is sent over TCP.
+     * @return A future completed with the server's response.
+     */
+    public CompletableFuture<DNSServerResponse> send(InetAddress server, DNSNode question,
+                                                     IntFunction<byte[]> encoder, long timeoutMillis) {
+        CompletableFuture<DNSServerResponse> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new ClosedChannelException());
+            return future;
+        }
+
+        PendingQuery query = new PendingQuery(question, new CompletableFuture<>());
+        PendingKey key = null;
+        for (int attempt = 0; attempt < MAX_ID_ATTEMPTS && key == null; attempt++) {
+            PendingKey candidate = new PendingKey(ThreadLocalRandom.current().nextInt(0x10000), server);
+            if (pending.putIfAbsent(candidate, query) == null)
+                key = candidate;
+        }
+        if (key == null) {
+            future.completeExceptionally(new IOException("Too many outstanding queries to " + server.getHostAddress()));
+            return future;
+        }
+
+        PendingKey registered = key;
+        query.future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((response, error) -> {
+            pending.remove(registered, query);
+            if (error != null)
+                future.completeExceptionally(error);
+            else if (!isTruncated(response.getResponse()))
+                future.complete(response);
+            else
+                retryOverTcp(server, encoder, 2 * timeoutMillis, future);
+        });
+
+        ByteBuffer buffer = queryBuffers.acquire();
+        try {
+            buffer.put(encoder.apply(key.id)).flip();
+            int length = buffer.remaining();
+            // The channel is non-blocking: nothing is sent while the socket send buffer is full,
+            // and the query fails now rather than waiting for a timeout charged to the server
+            if (channel.send(buffer, new InetSocketAddress(server, serverPort)) == 0)
+                throw new IOException("Socket send buffer full, query to " + server.getHostAddress() + " not sent");
+            recordEvents(server, key.id, question, length, future);
+        } catch (IOException | RuntimeException e) {
+            query.future.completeExceptionally(e);
+        } finally {
+            queryBuffers.release(buffer);
+        }
+        return future;
+    }
+
+    private static boolean isTruncated(ByteBuffer response) {
+        return response.remaining() > 2 && (response.get(response.position() + 2) & 0x02) != 0;
+    }
+
+    /** Sends a query again over TCP, because its UDP response was truncated, and completes a
+     * future with the TCP response.
+     */
+    private void retryOverTcp(InetAddress server, IntFunction<byte[]> encoder, long timeoutMillis,
+                              CompletableFuture<DNSServerResponse> future) {
+        truncated.increment();
+        TcpTransport connections;
+        try {
+            connections = getTcpTransport();
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return;
+        }
+        connections.send(server, encoder, timeoutMillis).whenComplete((response, error) -> {
+            if (error != null)
+                future.completeExceptionally(error);
+            else
+                future.complete(response);
+        });
+    }
+
+    private synchronized TcpTransport getTcpTransport() throws IOException {
+        if (closed)
+            throw new ClosedChannelException();
+        if (tcp == null)
+            tcp = new TcpTransport(serverPort);
+        return tcp;
+    }
+
+    /** Commits a QuerySent event, and a QueryAnswered or QueryTimedOut event once the query completes. */
+    private static void recordEvents(InetAddress server, int id, DNSNode question, int length,
+                                     CompletableFuture<DNSServerResponse> future) {
+        DNSEvents.QuerySent sent = new DNSEvents.QuerySent();
+        if (sent.shouldCommit()) {
+            sent.server = server.getHostAddress();
+            sent.id = id;
+            sent.name = question.getHostName();
+            sent.type = question.getType().name();
+            sent.bytes = length;
+            sent.commit();
+        }
+        DNSEvents.QueryAnswered answered = new DNSEvents.QueryAnswered();
+        DNSEvents.QueryTimedOut timedOut = new DNSEvents.QueryTimedOut();
+        if (!answered.isEnabled() && !timedOut.isEnabled())
+            return;
+        answered.begin();
+        timedOut.begin();
+        future.whenComplete((response, error) -> {
+            if (response != null) {
+                answered.end();
+                if (answered.shouldCommit()) {
+                    answered.server = server.getHostAddress();
+                    answered.id = id;
+                    answered.name = question.getHostName();
+                    answered.type = question.getType().name();
+                    answered.queryBytes = length;
+                    answered.responseBytes = response.getResponse().limit();
+                    answered.commit();
+                }
+            } else if (error instanceof TimeoutException) {
+                timedOut.end();
+                if (timedOut.shouldCommit()) {
+                    timedOut.server = server.getHostAddress();
+                    timedOut.id = id;
+                    timedOut.name = question.getHostName();
+                    timedOut.type = question.getType().name();
+                    timedOut.queryBytes = length;
+                    timedOut.commit();
+                }
+            }
+        });
+    }
+
+    /** Sends a query and waits for the response.
+     *
+     * @see #send(InetAddress, DNSNode, IntFunction, long)
+     * @throws SocketTimeoutException if no response was received in time.
+     * @throws IOException            if the query could not be sent.
+     */
+    public DNSServerResponse sendAndWait(InetAddress server, DNSNode question,
+                                         IntFunction<byte[]> encoder, long timeoutMillis) throws IOException {
+        try {
+            return send(server, question, encoder, timeoutMillis).join();
+        } catch (CompletionException e) {
+            throw asIOException(e.getCause());
+        }
+    }
+
+    /** Returns the number of responses that were truncated, and whose query was sent again over TCP. */
+    public long getTruncatedCount() {
+        return truncated.sum();
+    }
+
+    /** Returns the number of errors receiving responses, over UDP or TCP. */
+    public long getReceiveErrorCount() {
+        TcpTransport connections;
+        synchronized (this) {
+            connections = tcp;
+        }
+        return receiveErrors.sum() + (connections == null ? 0 : connections.getErrorCount());
+    }
+
+    /** Returns the number of TCP connections opened to send queries again after a truncated response. */
+    public long getTcpConnectionCount() {
+        TcpTransport connections;
+        synchronized (this) {
+            connections = tcp;
+        }
+        return connections == null ? 0 : connections.getConnectionCount();
+    }
+
+    /** Returns the number of queries waiting for a UDP response.
+     *
+     * @return The number of outstanding queries.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /** Closes the channel and the TCP connections. Outstanding queries fail with a
+     * ClosedChannelException.
+     */
+    @Override
+    public void close() {
+        TcpTransport connections;
+        synchronized (this) {
+            closed = true;
+            connections = tcp;
+        }
+        if (connections != null)
+            connections.close();
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        pending.values().forEach(query -> query.future.completeExceptionally(new ClosedChannelException()));
+        pending.clear();
+    }
+
+    /** Converts the cause of a failed query into the exception the blocking API throws.
+     *
+     * @param cause Cause of the failure.
+     * @return An IOException describing the failure.
+     */
+    static IOException asIOException(Throwable cause) {
+        if (cause instanceof TimeoutException)
+            return new SocketTimeoutException("No response from DNS server");
+        if (cause instanceof IOException)
+            return (IOException) cause;
+        return new IOException(cause);
+    }
+
+    private void receiveLoop() {
+        while (!closed) {
+            try {
+                selector.select();
+                selector.selectedKeys().clear();
+                ByteBuffer buffer = receiveBuffers.acquire();
+                try {
+                    SocketAddress source;
+                    while ((source = channel.receive(buffer)) != null) {
+                        buffer.flip();
+                        dispatch((InetSocketAddress) source, buffer);
+                        buffer.clear();
+                    }
+                } finally {
+                    receiveBuffers.release(buffer);
+                }
+            } catch (IOException e) {
+                // The queries waiting for a response time out and are retried
+                if (!closed)
+                    receiveErrors.increment();
+            } catch (ClosedSelectorException e) {
+                return;
+            }
+        }
+    }
+
+    /** Completes the pending query answered by a datagram, if any.
+     *
+     * @param source   Address the datagram was received from.
+     * @param datagram Buffer containing the datagram, between its position and limit.
+     */
+    private void dispatch(InetSocketAddress source, ByteBuffer datagram) {
+        if (source.getPort() != serverPort || datagram.remaining() < 2)
+            return;
+        int id = datagram.getShort(datagram.position()) & 0xFFFF;
+        PendingKey key = new PendingKey(id, source.getAddress());
+        PendingQuery query = pending.get(key);
+        if (query == null)
+            return;
+
+        matcher.expected = query.question;
+        try {
+            parser.parseQuestions(datagram, matcher);
+        } catch (DNSParsingException e) {
+            return;
+        }
+        if (!matcher.matched || !pending.remove(key, query))
+            return;
+
+        // Copy the datagram out of the pooled buffer, so it can be decoded by another thread
+        ByteBuffer response = ByteBuffer.allocate(datagram.remaining());
+        response.put(datagram).flip();
+        query.future.complete(new DNSServerResponse(response, id));
+    }
+
+    /** Checks that a response is a reply to the question of the query it claims to answer. */
+    private static class QuestionMatcher implements DNSResponseParser.Visitor {
+        DNSNode expected;
+        boolean matched;
+
+        @Override
+        public void visitHeader(DNSResponseParser parser) {
+            // A response must have the QR bit set and echo exactly one question
+            matched = (parser.getFlags() & 0x8000) != 0 && parser.getQuestionCount() == 1;
+        }
+
+        @Override
+        public void visitQuestion(DNSResponseParser parser) {
+            matched = matched && parser.getType() == expected.getType()
+                    && sameName(parser.getName(), expected.getHostName());
+        }
+
+        @Override
+        public void visitRecord(DNSResponseParser parser, int section) {
+        }
+
+        private static boolean sameName(CharSequence received, String expected) {
+            int length = expected.endsWith(".") ? expected.length() - 1 : expected.length();
+            if (received.length() != length)
+                return false;
+            for (int i = 0; i < length; i++)
+                if (Character.toLowerCase(received.charAt(i)) != Character.toLowerCase(expected.charAt(i)))
+                    return false;
+            return true;
+        }
+    }
+
+    /** Transaction ID and server of a pending query. */
+    private static final class PendingKey {
+        final int id;
+        final InetAddress server;
+
+        PendingKey(int id, InetAddress server) {
+            this.id = id;
+            this.server = server;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PendingKey)) return false;
+            PendingKey that = (PendingKey) o;
+            return id == that.id && server.equals(that.server);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * server.hashCode() + id;
+        }
+    }
+
+    /** A query waiting for its response. */
+    private static final class PendingQuery {
+        final DNSNode question;
+        final CompletableFuture<DNSServerResponse> future;
+
+        PendingQuery(DNSNode question, CompletableFuture<DNSServerResponse> future) {
+            this.question = Objects.requireNonNull(question);
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package ca.ubc.dnslookup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Index of the zone cuts for which NS records are cached. The index is a trie of labels,
+ * starting with the top-level domain, so the zones enclosing a host name are found by walking
+ * one node per label of the name. The index only tells which zones to look up in the cache;
+ * the NS records themselves, and their expiration, are still handled by the cache.
+ *
+ * Lookups walk the trie without locking. Zones are added and removed under a lock, so nodes
+ * left without a zone or children can be pruned safely.
+ */
+final class DelegationIndex {
+
+    private final Node root = new Node();
+    private int size = 0;
+
+    /** Records that NS records are cached for a zone. */
+    synchronized void add(String zone) {
+        Node node = root;
+        for (String label : reversedLabels(zone))
+            node = node.children.computeIfAbsent(label, l -> new Node());
+        if (node.zone == null)
+            size++;
+        node.zone = zone;
+    }
+
+    /** Records that NS records are no longer cached for a zone. */
+    synchronized void remove(String zone) {
+        String[] labels = reversedLabels(zone);
+        Node[] path = new Node[labels.length + 1];
+        path[0] = root;
+        for (int i = 0; i < labels.length; i++) {
+            path[i + 1] = path[i].children.get(labels[i]);
+            if (path[i + 1] == null)
+                return;
+        }
+        Node node = path[labels.length];
+        if (node.zone == null)
+            return;
+        node.zone = null;
+        size--;
+        for (int i = labels.length; i > 0 && path[i].zone == null && path[i].children.isEmpty(); i--)
+            path[i - 1].children.remove(labels[i - 1]);
+    }
+
+    /** Returns the indexed zones enclosing a host name, including the name itself, deepest first. */
+    List<String> enclosingZones(String hostName) {
+        List<String> zones = null;
+        Node node = root;
+        for (String label : reversedLabels(hostName)) {
+            node = node.children.get(label);
+            if (node == null)
+                break;
+            String zone = node.zone;
+            if (zone != null) {
+                if (zones == null)
+                    zones = new ArrayList<>(4);
+                zones.add(zone);
+            }
+        }
+        if (zones == null)
+            return Collections.emptyList();
+        Collections.reverse(zones);
+        return zones;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /** Returns the lowercase labels of a name, from the top-level domain down. */
+    private static String[] reversedLabels(String name) {
+        int end = name.length();
+        while (end > 0 && name.charAt(end - 1) == '.')
+            end--;
+        if (end == 0)
+            return new String[0];
+        int count = 1;
+        for (int i = 0; i < end; i++)
+            if (name.charAt(i) == '.')
+                count++;
+        String[] labels = new String[count];
+        int index = 0;
+        for (int i = end - 1; i >= -1; i--) {
+            if (i == -1 || name.charAt(i) == '.') {
+                labels[index++] = DNSNode.toKey(name.substring(i + 1, end));
+                end = i;
+            }
+        }
+        return labels;
+    }
+
+    private static final class Node {
+        final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<>(4);
+        volatile String zone;
+    }
+}
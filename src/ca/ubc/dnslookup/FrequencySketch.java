@@ -0,0 +1,91 @@
+package ca.ubc.dnslookup;
+
+/** A count-min sketch estimating how often each DNS node has been accessed recently. Each
+ * node is counted in four 4-bit counters chosen by independent hashes, and its frequency is
+ * the smallest of them. Once the number of recorded accesses reaches ten times the expected
+ * number of entries, every counter is halved, so old popularity fades away over time.
+ *
+ * This class is not thread-safe; the cache only uses it while holding its eviction lock.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+
+    /** Creates a sketch sized for a cache holding approximately the specified number of entries.
+     *
+     * @param expectedEntries Expected number of entries in the cache.
+     */
+    FrequencySketch(long expectedEntries) {
+        int size = (int) Math.min(Math.max(expectedEntries, 16), 1 << 24);
+        int tableSize = Integer.highestOneBit(size - 1) << 1;
+        this.table = new long[tableSize];
+        this.tableMask = tableSize - 1;
+        this.sampleSize = 10 * size;
+    }
+
+    /** Returns the estimated number of recent accesses of a node, between 0 and 15.
+     *
+     * @param node Node whose frequency is estimated.
+     * @return The estimated frequency of the node.
+     */
+    int frequency(DNSNode node) {
+        int hash = spread(node.hashCode());
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = indexOf(hash, i);
+            int offset = offsetOf(hash, i);
+            frequency = Math.min(frequency, (int) ((table[index] >>> offset) & 0xfL));
+        }
+        return frequency;
+    }
+
+    /** Records one access of a node. Counters saturate at 15.
+     *
+     * @param node Node being accessed.
+     */
+    void increment(DNSNode node) {
+        int hash = spread(node.hashCode());
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = indexOf(hash, i);
+            int offset = offsetOf(hash, i);
+            long mask = 0xfL << offset;
+            if ((table[index] & mask) != mask) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize)
+            reset();
+    }
+
+    /** Halves every counter, so that frequencies reflect recent accesses only. */
+    private void reset() {
+        for (int i = 0; i < table.length; i++)
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        additions /= 2;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    private static int offsetOf(int hash, int i) {
+        return (((hash >>> (i << 3)) & 3) << 2) + (i << 4);
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
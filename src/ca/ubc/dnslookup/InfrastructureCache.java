@@ -0,0 +1,207 @@
+package ca.ubc.dnslookup;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Cache of what is known about upstream DNS servers, used to choose which server to query.
+ * For each server address it keeps a smoothed round-trip time and its mean deviation, updated
+ * after every response as TCP does (RFC 6298). A server not heard from yet is assumed to take
+ * UNKNOWN_SERVER_RTT_MICROS. The same statistics give the retransmission timeout of a server,
+ * i.e. how long to wait for its response before the query is considered lost.
+ *
+ * Queries normally go to the server with the lowest smoothed RTT, but a small fraction
+ * explore another server, so a server that was slow once, or was never tried, gets a chance to
+ * prove faster. A server that times out is held down, i.e. avoided while any other server can
+ * be used, for a period doubling with every consecutive timeout; a response ends the hold-down.
+ */
+public final class InfrastructureCache {
+
+    /** Round-trip time assumed for a server that was never queried. */
+    public static final long UNKNOWN_SERVER_RTT_MICROS = 376_000;
+    /** Fraction of selections that explore a server other than the best one. */
+    static final double EXPLORATION_PROBABILITY = 0.05;
+    /** Shortest retransmission timeout; shorter than TCP's, as a lost datagram costs little. */
+    public static final long MIN_RTO_MILLIS = 100;
+    /** Longest retransmission timeout, including backoff. */
+    public static final long MAX_RTO_MILLIS = 5000;
+    /** Shortest delay before a query is hedged to another server. */
+    private static final long MIN_HEDGE_DELAY_MICROS = 10_000;
+    private static final long MIN_HOLD_DOWN_NANOS = 1_000_000_000L;
+    private static final long MAX_HOLD_DOWN_NANOS = 900_000_000_000L;
+
+    private final ConcurrentHashMap<InetAddress, ServerState> servers = new ConcurrentHashMap<>();
+
+    /** Chooses the server to which the next query should be sent.
+     *
+     * @param candidates Addresses of the servers able to answer the query; must not be empty.
+     * @return The server with the lowest smoothed RTT among those not held down, or another
+     * server when exploring. If all servers are held down, the one whose hold-down ends first.
+     */
+    public InetAddress select(List<InetAddress> candidates) {
+        if (candidates.size() == 1)
+            return candidates.get(0);
+
+        long now = System.nanoTime();
+        InetAddress best = null;
+        long bestRtt = Long.MAX_VALUE;
+        int available = 0;
+        InetAddress soonest = null;
+        long soonestRelease = Long.MAX_VALUE;
+        for (InetAddress candidate : candidates) {
+            ServerState state = servers.get(candidate);
+            long heldDownFor = state == null ? 0 : state.heldDownFor(now);
+            if (heldDownFor > 0) {
+                if (heldDownFor < soonestRelease) {
+                    soonestRelease = heldDownFor;
+                    soonest = candidate;
+                }
+                continue;
+            }
+            available++;
+            long rtt = state == null ? UNKNOWN_SERVER_RTT_MICROS : state.smoothedRtt();
+            if (rtt < bestRtt) {
+                bestRtt = rtt;
+                best = candidate;
+            }
+        }
+        if (best == null)
+            return soonest;
+        if (available == 1 || ThreadLocalRandom.current().nextDouble() >= EXPLORATION_PROBABILITY)
+            return best;
+
+        // Explore: pick any other server that is not held down
+        int skip = ThreadLocalRandom.current().nextInt(available - 1);
+        for (InetAddress candidate : candidates) {
+            if (candidate.equals(best))
+                continue;
+            ServerState state = servers.get(candidate);
+            if (state != null && state.heldDownFor(now) > 0)
+                continue;
+            if (skip-- == 0)
+                return candidate;
+        }
+        return best;
+    }
+
+    /** Records a response from a server, updating its smoothed RTT and ending any hold-down.
+     *
+     * @param server   Address of the server that responded.
+     * @param rttNanos Time between sending the query and receiving the response.
+     */
+    public void recordResponse(InetAddress server, long rttNanos) {
+        servers.computeIfAbsent(server, s -> new ServerState()).recordResponse(Math.max(1, rttNanos / 1000));
+    }
+
+    /** Records that a query to a server timed out, holding the server down. */
+    public void recordTimeout(InetAddress server) {
+        servers.computeIfAbsent(server, s -> new ServerState()).recordTimeout(System.nanoTime());
+    }
+
+    /** Returns the smoothed round-trip time of a server, in microseconds.
+     *
+     * @param server Address of a server.
+     * @return The smoothed RTT, or UNKNOWN_SERVER_RTT_MICROS if the server never responded.
+     */
+    public long getSmoothedRttMicros(InetAddress server) {
+        ServerState state = servers.get(server);
+        return state == null ? UNKNOWN_SERVER_RTT_MICROS : state.smoothedRtt();
+    }
+
+    /** Returns the mean deviation of the round-trip time of a server, in microseconds.
+     *
+     * @param server Address of a server.
+     * @return The RTT variation, or half of UNKNOWN_SERVER_RTT_MICROS if the server never responded.
+     */
+    public long getRttVariationMicros(InetAddress server) {
+        ServerState state = servers.get(server);
+        return state == null ? UNKNOWN_SERVER_RTT_MICROS / 2 : state.rttVariation();
+    }
+
+    /** Returns how long to wait for a server before sending the same query to another one:
+     * an estimate of the 95th percentile of its RTT, the smoothed RTT plus twice its mean
+     * deviation, but at least 10 ms.
+     *
+     * @param server Address of a server.
+     * @return The hedge delay, in microseconds.
+     */
+    public long getHedgeDelayMicros(InetAddress server) {
+        ServerState state = servers.get(server);
+        long estimate = state == null
+                ? 2 * UNKNOWN_SERVER_RTT_MICROS
+                : state.smoothedRtt() + 2 * state.rttVariation();
+        return Math.max(MIN_HEDGE_DELAY_MICROS, estimate);
+    }
+
+    /** Returns how long to wait for a response from a server before the query is considered
+     * lost: the smoothed RTT plus four times its mean deviation (RFC 6298), between
+     * MIN_RTO_MILLIS and MAX_RTO_MILLIS. Backoff is left to the caller.
+     *
+     * @param server Address of a server.
+     * @return The retransmission timeout, in milliseconds.
+     */
+    public long getRetransmissionTimeoutMillis(InetAddress server) {
+        ServerState state = servers.get(server);
+        long rto = state == null
+                ? UNKNOWN_SERVER_RTT_MICROS * 3
+                : state.smoothedRtt() + 4 * state.rttVariation();
+        return Math.max(MIN_RTO_MILLIS, Math.min(MAX_RTO_MILLIS, (rto + 999) / 1000));
+    }
+
+    /** Returns true if a server timed out recently, and should be avoided for now. */
+    public boolean isHeldDown(InetAddress server) {
+        ServerState state = servers.get(server);
+        return state != null && state.heldDownFor(System.nanoTime()) > 0;
+    }
+
+    /** Returns the number of servers for which statistics are kept. */
+    public int getServerCount() {
+        return servers.size();
+    }
+
+    /** Statistics of a single server. Updates are rare compared to reads, so they simply lock. */
+    private static final class ServerState {
+        private long smoothedRtt = UNKNOWN_SERVER_RTT_MICROS;
+        private long rttVariation = UNKNOWN_SERVER_RTT_MICROS / 2;
+        private boolean measured = false;
+        private int consecutiveTimeouts = 0;
+        private long heldDownUntil;
+
+        synchronized long smoothedRtt() {
+            return smoothedRtt;
+        }
+
+        synchronized long rttVariation() {
+            return rttVariation;
+        }
+
+        /** Returns the time left until the hold-down of this server ends, or 0 if it is not held down. */
+        synchronized long heldDownFor(long nowNanos) {
+            if (consecutiveTimeouts == 0)
+                return 0;
+            return Math.max(0, heldDownUntil - nowNanos);
+        }
+
+        synchronized void recordResponse(long rttMicros) {
+            if (!measured) {
+                smoothedRtt = rttMicros;
+                rttVariation = rttMicros / 2;
+                measured = true;
+            } else {
+                rttVariation += (Math.abs(smoothedRtt - rttMicros) - rttVariation) / 4;
+                smoothedRtt += (rttMicros - smoothedRtt) / 8;
+            }
+            consecutiveTimeouts = 0;
+        }
+
+        synchronized void recordTimeout(long nowNanos) {
+            // Queries sent before the server was held down time out together: count them once
+            if (consecutiveTimeouts > 0 && heldDownUntil - nowNanos > 0)
+                return;
+            int shift = Math.min(consecutiveTimeouts, 30);
+            consecutiveTimeouts++;
+            heldDownUntil = nowNanos + Math.min(MIN_HOLD_DOWN_NANOS << shift, MAX_HOLD_DOWN_NANOS);
+        }
+    }
+}
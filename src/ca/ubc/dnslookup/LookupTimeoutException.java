@@ -0,0 +1,78 @@
+package ca.ubc.dnslookup;
+
+import java.net.SocketTimeoutException;
+
+/** Thrown when a lookup runs out of time before it completes. The exception tells how the
+ * time of the lookup was spent, stage by stage, and in which stage the deadline passed.
+ */
+public class LookupTimeoutException extends SocketTimeoutException {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Stages of a lookup, as accounted for in its deadline. */
+    public enum Stage {
+        /** Checking the cache, following CNAME records and referrals. */
+        CACHE("checking the cache"),
+        /** Waiting for responses from name servers. */
+        QUERY("querying servers"),
+        /** Waiting for the addresses of name servers given without glue. */
+        NAMESERVERS("resolving name server addresses"),
+        /** Waiting for a lookup of the same node started by another request. */
+        JOINED("waiting for the same lookup in flight");
+
+        private final String description;
+
+        Stage(String description) {
+            this.description = description;
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+
+    private final Stage stage;
+    private final long[] stageNanos;
+
+    /** Creates an exception for a lookup that ran out of time.
+     *
+     * @param node       Host name and record type being looked up.
+     * @param stage      Stage the lookup was in when its deadline passed.
+     * @param stageNanos Time spent in each stage, indexed by ordinal.
+     * @param queries    Number of queries sent by the lookup.
+     * @param cnames     Number of CNAME records followed by the lookup.
+     */
+    LookupTimeoutException(DNSNode node, Stage stage, long[] stageNanos, int queries, int cnames) {
+        super(message(node, stage, stageNanos, queries, cnames));
+        this.stage = stage;
+        this.stageNanos = stageNanos;
+    }
+
+    private static String message(DNSNode node, Stage stage, long[] stageNanos, int queries, int cnames) {
+        StringBuilder message = new StringBuilder(128);
+        long total = 0;
+        for (long nanos : stageNanos)
+            total += nanos;
+        message.append(String.format("Lookup of %s %s timed out after %d ms while %s (%d queries, %d CNAME records followed)",
+                node.getHostName(), node.getType(), total / 1_000_000, stage, queries, cnames));
+        String separator = "; time spent ";
+        for (Stage s : Stage.values()) {
+            if (stageNanos[s.ordinal()] == 0)
+                continue;
+            message.append(separator).append(s).append(' ').append(stageNanos[s.ordinal()] / 1_000_000).append(" ms");
+            separator = ", ";
+        }
+        return message.toString();
+    }
+
+    /** Returns the stage the lookup was in when its deadline passed. */
+    public Stage getStage() {
+        return stage;
+    }
+
+    /** Returns the time spent by the lookup in a stage, in nanoseconds. */
+    public long getStageNanos(Stage stage) {
+        return stageNanos[stage.ordinal()];
+    }
+}
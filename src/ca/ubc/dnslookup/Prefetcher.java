@@ -0,0 +1,150 @@
+package ca.ubc.dnslookup;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** Refreshes popular cache entries in the background before they expire (refresh-ahead), so
+ * names read often never miss. The cache of the resolver counts how often each entry is read;
+ * once an entry read at least minimumHits times enters the last windowFraction of its TTL, the
+ * first read in that window asks this prefetcher to look the node up again.
+ *
+ * Prefetch traffic is limited by a token bucket: at most maxPerSecond refreshes are started
+ * per second, with bursts of up to one second's worth. A refresh refused by the limit is
+ * retried by a later read of the entry, if it is still in its window.
+ *
+ * Whether refreshing paid off is tracked by the cache: a prefetch hit is a prefetched entry
+ * read after the entry it replaced would have expired (a miss avoided), and a wasted prefetch
+ * is one dropped before any such read.
+ */
+public final class Prefetcher {
+
+    /** Default fraction of the TTL, at its end, during which entries are refreshed. */
+    public static final double DEFAULT_WINDOW_FRACTION = 0.1;
+    /** Default number of reads making an entry worth refreshing. */
+    public static final int DEFAULT_MINIMUM_HITS = 3;
+    /** Default maximum number of refreshes started per second. */
+    public static final double DEFAULT_MAX_PER_SECOND = 50;
+
+    private final DNSResolver resolver;
+    private final double windowFraction;
+    private final int minimumHits;
+    private final double maxPerSecond;
+
+    // Token bucket, guarded by this
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+
+    private final LongAdder started = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /** Creates a prefetcher with the default settings.
+     *
+     * @param resolver Resolver whose cache entries are refreshed.
+     */
+    public Prefetcher(DNSResolver resolver) {
+        this(resolver, DEFAULT_WINDOW_FRACTION, DEFAULT_MINIMUM_HITS, DEFAULT_MAX_PER_SECOND);
+    }
+
+    /** Creates a prefetcher.
+     *
+     * @param resolver       Resolver whose cache entries are refreshed.
+     * @param windowFraction Fraction of the TTL, at its end, during which entries are refreshed.
+     * @param minimumHits    Number of reads making an entry worth refreshing.
+     * @param maxPerSecond   Maximum number of refreshes started per second.
+     */
+    public Prefetcher(DNSResolver resolver, double windowFraction, int minimumHits, double maxPerSecond) {
+        if (windowFraction <= 0 || windowFraction >= 1)
+            throw new IllegalArgumentException("Refresh window must be a fraction of the TTL");
+        if (minimumHits <= 0 || maxPerSecond <= 0)
+            throw new IllegalArgumentException("Minimum hits and rate limit must be positive");
+        this.resolver = resolver;
+        this.windowFraction = windowFraction;
+        this.minimumHits = minimumHits;
+        this.maxPerSecond = maxPerSecond;
+        this.tokens = Math.max(1, maxPerSecond);
+    }
+
+    /** Starts refreshing the popular entries of the resolver's cache. */
+    public void start() {
+        resolver.getCache().setPrefetcher(this);
+    }
+
+    /** Stops refreshing entries. Refreshes already started still complete. */
+    public void stop() {
+        resolver.getCache().setPrefetcher(null);
+    }
+
+    double getWindowFraction() {
+        return windowFraction;
+    }
+
+    int getMinimumHits() {
+        return minimumHits;
+    }
+
+    /** Starts refreshing a node, unless the rate limit is reached.
+     *
+     * @param node                     Node to be refreshed.
+     * @param refreshedExpirationNanos Time at which the cached entry of the node expires.
+     * @return true if the refresh was started, false if it was refused by the rate limit.
+     */
+    boolean prefetch(DNSNode node, long refreshedExpirationNanos) {
+        if (!tryAcquire()) {
+            rateLimited.increment();
+            return false;
+        }
+        started.increment();
+        DNSCache cache = resolver.getCache();
+        resolver.refresh(node).whenComplete((results, error) -> {
+            if (error != null)
+                failed.increment();
+            else
+                cache.markPrefetched(node, refreshedExpirationNanos);
+        });
+        return true;
+    }
+
+    private synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        tokens = Math.min(Math.max(1, maxPerSecond), tokens + (now - lastRefillNanos) * maxPerSecond / 1e9);
+        lastRefillNanos = now;
+        if (tokens < 1)
+            return false;
+        tokens--;
+        return true;
+    }
+
+    /** Returns the number of refreshes started. */
+    public long getPrefetchCount() {
+        return started.sum();
+    }
+
+    /** Returns the number of refreshes refused by the rate limit. */
+    public long getRateLimitedCount() {
+        return rateLimited.sum();
+    }
+
+    /** Returns the number of refreshes whose lookup failed. */
+    public long getFailureCount() {
+        return failed.sum();
+    }
+
+    /** Returns the fraction of prefetched entries that avoided a miss. */
+    public double getHitRatio() {
+        long prefetched = resolver.getCache().getPrefetchedCount();
+        return prefetched == 0 ? 0 : (double) resolver.getCache().getPrefetchHitCount() / prefetched;
+    }
+
+    /** Returns the fraction of prefetched entries dropped without avoiding any miss. */
+    public double getWasteRatio() {
+        long prefetched = resolver.getCache().getPrefetchedCount();
+        return prefetched == 0 ? 0 : (double) resolver.getCache().getPrefetchWasteCount() / prefetched;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d prefetches (%d rate limited, %d failed), hit ratio %.1f%%, waste ratio %.1f%%",
+                getPrefetchCount(), getRateLimitedCount(), getFailureCount(),
+                getHitRatio() * 100, getWasteRatio() * 100);
+    }
+}
@@ -0,0 +1,61 @@
+package ca.ubc.dnslookup;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/** Lossy, striped buffer of cache reads waiting to be replayed against the eviction policy.
+ * Readers record a read with a single atomic increment and store, and never wait for the
+ * eviction lock; if the buffer wraps before it is drained, the oldest reads are simply lost,
+ * which only makes the frequency estimates slightly less precise.
+ */
+final class ReadBuffer {
+
+    private static final int STRIPE_SIZE = 64;
+    private static final int STRIPE_MASK = STRIPE_SIZE - 1;
+    /** A stripe asks to be drained each time this many reads have been recorded in it. */
+    private static final int DRAIN_THRESHOLD = STRIPE_SIZE / 2;
+
+    private final Stripe[] stripes;
+    private final int stripeMask;
+
+    ReadBuffer() {
+        int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++)
+            stripes[i] = new Stripe();
+        stripeMask = count - 1;
+    }
+
+    /** Records a read of a node.
+     *
+     * @param node Node being read.
+     * @return true if the buffer should be drained soon, or false otherwise.
+     */
+    boolean offer(DNSNode node) {
+        Stripe stripe = stripes[(int) Thread.currentThread().getId() & stripeMask];
+        long index = stripe.counter.getAndIncrement();
+        stripe.reads.lazySet((int) index & STRIPE_MASK, node);
+        return (index & (DRAIN_THRESHOLD - 1)) == DRAIN_THRESHOLD - 1;
+    }
+
+    /** Removes every buffered read and passes it to a consumer. Must only be called by one
+     * thread at a time.
+     *
+     * @param consumer Action applied to each buffered read.
+     */
+    void drainTo(Consumer<DNSNode> consumer) {
+        for (Stripe stripe : stripes)
+            for (int i = 0; i < STRIPE_SIZE; i++) {
+                DNSNode node = stripe.reads.getAndSet(i, null);
+                if (node != null)
+                    consumer.accept(node);
+            }
+    }
+
+    /** Reads recorded by the threads sharing a stripe, and the number of reads recorded so far. */
+    private static final class Stripe {
+        final AtomicLong counter = new AtomicLong();
+        final AtomicReferenceArray<DNSNode> reads = new AtomicReferenceArray<>(STRIPE_SIZE);
+    }
+}
@@ -0,0 +1,380 @@
+package ca.ubc.dnslookup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CancellationException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/** State machine of a single iterative lookup. A lookup starts by checking the cache, follows
+ * any cached CNAME record, and otherwise queries a name server of the closest enclosing zone
+ * already cached, or the root server if there is none. Each response is cached; if
+ * it is a referral, the lookup queries one of the name servers it points to, first resolving
+ * that name server's address if it is not known yet. This is the same algorithm as the
+ * original recursive getResults/queryNextLevel pair, but the lookup never blocks: whenever it
+ * waits for a response or for another lookup, it returns, and is resumed on the resolver's
+ * executor once the result is available.
+ *
+ * Every lookup has a deadline, inherited by the lookups of name server addresses it starts
+ * and by the queries it sends, retries included. Once the deadline passes, the lookup fails
+ * with a LookupTimeoutException telling how long each stage took, and sends nothing more.
+ *
+ * A refresh (see Prefetcher) is a lookup that ignores the records cached before it started,
+ * so it queries the servers again even though the node is cached.
+ *
+ * A lookup is only ever run by one thread at a time, so its fields need no synchronization,
+ * except for the time accounting, which is also read when the deadline passes.
+ */
+final class Resolution {
+
+    /** Maximum number of queries sent by a single lookup, to stop referral loops. */
+    private static final int MAX_QUERIES = 32;
+    /** Maximum number of nested lookups for name server addresses. */
+    private static final int MAX_DEPTH = 4;
+
+    private enum State {
+        /** Check the cache for results or a CNAME record, otherwise start at the root. */
+        LOOKUP_CACHE,
+        /** Send the query to the current server and wait for the response. */
+        QUERY_SERVER,
+        /** Pick the next server to query from the last response. */
+        QUERY_NEXT_LEVEL,
+        /** Resolve the addresses of all name servers at once, and wait for the first one. */
+        RESOLVE_NAMESERVERS,
+        /** The lookup is complete. */
+        DONE
+    }
+
+    private final DNSResolver resolver;
+    private final DNSCache cache;
+    private final DNSNode question;
+    private final int depth;
+    private final long deadlineNanos;
+    private final boolean refresh;
+    private final long startNanos = System.nanoTime();
+    private final CompletableFuture<Set<ResourceRecord>> result = new CompletableFuture<>();
+
+    private State state = State.LOOKUP_CACHE;
+    private DNSNode node;
+    // Also read when the deadline passes
+    private volatile int indirectionLevel = 0;
+    private volatile int queries = 0;
+    private volatile int referrals = 0;
+    private List<InetAddress> servers;
+    private Set<ResourceRecord> nameservers = Collections.emptySet();
+    private volatile boolean abandoned = false;
+
+    // Guarded by this
+    private final long[] stageNanos = new long[LookupTimeoutException.Stage.values().length];
+    private LookupTimeoutException.Stage stage = LookupTimeoutException.Stage.CACHE;
+    private long stageStartNanos;
+
+    Resolution(DNSResolver resolver, DNSNode node, int depth, long deadlineNanos, boolean refresh) {
+        this.resolver = resolver;
+        this.cache = resolver.getCache();
+        this.question = node;
+        this.node = node;
+        this.depth = depth;
+        this.deadlineNanos = deadlineNanos;
+        this.refresh = refresh;
+    }
+
+    CompletableFuture<Set<ResourceRecord>> getResult() {
+        return result;
+    }
+
+    long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+
+    void start() {
+        synchronized (this) {
+            stageStartNanos = System.nanoTime();
+        }
+        if (depth == 0 && !refresh)
+            recordOnCompletion();
+        DNSResolver.failAtDeadline(result, deadlineNanos, this::timeout, resolver.getExecutor());
+        run();
+    }
+
+    /** Runs the state machine until the lookup completes or has to wait. */
+    private void run() {
+        try {
+            while (true) {
+                if (result.isDone())
+                    return;
+                if (System.nanoTime() - deadlineNanos >= 0) {
+                    finish(timeout());
+                    return;
+                }
+                enterStage(state);
+                switch (state) {
+                    case LOOKUP_CACHE:
+                        lookupCache();
+                        break;
+                    case QUERY_SERVER:
+                        queryServer();
+                        return;
+                    case QUERY_NEXT_LEVEL:
+                        queryNextLevel();
+                        break;
+                    case RESOLVE_NAMESERVERS:
+                        resolveNameservers();
+                        return;
+                    case DONE:
+                        return;
+                }
+            }
+        } catch (RuntimeException e) {
+            finish(e);
+        }
+    }
+
+    private void lookupCache() {
+        if (indirectionLevel > DNSResolver.MAX_INDIRECTION_LEVEL) {
+            System.err.println("Maximum number of indirection levels reached.");
+            finish(Collections.emptySet());
+            return;
+        }
+
+        // 1. Check if there is a record of the proper type corresponding to the node. If so, we are done.
+        Set<ResourceRecord> results = cachedResults(node);
+        if (!results.isEmpty()) {
+            finish(results);
+            return;
+        }
+
+        // 2. Check if there is a CNAME record that corresponds to the node, and follow it
+        Set<ResourceRecord> cnameRecords = cachedResults(new DNSNode(node.getHostName(), RecordType.CNAME));
+        if (!cnameRecords.isEmpty() && node.getType() != RecordType.CNAME) {
+            node = new DNSNode(cnameRecords.iterator().next().getTextResult(), node.getType());
+            indirectionLevel++;
+            return;
+        }
+
+        // 3. If the node is known to have no records, we are done too
+        if (cache.isNegativelyCached(node)) {
+            finish(Collections.emptySet());
+            return;
+        }
+
+        // 4. Otherwise, start from the closest delegation already cached, or the root server
+        servers = resolver.findClosestServers(node.getHostName());
+        state = State.QUERY_SERVER;
+    }
+
+    private void queryServer() {
+        if (abandoned) {
+            finish(new CancellationException("Lookup of " + node + " abandoned"));
+            return;
+        }
+        if (++queries > MAX_QUERIES) {
+            finish(new IOException("Too many referrals while looking up " + node));
+            return;
+        }
+        resolver.query(servers, node, deadlineNanos).whenCompleteAsync(this::onResponse, resolver.getExecutor());
+    }
+
+    private void onResponse(Set<ResourceRecord> referral, Throwable error) {
+        if (error != null) {
+            // The last query may have been cut short by the deadline
+            if (System.nanoTime() - deadlineNanos >= 0) {
+                finish(timeout());
+                return;
+            }
+            finish(unwrap(error));
+            return;
+        }
+        nameservers = referral;
+        state = State.QUERY_NEXT_LEVEL;
+        run();
+    }
+
+    private void queryNextLevel() {
+        // If the answer (or a CNAME to follow) has been cached, we are done with this server
+        if (!cachedResults(node).isEmpty()
+                || !cachedResults(new DNSNode(node.getHostName(), RecordType.CNAME)).isEmpty()) {
+            state = State.LOOKUP_CACHE;
+            return;
+        }
+
+        if (!nameservers.isEmpty())
+            referrals++;
+
+        // If any of the name server addresses have been cached, send the next query to them
+        List<InetAddress> next = resolver.getNameserverAddresses(nameservers);
+        if (!next.isEmpty()) {
+            servers = next;
+            state = State.QUERY_SERVER;
+            return;
+        }
+
+        // Neither an answer nor a referral: the name has no records of this type
+        if (nameservers.isEmpty()) {
+            finish(Collections.emptySet());
+            return;
+        }
+
+        // Otherwise resolve the name server addresses
+        state = State.RESOLVE_NAMESERVERS;
+    }
+
+    /** Returns the records cached for a node; for a refresh, only if some of them were
+     * received since the refresh started.
+     */
+    private Set<ResourceRecord> cachedResults(DNSNode key) {
+        Set<ResourceRecord> records = cache.getCachedResults(key);
+        if (!refresh)
+            return records;
+        for (ResourceRecord record : records)
+            if (record.getExpirationNanos() - record.getOriginalTtlNanos() - startNanos >= 0)
+                return records;
+        return Collections.emptySet();
+    }
+
+    /** Looks up the A records of every name server at once. The lookup continues with the
+     * addresses of whichever name server is resolved first, and the other lookups are
+     * abandoned. IPv6 addresses are only a fallback: the AAAA records are looked up, the same
+     * way, if no name server has an IPv4 address and the transport can reach IPv6 servers.
+     */
+    private void resolveNameservers() {
+        if (depth >= MAX_DEPTH) {
+            finish(new IOException("Could not find the address of a name server for " + node));
+            return;
+        }
+        new NameserverRace(RecordType.A).start();
+    }
+
+    /** Abandons this lookup: it stops before sending any further query. Only used for lookups
+     * no other lookup waits for.
+     */
+    void abandon() {
+        abandoned = true;
+    }
+
+    /** Accounts for the time spent in the current stage, and moves to the stage of a state. */
+    private synchronized void enterStage(State next) {
+        LookupTimeoutException.Stage nextStage;
+        if (next == State.QUERY_SERVER)
+            nextStage = LookupTimeoutException.Stage.QUERY;
+        else if (next == State.RESOLVE_NAMESERVERS)
+            nextStage = LookupTimeoutException.Stage.NAMESERVERS;
+        else
+            nextStage = LookupTimeoutException.Stage.CACHE;
+        long now = System.nanoTime();
+        stageNanos[stage.ordinal()] += now - stageStartNanos;
+        stage = nextStage;
+        stageStartNanos = now;
+    }
+
+    /** Returns the exception failing this lookup now that its deadline has passed. */
+    private synchronized LookupTimeoutException timeout() {
+        long[] spent = stageNanos.clone();
+        spent[stage.ordinal()] += System.nanoTime() - stageStartNanos;
+        return new LookupTimeoutException(question, stage, spent, queries, indirectionLevel);
+    }
+
+    private void finish(Set<ResourceRecord> results) {
+        state = State.DONE;
+        result.complete(results);
+    }
+
+    private void finish(Throwable error) {
+        state = State.DONE;
+        result.completeExceptionally(error);
+    }
+
+    /** Records the referrals and CNAME records followed once the lookup completes, however it
+     * completes, and commits a LookupCompleted event if enabled. Only client lookups are
+     * recorded: the nested lookups of name server addresses are part of the client lookup,
+     * and a refresh is not a lookup.
+     */
+    private void recordOnCompletion() {
+        DNSEvents.LookupCompleted event = new DNSEvents.LookupCompleted();
+        if (!event.isEnabled()) {
+            result.whenComplete((results, error) -> resolver.recordLookup(referrals, indirectionLevel));
+            return;
+        }
+        event.begin();
+        result.whenComplete((results, error) -> {
+            resolver.recordLookup(referrals, indirectionLevel);
+            event.end();
+            if (event.shouldCommit()) {
+                event.name = question.getHostName();
+                event.type = question.getType().name();
+                event.queries = queries;
+                event.referrals = referrals;
+                event.cnames = indirectionLevel;
+                event.records = results == null ? 0 : results.size();
+                event.error = error == null ? null : unwrap(error).toString();
+                event.commit();
+            }
+        });
+    }
+
+    /** Concurrent lookups of the addresses of one type of the name servers of a referral.
+     * The first lookup returning addresses the transport can reach resumes the main lookup;
+     * if none does, once all of them are complete, the main lookup falls back to the AAAA
+     * records after the A records, or fails.
+     */
+    private final class NameserverRace {
+        private final RecordType type;
+        private final List<DNSNode> targets;
+        private final List<CompletableFuture<Set<ResourceRecord>>> lookups;
+        // Guarded by this
+        private int pending;
+        private boolean won = false;
+
+        NameserverRace(RecordType type) {
+            this.type = type;
+            this.targets = new ArrayList<>(nameservers.size());
+            for (ResourceRecord nameserver : nameservers)
+                targets.add(new DNSNode(nameserver.getTextResult(), type));
+            this.lookups = new ArrayList<>(targets.size());
+            this.pending = targets.size();
+        }
+
+        void start() {
+            // Start every lookup before handling any result, so the winner can abandon all others
+            for (DNSNode target : targets)
+                lookups.add(resolver.resolve(target, depth + 1, deadlineNanos));
+            for (CompletableFuture<Set<ResourceRecord>> lookup : lookups)
+                lookup.whenCompleteAsync(this::onAddresses, resolver.getExecutor());
+        }
+
+        private void onAddresses(Set<ResourceRecord> addresses, Throwable error) {
+            List<InetAddress> reachable = new ArrayList<>();
+            if (error == null)
+                for (ResourceRecord address : addresses)
+                    if (resolver.getTransport().canReach(address.getInetResult()))
+                        reachable.add(address.getInetResult());
+            boolean found = !reachable.isEmpty();
+            synchronized (this) {
+                pending--;
+                if (won || (!found && pending > 0))
+                    return;
+                won = found;
+            }
+            if (found) {
+                for (int i = 0; i < targets.size(); i++)
+                    if (!lookups.get(i).isDone())
+                        resolver.abandon(targets.get(i), lookups.get(i));
+                servers = reachable;
+                state = State.QUERY_SERVER;
+                run();
+            } else if (type == RecordType.A && resolver.getTransport().canReachIPv6()) {
+                new NameserverRace(RecordType.AAAA).start();
+            } else {
+                finish(new IOException("Could not find the address of a name server for " + node));
+            }
+        }
+    }
+
+    static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+}
@@ -1,5 +1,7 @@
 package ca.ubc.dnslookup;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.util.Date;
@@ -8,17 +10,25 @@ import java.util.Date;
  * a DNS node (host name and record type) to either an IP address (e.g., A or AAAA records) or
  * a textual response (e.g., CNAME or NS records). A TTL (time-to-live) field is also specified,
  * and is represented by an expiration time calculated as a delta from the current time.
+ * Besides the wall-clock expiration time, each record keeps a deadline on the monotonic
+ * System.nanoTime() clock, which is what validity checks compare against.
  */
 public class ResourceRecord implements Serializable {
 
+    private static final long serialVersionUID = 1L;
+
     private DNSNode node;
     private Date expirationTime;
     private String textResult;
     private InetAddress inetResult;
+    private transient long expirationNanos;
+    private transient long ttlNanos;
 
     public ResourceRecord(String hostName, RecordType type, long ttl, String result) {
         this.node = new DNSNode(hostName, type);
         this.expirationTime = new Date(System.currentTimeMillis() + (ttl * 1000));
+        this.ttlNanos = ttl * 1_000_000_000L;
+        this.expirationNanos = System.nanoTime() + ttlNanos;
         this.textResult = result;
         this.inetResult = null;
     }
@@ -48,7 +58,7 @@ public class ResourceRecord implements Serializable {
      * @return The number of seconds, rounded up, until this record expires.
      */
     public long getTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
+        return (expirationNanos - System.nanoTime() + 999_999_999) / 1_000_000_000;
     }
 
     /** Returns true if this record has not expired yet, and false otherwise. An expired record
@@ -58,7 +68,42 @@ public class ResourceRecord implements Serializable {
      * @return true if this record has not expired yet, and false otherwise.
      */
     public boolean isStillValid() {
-        return expirationTime.after(new Date());
+        return isStillValid(System.nanoTime());
+    }
+
+    /** Returns true if this record has not expired yet at the specified time. This allows a
+     * caller checking many records to read the clock only once.
+     *
+     * @param nowNanos Current value of System.nanoTime().
+     * @return true if this record has not expired at that time, and false otherwise.
+     */
+    boolean isStillValid(long nowNanos) {
+        return expirationNanos - nowNanos > 0;
+    }
+
+    /** Returns the time at which this record expires, on the System.nanoTime() clock.
+     *
+     * @return The expiration deadline of this record, in nanoseconds.
+     */
+    long getExpirationNanos() {
+        return expirationNanos;
+    }
+
+    /** Returns the time at which this record expires, on the wall clock, to be saved across
+     * restarts (see CacheSnapshot).
+     *
+     * @return The expiration time of this record, in milliseconds since the epoch.
+     */
+    long getExpirationMillis() {
+        return expirationTime.getTime();
+    }
+
+    /** Returns the TTL this record had when it was received, or when it was deserialized.
+     *
+     * @return The original TTL of this record, in nanoseconds.
+     */
+    long getOriginalTtlNanos() {
+        return ttlNanos;
     }
 
     /** Returns true if this record expires before another record. This method may be used to
@@ -70,7 +115,7 @@ public class ResourceRecord implements Serializable {
      * @return true if this record expires before the parameter record, or false otherwise.
      */
     public boolean expiresBefore(ResourceRecord record) {
-        return this.expirationTime.before(record.expirationTime);
+        return this.expirationNanos - record.expirationNanos < 0;
     }
 
     public String getTextResult() {
@@ -99,4 +144,10 @@ public class ResourceRecord implements Serializable {
         result = 31 * result + textResult.hashCode();
         return result;
     }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        ttlNanos = Math.max(0, (expirationTime.getTime() - System.currentTimeMillis()) * 1_000_000L);
+        expirationNanos = System.nanoTime() + ttlNanos;
+    }
 }
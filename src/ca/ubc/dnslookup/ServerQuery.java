@@ -0,0 +1,158 @@
+package ca.ubc.dnslookup;
+
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/** A question sent to one of several equivalent name servers until one of them answers.
+ * The question first goes to the server expected to respond fastest. If it has not responded
+ * after its hedge delay (an estimate of its 95th percentile RTT), the same question is hedged
+ * to the best of the other servers, and whichever valid response arrives first is used. The
+ * other response is still cached when it arrives.
+ *
+ * Each query waits for the retransmission timeout of its server, computed from the RTT
+ * measured so far, as TCP does. When every query sent has timed out or failed, the question
+ * is sent again, preferably to a server not tried yet (failover), otherwise to the same
+ * server with its timeout doubled for every earlier attempt to it (backoff). At most
+ * MAX_ATTEMPTS queries are sent, including the hedge, and none after the deadline of the
+ * lookup; no query waits past that deadline either.
+ */
+final class ServerQuery {
+
+    /** Maximum number of queries sent for a question, counting retries and hedges. */
+    static final int MAX_ATTEMPTS = 3;
+
+    private final DNSResolver resolver;
+    private final DNSNode question;
+    private final List<InetAddress> candidates;
+    private final long deadlineNanos;
+    private final CompletableFuture<Set<ResourceRecord>> result = new CompletableFuture<>();
+
+    // Guarded by this
+    private final Map<InetAddress, Integer> attemptsPerServer = new HashMap<>(4);
+    private int attempts = 0;
+    private int pending = 0;
+    private boolean hedged = false;
+    private Throwable lastError;
+
+    private ServerQuery(DNSResolver resolver, DNSNode question, List<InetAddress> candidates, long deadlineNanos) {
+        this.resolver = resolver;
+        this.question = question;
+        this.candidates = candidates;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /** Sends a question to the best of several servers, hedging, retrying and failing over
+     * to the other servers as needed.
+     *
+     * @param resolver   Resolver sending the queries.
+     * @param question   Host name and record type to be queried.
+     * @param candidates    Addresses of the servers able to answer; must not be empty.
+     * @param deadlineNanos Value of System.nanoTime() after which no query is sent or waited for.
+     * @return A future completed with the first valid response (the name servers of a
+     * referral, or an empty set), or with the last error if no server responded.
+     */
+    static CompletableFuture<Set<ResourceRecord>> send(DNSResolver resolver, DNSNode question,
+                                                       List<InetAddress> candidates, long deadlineNanos) {
+        ServerQuery query = new ServerQuery(resolver, question, candidates, deadlineNanos);
+        // Counted before the query is sent, so a response arriving at once still counts
+        if (candidates.size() > 1)
+            resolver.recordHedgeable();
+        InetAddress primary = query.attempt(false);
+        if (primary != null && !query.result.isDone() && candidates.size() > 1) {
+            long delay = resolver.getInfrastructureCache().getHedgeDelayMicros(primary);
+            CompletableFuture.delayedExecutor(delay, TimeUnit.MICROSECONDS, resolver.getExecutor())
+                    .execute(query::hedge);
+        }
+        return query.result;
+    }
+
+    /** Sends the question to the best server not tried yet, or to the best server if all were
+     * tried, unless the question is answered or out of attempts.
+     *
+     * @param hedge True if the query is sent while another one is still pending.
+     * @return The server to which the question was sent, or null if none.
+     */
+    private InetAddress attempt(boolean hedge) {
+        InetAddress server;
+        int earlierAttempts;
+        boolean retry;
+        // Rounded up, so a query cut short by the deadline only times out once it has passed
+        long remainingMillis = (deadlineNanos - System.nanoTime() + 999_999) / 1_000_000;
+        synchronized (this) {
+            if (result.isDone() || attempts >= MAX_ATTEMPTS || (hedge && (hedged || pending == 0)))
+                return null;
+            if (remainingMillis <= 0) {
+                if (pending == 0)
+                    result.completeExceptionally(lastError != null ? lastError
+                            : new SocketTimeoutException("No time left to query a server about " + question));
+                return null;
+            }
+            server = nextServer();
+            earlierAttempts = attemptsPerServer.getOrDefault(server, 0);
+            attemptsPerServer.put(server, earlierAttempts + 1);
+            retry = !hedge && attempts > 0;
+            attempts++;
+            pending++;
+            if (hedge)
+                hedged = true;
+        }
+        if (hedge)
+            resolver.recordHedge();
+        else if (retry)
+            resolver.recordRetry(earlierAttempts == 0);
+
+        long timeout = resolver.getInfrastructureCache().getRetransmissionTimeoutMillis(server);
+        timeout = Math.min(timeout << Math.min(earlierAttempts, 16), InfrastructureCache.MAX_RTO_MILLIS);
+        timeout = Math.min(timeout, remainingMillis);
+        resolver.query(server, question, timeout)
+                .whenComplete((referral, error) -> onComplete(referral, error, hedge));
+        return server;
+    }
+
+    /** Sends the hedge, if the first query is still pending after its hedge delay. */
+    private void hedge() {
+        attempt(true);
+    }
+
+    private InetAddress nextServer() {
+        if (attemptsPerServer.isEmpty())
+            return resolver.getInfrastructureCache().select(candidates);
+        List<InetAddress> untried = new ArrayList<>(candidates.size());
+        for (InetAddress candidate : candidates)
+            if (!attemptsPerServer.containsKey(candidate))
+                untried.add(candidate);
+        return resolver.getInfrastructureCache().select(untried.isEmpty() ? candidates : untried);
+    }
+
+    private void onComplete(Set<ResourceRecord> referral, Throwable error, boolean hedge) {
+        synchronized (this) {
+            pending--;
+            if (result.isDone())
+                return;
+            if (error == null) {
+                if (hedge)
+                    resolver.recordHedgeWin();
+                result.complete(referral);
+                return;
+            }
+            // A timeout says less about the question than an error response does
+            Throwable cause = Resolution.unwrap(error);
+            if (lastError == null || !(cause instanceof SocketTimeoutException))
+                lastError = cause;
+            if (pending > 0)
+                return;
+            if (attempts >= MAX_ATTEMPTS) {
+                result.completeExceptionally(lastError);
+                return;
+            }
+        }
+        attempt(false);
+    }
+}
@@ -0,0 +1,334 @@
+package ca.ubc.dnslookup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/** DNS over TCP (RFC 7766), used by DNSTransport to send again the queries whose UDP
+ * response was truncated. Connections are kept open and reused: each server gets at most
+ * MAX_CONNECTIONS_PER_SERVER connections, and a query goes to the open connection with the
+ * fewest outstanding queries, so a burst of truncated responses shares one handshake.
+ * Queries are pipelined: they are written as soon as they are sent, without waiting for the
+ * responses to earlier ones, and responses, which may arrive in any order, are matched to
+ * their query by transaction ID.
+ *
+ * As in DNSTransport, a single thread does all the I/O, waiting on a selector for connections
+ * to complete, responses to arrive and queued queries to be written. Connections with no
+ * outstanding query are closed after IDLE_TIMEOUT_MILLIS; a connection closed by its server
+ * fails its outstanding queries, which the resolver then retries as it would a lost query.
+ */
+final class TcpTransport implements AutoCloseable {
+
+    /** Maximum number of connections kept open to one server. */
+    static final int MAX_CONNECTIONS_PER_SERVER = 2;
+    /** Number of outstanding queries on every connection to a server before another is opened. */
+    static final int PIPELINE_DEPTH = 16;
+    /** Time after which a connection without outstanding queries is closed. */
+    static final long IDLE_TIMEOUT_MILLIS = 10_000;
+    private static final int MAX_ID_ATTEMPTS = 64;
+
+    private final int serverPort;
+    private final Selector selector;
+    private final Thread ioThread;
+    // Guarded by itself
+    private final Map<InetAddress, List<Connection>> connections = new HashMap<>();
+    /** Connections to register with the selector, or with queries to write. */
+    private final ConcurrentLinkedQueue<Connection> ready = new ConcurrentLinkedQueue<>();
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private volatile boolean closed = false;
+
+    TcpTransport(int serverPort) throws IOException {
+        this.serverPort = serverPort;
+        this.selector = Selector.open();
+        this.ioThread = new Thread(this::ioLoop, "dns-tcp-transport");
+        this.ioThread.setDaemon(true);
+        this.ioThread.start();
+    }
+
+    /** Sends a query over a connection to a DNS server, opening one if needed.
+     *
+     * @param server        Address of the server to which the query is sent.
+     * @param encoder       Function returning the encoded query for a given transaction ID.
+     * @param timeoutMillis Time after which the query fails with a TimeoutException.
+     * @return A future completed with the server's response.
+     */
+    CompletableFuture<DNSServerResponse> send(InetAddress server, IntFunction<byte[]> encoder, long timeoutMillis) {
+        CompletableFuture<DNSServerResponse> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new ClosedChannelException());
+            return future;
+        }
+        Connection connection = connectionTo(server);
+        int id = -1;
+        for (int attempt = 0; attempt < MAX_ID_ATTEMPTS && id < 0; attempt++) {
+            int candidate = ThreadLocalRandom.current().nextInt(0x10000);
+            if (connection.pending.putIfAbsent(candidate, future) == null)
+                id = candidate;
+        }
+        if (id < 0) {
+            future.completeExceptionally(new IOException("Too many outstanding queries to " + server.getHostAddress()));
+            return future;
+        }
+        int registered = id;
+        future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((response, error) -> {
+            connection.pending.remove(registered, future);
+        });
+
+        byte[] query;
+        try {
+            query = encoder.apply(id);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        ByteBuffer message = ByteBuffer.allocate(2 + query.length);
+        message.putShort((short) query.length).put(query).flip();
+        connection.outgoing.add(message);
+        queries.increment();
+        ready.add(connection);
+        selector.wakeup();
+        // The connection may have failed in the meantime, without seeing this query
+        if (connection.failed)
+            future.completeExceptionally(new IOException("Connection to " + server.getHostAddress() + " failed"));
+        return future;
+    }
+
+    /** Returns the least loaded open connection to a server, opening a new one if they are all
+     * busy and the server has fewer than MAX_CONNECTIONS_PER_SERVER.
+     */
+    private Connection connectionTo(InetAddress server) {
+        synchronized (connections) {
+            List<Connection> open = connections.computeIfAbsent(server, k -> new ArrayList<>());
+            Connection best = null;
+            for (Connection connection : open)
+                if (best == null || connection.pending.size() < best.pending.size())
+                    best = connection;
+            if (best != null && (best.pending.size() < PIPELINE_DEPTH || open.size() >= MAX_CONNECTIONS_PER_SERVER)) {
+                best.lastUsedNanos = System.nanoTime();
+                return best;
+            }
+            Connection connection = new Connection(server);
+            open.add(connection);
+            opened.increment();
+            return connection;
+        }
+    }
+
+    /** Returns the number of connections opened so far. */
+    long getConnectionCount() {
+        return opened.sum();
+    }
+
+    /** Returns the number of queries sent so far. */
+    long getQueryCount() {
+        return queries.sum();
+    }
+
+    /** Returns the number of errors of the I/O loop outside any single connection. */
+    long getErrorCount() {
+        return errors.sum();
+    }
+
+    /** Closes every connection. Outstanding queries fail with a ClosedChannelException. */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+        List<Connection> all = new ArrayList<>();
+        synchronized (connections) {
+            connections.values().forEach(all::addAll);
+            connections.clear();
+        }
+        for (Connection connection : all)
+            connection.close(new ClosedChannelException());
+    }
+
+    private void ioLoop() {
+        long lastIdleCheck = System.nanoTime();
+        while (!closed) {
+            try {
+                selector.select(1000);
+                Connection connection;
+                while ((connection = ready.poll()) != null)
+                    connection.updateInterest();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    connection = (Connection) key.attachment();
+                    try {
+                        if (key.isConnectable())
+                            connection.finishConnect();
+                        if (key.isValid() && key.isReadable())
+                            connection.read();
+                        if (key.isValid() && key.isWritable())
+                            connection.write();
+                    } catch (IOException e) {
+                        connection.close(e);
+                    }
+                }
+                selector.selectedKeys().clear();
+                if (System.nanoTime() - lastIdleCheck >= TimeUnit.SECONDS.toNanos(1)) {
+                    closeIdleConnections();
+                    lastIdleCheck = System.nanoTime();
+                }
+            } catch (IOException e) {
+                // The queries waiting for a response time out and are retried
+                if (!closed)
+                    errors.increment();
+            } catch (ClosedSelectorException e) {
+                return;
+            }
+        }
+    }
+
+    private void closeIdleConnections() {
+        long now = System.nanoTime();
+        List<Connection> idle = new ArrayList<>();
+        synchronized (connections) {
+            // Removed from the pool under the lock, so no query picks them any more
+            for (Iterator<List<Connection>> pools = connections.values().iterator(); pools.hasNext(); ) {
+                List<Connection> open = pools.next();
+                for (Iterator<Connection> it = open.iterator(); it.hasNext(); ) {
+                    Connection connection = it.next();
+                    if (connection.pending.isEmpty()
+                            && now - connection.lastUsedNanos > TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MILLIS)) {
+                        it.remove();
+                        idle.add(connection);
+                    }
+                }
+                if (open.isEmpty())
+                    pools.remove();
+            }
+        }
+        for (Connection connection : idle)
+            connection.close(new ClosedChannelException());
+    }
+
+    /** A connection to a server, and the queries sent over it. Only the I/O thread touches
+     * the channel and the read state.
+     */
+    private final class Connection {
+        final InetAddress server;
+        final ConcurrentHashMap<Integer, CompletableFuture<DNSServerResponse>> pending = new ConcurrentHashMap<>();
+        final ConcurrentLinkedQueue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<>();
+        volatile long lastUsedNanos = System.nanoTime();
+        volatile boolean failed = false;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private final ByteBuffer length = ByteBuffer.allocate(2);
+        private ByteBuffer message;
+
+        Connection(InetAddress server) {
+            this.server = server;
+        }
+
+        /** Opens the channel when first called, then asks to be told when queries can be written. */
+        void updateInterest() {
+            if (failed)
+                return;
+            try {
+                if (channel == null) {
+                    channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    boolean connected = channel.connect(new InetSocketAddress(server, serverPort));
+                    key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+                }
+                if (channel.isConnected() && !outgoing.isEmpty())
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        void finishConnect() throws IOException {
+            if (!channel.finishConnect())
+                return;
+            key.interestOps(SelectionKey.OP_READ | (outgoing.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        }
+
+        void write() throws IOException {
+            ByteBuffer next;
+            while ((next = outgoing.peek()) != null) {
+                channel.write(next);
+                if (next.hasRemaining())
+                    return;
+                outgoing.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            // A query may have been queued after the queue was found empty
+            if (!outgoing.isEmpty())
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        /** Reads the responses available, each preceded by its length on two bytes. */
+        void read() throws IOException {
+            while (true) {
+                if (message == null) {
+                    if (channel.read(length) < 0)
+                        throw new IOException("Connection closed by " + server.getHostAddress());
+                    if (length.hasRemaining())
+                        return;
+                    message = ByteBuffer.allocate(length.flip().getShort() & 0xFFFF);
+                    length.clear();
+                }
+                if (channel.read(message) < 0)
+                    throw new IOException("Connection closed by " + server.getHostAddress());
+                if (message.hasRemaining())
+                    return;
+                dispatch(message.flip());
+                message = null;
+            }
+        }
+
+        private void dispatch(ByteBuffer response) {
+            if (response.remaining() < 12 || (response.get(2) & 0x80) == 0)
+                return;
+            int id = response.getShort(0) & 0xFFFF;
+            CompletableFuture<DNSServerResponse> future = pending.remove(id);
+            if (future != null)
+                future.complete(new DNSServerResponse(response, id));
+            lastUsedNanos = System.nanoTime();
+        }
+
+        /** Closes the connection, failing its outstanding queries, and removes it from the pool. */
+        void close(IOException cause) {
+            failed = true;
+            synchronized (connections) {
+                List<Connection> open = connections.get(server);
+                if (open != null && open.remove(this) && open.isEmpty())
+                    connections.remove(server);
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            pending.values().forEach(future -> future.completeExceptionally(cause));
+            pending.clear();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package ca.ubc.dnslookup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/** Hierarchical timing wheel scheduling the expiration of cached nodes. Each level is a ring
+ * of 64 buckets; a bucket of the first level spans about one second, and each following level
+ * spans 64 times more, so the four levels together cover about 200 days. A node is kept in
+ * the bucket matching its deadline; as time advances, the buckets that have been passed are
+ * emptied, expiring the nodes that are due and moving the others down to a finer level.
+ * Scheduling, rescheduling and expiring a node therefore all take amortized constant time.
+ *
+ * This class is not thread-safe; the cache only uses it while holding its eviction lock.
+ */
+final class TimingWheel {
+
+    private static final int BUCKETS = 64;
+    private static final int[] SHIFTS = {30, 36, 42, 48};
+
+    private final Timer[][] wheel = new Timer[SHIFTS.length][BUCKETS];
+    private final Map<DNSNode, Timer> timers = new HashMap<>();
+    private long currentTime;
+
+    /** Creates an empty wheel.
+     *
+     * @param nowNanos Current value of System.nanoTime().
+     */
+    TimingWheel(long nowNanos) {
+        for (Timer[] level : wheel)
+            for (int i = 0; i < BUCKETS; i++)
+                level[i] = Timer.sentinel();
+        currentTime = nowNanos;
+    }
+
+    /** Schedules the expiration of a node, replacing any deadline previously scheduled for it.
+     *
+     * @param key           Node to be expired.
+     * @param deadlineNanos Time at which the node expires, on the System.nanoTime() clock.
+     */
+    void schedule(DNSNode key, long deadlineNanos) {
+        Timer timer = timers.get(key);
+        if (timer == null) {
+            timer = new Timer(key);
+            timers.put(key, timer);
+        } else if (timer.deadline == deadlineNanos) {
+            return;
+        } else {
+            timer.unlink();
+        }
+        timer.deadline = deadlineNanos;
+        timer.linkBefore(bucketFor(deadlineNanos));
+    }
+
+    /** Cancels the expiration of a node, for example because it was evicted.
+     *
+     * @param key Node that no longer needs to be expired.
+     */
+    void deschedule(DNSNode key) {
+        Timer timer = timers.remove(key);
+        if (timer != null)
+            timer.unlink();
+    }
+
+    /** Advances the wheel to the specified time, and passes each node whose deadline has been
+     * reached to a consumer. The node is no longer scheduled once it has been passed on; the
+     * consumer may schedule it again.
+     *
+     * @param nowNanos Current value of System.nanoTime().
+     * @param expired  Action applied to each expired node.
+     */
+    void advance(long nowNanos, Consumer<DNSNode> expired) {
+        long previousTime = currentTime;
+        if (nowNanos - previousTime <= 0)
+            return;
+        currentTime = nowNanos;
+
+        for (int level = 0; level < SHIFTS.length; level++) {
+            long previousTicks = previousTime >>> SHIFTS[level];
+            long delta = (nowNanos >>> SHIFTS[level]) - previousTicks;
+            if (delta <= 0)
+                break;
+            int start = (int) (previousTicks & (BUCKETS - 1));
+            int count = (int) Math.min(delta, BUCKETS);
+            for (int i = start; i < start + count; i++)
+                expire(wheel[level][i & (BUCKETS - 1)], nowNanos, expired);
+        }
+    }
+
+    int size() {
+        return timers.size();
+    }
+
+    private void expire(Timer sentinel, long nowNanos, Consumer<DNSNode> expired) {
+        // Detach the whole bucket first, as rescheduled timers may land in it again
+        Timer timer = sentinel.next;
+        sentinel.next = sentinel;
+        sentinel.previous = sentinel;
+        while (timer != sentinel) {
+            Timer next = timer.next;
+            timer.previous = null;
+            timer.next = null;
+            if (timer.deadline - nowNanos <= 0) {
+                timers.remove(timer.key);
+                expired.accept(timer.key);
+            } else {
+                timer.linkBefore(bucketFor(timer.deadline));
+            }
+            timer = next;
+        }
+    }
+
+    private Timer bucketFor(long deadlineNanos) {
+        // Deadlines already passed go in the current bucket, emptied at the next tick
+        long time = deadlineNanos - currentTime < 0 ? currentTime : deadlineNanos;
+        long duration = time - currentTime;
+        if (duration < 1L << SHIFTS[1])
+            return wheel[0][(int) ((time >>> SHIFTS[0]) & (BUCKETS - 1))];
+        // On coarser levels, use the bucket of the tick before the deadline: it is emptied
+        // when the deadline's tick starts, and its nodes then move down to a finer level.
+        // Deadlines beyond the last level wrap around, and are rescheduled when reached early.
+        int level = 1;
+        while (level < SHIFTS.length - 1 && duration >= 1L << SHIFTS[level + 1])
+            level++;
+        return wheel[level][(int) (((time >>> SHIFTS[level]) - 1) & (BUCKETS - 1))];
+    }
+
+    /** A scheduled node, linked in a circular list with the other nodes of its bucket. */
+    private static final class Timer {
+        final DNSNode key;
+        long deadline;
+        Timer previous;
+        Timer next;
+
+        Timer(DNSNode key) {
+            this.key = key;
+        }
+
+        static Timer sentinel() {
+            Timer sentinel = new Timer(null);
+            sentinel.previous = sentinel;
+            sentinel.next = sentinel;
+            return sentinel;
+        }
+
+        void linkBefore(Timer sentinel) {
+            previous = sentinel.previous;
+            next = sentinel;
+            sentinel.previous.next = this;
+            sentinel.previous = this;
+        }
+
+        void unlink() {
+            if (previous != null) {
+                previous.next = next;
+                next.previous = previous;
+                previous = null;
+                next = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package ca.ubc.dnslookup;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/** Trace of the queries sent and responses received, written in the background. Resolver
+ * threads only store a compact record (the transaction ID and references to the immutable
+ * node, server address and records) in a bounded ring buffer, with one compare-and-set; a
+ * daemon thread formats the records and writes them out. When the buffer is full, records are
+ * dropped and counted rather than waited for, so lookups never block on tracing.
+ *
+ * The ring follows Vyukov's bounded queue: each slot carries a sequence number telling
+ * producers whether it is free and the writer whether it is published, so producers claim
+ * slots by advancing a shared cursor and never lock.
+ *
+ * Text output has the layout trace on has always had. Binary output holds the same fields,
+ * without the formatting; it is smaller and cheaper to write, and is turned into text with
+ * <pre>
+ * java -cp DNSLookupService.jar ca.ubc.dnslookup.TraceLog trace.bin
+ * </pre>
+ */
+public final class TraceLog implements Closeable {
+
+    /** How records are written out. */
+    public enum Format { TEXT, BINARY }
+
+    /** Default number of records the ring buffer holds. */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private static final int BINARY_MAGIC = 0x444E5354; // "DNST"
+    private static final int BINARY_VERSION = 1;
+    private static final byte QUERY = 1;
+    private static final byte RESPONSE = 2;
+    /** Longest time the writer sleeps when there is nothing to write. */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final OutputStream output;
+    private final boolean ownsOutput;
+    private final PrintStream text;
+    private final DataOutputStream binary;
+    private final Thread writer;
+
+    // Written by the writer thread only: the position up to which records are written out
+    // and flushed, and whether the writer is about to sleep
+    private volatile long flushed = 0;
+    private volatile boolean idle = false;
+    private volatile boolean closed = false;
+
+    private TraceLog(OutputStream output, boolean ownsOutput, Format format, int capacity) throws IOException {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++)
+            slots[i] = new Slot(i);
+        mask = size - 1;
+        this.output = output;
+        this.ownsOutput = ownsOutput;
+        BufferedOutputStream buffered = new BufferedOutputStream(output, 1 << 16);
+        if (format == Format.TEXT) {
+            text = new PrintStream(buffered, false);
+            binary = null;
+        } else {
+            text = null;
+            binary = new DataOutputStream(buffered);
+            binary.writeInt(BINARY_MAGIC);
+            binary.writeInt(BINARY_VERSION);
+        }
+        writer = new Thread(this::writeLoop, "dns-trace");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Creates a trace printed as text on the standard output, which is not closed with the trace. */
+    public static TraceLog toStandardOutput() {
+        try {
+            return new TraceLog(System.out, false, Format.TEXT, DEFAULT_CAPACITY);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Creates a trace written to a file, which is replaced if it exists.
+     *
+     * @param file     File to write to.
+     * @param format   Format of the records.
+     * @param capacity Number of records buffered before records are dropped.
+     * @throws IOException if the file could not be created.
+     */
+    public static TraceLog open(Path file, Format format, int capacity) throws IOException {
+        OutputStream out = Files.newOutputStream(file);
+        try {
+            return new TraceLog(out, true, format, capacity);
+        } catch (IOException | RuntimeException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    /** Records a query about to be sent. */
+    void query(int id, DNSNode node, InetAddress server) {
+        Slot slot = claim();
+        if (slot == null)
+            return;
+        slot.kind = QUERY;
+        slot.id = id;
+        slot.first = node;
+        slot.second = server;
+        publish(slot);
+    }
+
+    /** Records a decoded response. The lists must not be modified afterwards. */
+    void response(int id, boolean authoritative, List<ResourceRecord> answers,
+                  List<ResourceRecord> nameservers, List<ResourceRecord> additional) {
+        Slot slot = claim();
+        if (slot == null)
+            return;
+        slot.kind = RESPONSE;
+        slot.id = id;
+        slot.nanos = System.nanoTime();
+        slot.authoritative = authoritative;
+        slot.first = answers;
+        slot.second = nameservers;
+        slot.third = additional;
+        publish(slot);
+    }
+
+    /** Claims the next slot for writing, or returns null if the buffer is full. */
+    private Slot claim() {
+        if (closed)
+            return null;
+        long position = tail.get();
+        while (true) {
+            Slot slot = slots[(int) position & mask];
+            long difference = slot.sequence - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slot.position = position;
+                    return slot;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                dropped.increment();
+                return null;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    private void publish(Slot slot) {
+        slot.sequence = slot.position + 1;
+        if (idle)
+            LockSupport.unpark(writer);
+    }
+
+    /** Waits until every record traced so far is written out, e.g. before printing the
+     * results of a lookup after its trace. Only the caller waits; tracing goes on meanwhile.
+     */
+    public void flush() {
+        long target = tail.get();
+        while (flushed - target < 0 && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /** Returns the number of records dropped because the buffer was full. */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /** Writes out the records traced so far, then stops the writer and closes the output
+     * unless it is the standard output. Records traced afterwards are ignored.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (ownsOutput) {
+            try {
+                output.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void writeLoop() {
+        long position = 0;
+        while (true) {
+            Slot slot = slots[(int) position & mask];
+            if (slot.sequence == position + 1) {
+                try {
+                    write(slot);
+                } catch (IOException e) {
+                    // Keep draining, so producers do not start dropping records
+                }
+                slot.first = slot.second = slot.third = null;
+                slot.sequence = position + slots.length;
+                position++;
+                continue;
+            }
+            // Nothing to write: flush what was written, then wait for producers
+            flushOutput();
+            flushed = position;
+            if (closed && tail.get() == position)
+                return;
+            idle = true;
+            if (slot.sequence != position + 1 && !closed)
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            idle = false;
+        }
+    }
+
+    private void flushOutput() {
+        if (text != null) {
+            text.flush();
+        } else {
+            try {
+                binary.flush();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void write(Slot slot) throws IOException {
+        if (slot.kind == QUERY) {
+            DNSNode node = (DNSNode) slot.first;
+            String server = ((InetAddress) slot.second).getHostAddress();
+            if (text != null) {
+                printQuery(text, slot.id, node.getHostName(), node.getType().toString(), server);
+            } else {
+                binary.writeByte(QUERY);
+                binary.writeShort(slot.id);
+                binary.writeUTF(node.getHostName());
+                binary.writeUTF(node.getType().toString());
+                binary.writeUTF(server);
+            }
+            return;
+        }
+        List<ResourceRecord> answers = (List<ResourceRecord>) slot.first;
+        List<ResourceRecord> nameservers = (List<ResourceRecord>) slot.second;
+        List<ResourceRecord> additional = (List<ResourceRecord>) slot.third;
+        if (text != null) {
+            printResponse(text, slot.id, slot.authoritative);
+            printSection(text, "Answers", answers.size());
+            for (ResourceRecord record : answers)
+                printRecord(text, record.getHostName(), ttlOf(record, slot.nanos), typeOf(record), record.getTextResult());
+            printSection(text, "Nameservers", nameservers.size());
+            for (ResourceRecord record : nameservers)
+                printRecord(text, record.getHostName(), ttlOf(record, slot.nanos), typeOf(record), record.getTextResult());
+            printSection(text, "Additional Information", additional.size());
+            for (ResourceRecord record : additional)
+                printRecord(text, record.getHostName(), ttlOf(record, slot.nanos), typeOf(record), record.getTextResult());
+        } else {
+            binary.writeByte(RESPONSE);
+            binary.writeShort(slot.id);
+            binary.writeBoolean(slot.authoritative);
+            for (List<ResourceRecord> section : List.of(answers, nameservers, additional)) {
+                binary.writeShort(section.size());
+                for (ResourceRecord record : section) {
+                    binary.writeUTF(record.getHostName());
+                    binary.writeLong(ttlOf(record, slot.nanos));
+                    binary.writeUTF(typeOf(record));
+                    binary.writeUTF(record.getTextResult());
+                }
+            }
+        }
+    }
+
+    /** Returns the TTL of a record as it was when the response was traced, in seconds, however
+     * late the writer formats it.
+     */
+    private static long ttlOf(ResourceRecord record, long tracedNanos) {
+        return (record.getExpirationNanos() - tracedNanos + 999_999_999) / 1_000_000_000;
+    }
+
+    /** Returns the type of a record as traced: its name, or its code if it is not supported. */
+    private static String typeOf(ResourceRecord record) {
+        RecordType type = record.getType();
+        return type == RecordType.OTHER ? String.valueOf(type.getCode()) : type.toString();
+    }
+
+    private static void printQuery(PrintStream out, int id, String hostName, String type, String server) {
+        out.format("\n\nQuery ID     %d %s  %s --> %s\n", id, hostName, type, server);
+    }
+
+    private static void printResponse(PrintStream out, int id, boolean authoritative) {
+        out.format("Response ID: %d Authoritative = %b\n", id, authoritative);
+    }
+
+    private static void printSection(PrintStream out, String section, int count) {
+        out.format("  %s(%d)\n", section, count);
+    }
+
+    private static void printRecord(PrintStream out, String hostName, long ttl, String type, String data) {
+        out.format("       %-30s %-10d %-4s %s\n", hostName, ttl, type, data);
+    }
+
+    /** Prints a binary trace as text, with the layout of a text trace.
+     *
+     * @param in  Binary trace.
+     * @param out Stream the text is printed to.
+     * @throws IOException if the trace could not be read or is not a binary trace.
+     */
+    public static void convert(InputStream in, PrintStream out) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != BINARY_MAGIC || data.readInt() != BINARY_VERSION)
+            throw new IOException("Not a binary DNS trace");
+        String[] sections = { "Answers", "Nameservers", "Additional Information" };
+        while (true) {
+            int kind;
+            try {
+                kind = data.readByte();
+            } catch (EOFException e) {
+                return;
+            }
+            int id = data.readUnsignedShort();
+            if (kind == QUERY) {
+                printQuery(out, id, data.readUTF(), data.readUTF(), data.readUTF());
+            } else if (kind == RESPONSE) {
+                printResponse(out, id, data.readBoolean());
+                for (String section : sections) {
+                    int count = data.readUnsignedShort();
+                    printSection(out, section, count);
+                    for (int i = 0; i < count; i++)
+                        printRecord(out, data.readUTF(), data.readLong(), data.readUTF(), data.readUTF());
+                }
+            } else {
+                throw new IOException("Invalid trace record kind " + kind);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: java -cp DNSLookupService.jar ca.ubc.dnslookup.TraceLog binaryTrace");
+            System.exit(1);
+        }
+        try (InputStream in = new FileInputStream(args[0])) {
+            convert(in, System.out);
+        }
+        System.out.flush();
+    }
+
+    /** Slot of the ring buffer, reused for every record it holds. */
+    private static final class Slot {
+        /** Position + 1 once the record at position is published; position + capacity once it
+         * is written out and the slot is free for that position. */
+        volatile long sequence;
+        long position;
+        byte kind;
+        int id;
+        /** System.nanoTime() when a response was traced, which its TTLs are relative to. */
+        long nanos;
+        boolean authoritative;
+        Object first;
+        Object second;
+        Object third;
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package ca.ubc.dnslookup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/** Size-based eviction policy for the DNS cache, modelled on W-TinyLFU. New nodes enter a
+ * small LRU admission window (1% of the budget). Nodes leaving the window become candidates
+ * for the main region, which is a segmented LRU split into probation and protected queues.
+ * When the cache is over budget, a candidate is only admitted if the frequency sketch says it
+ * has been used more often than the probation victim it would displace, so a burst of
+ * one-off names cannot flush out frequently used records.
+ *
+ * Weights are abstract: the cache decides whether they count records or estimated bytes.
+ * This class is not thread-safe; the cache only uses it while holding its eviction lock.
+ */
+final class WindowTinyLfuPolicy {
+
+    private static final double WINDOW_PERCENTAGE = 0.01;
+    private static final double PROTECTED_PERCENTAGE = 0.80;
+
+    private final long maximumWeight;
+    private final long maximumWindowWeight;
+    private final long maximumProtectedWeight;
+    private final FrequencySketch sketch;
+
+    private final Map<DNSNode, Node> nodes = new HashMap<>();
+    private final AccessOrderQueue window = new AccessOrderQueue();
+    private final AccessOrderQueue probation = new AccessOrderQueue();
+    private final AccessOrderQueue protectedQueue = new AccessOrderQueue();
+
+    private long weight;
+    private long windowWeight;
+    private long protectedWeight;
+
+    private long evictionCount;
+    private long evictedWeight;
+    private long rejectedCount;
+
+    /** Creates a policy enforcing the specified budget.
+     *
+     * @param maximumWeight   Maximum total weight of the entries kept in the cache.
+     * @param expectedEntries Expected number of entries, used to size the frequency sketch.
+     */
+    WindowTinyLfuPolicy(long maximumWeight, long expectedEntries) {
+        this.maximumWeight = maximumWeight;
+        this.maximumWindowWeight = Math.max(1, (long) (maximumWeight * WINDOW_PERCENTAGE));
+        this.maximumProtectedWeight = (long) ((maximumWeight - maximumWindowWeight) * PROTECTED_PERCENTAGE);
+        this.sketch = new FrequencySketch(expectedEntries);
+    }
+
+    /** Records a read of a node, whether it was found in the cache or not.
+     *
+     * @param key Node being read.
+     */
+    void recordAccess(DNSNode key) {
+        sketch.increment(key);
+        Node node = nodes.get(key);
+        if (node != null)
+            onHit(node);
+    }
+
+    /** Records that a node was added or that its weight changed, then evicts entries until the
+     * cache fits its budget again.
+     *
+     * @param key         Node that was written.
+     * @param entryWeight Current weight of the node's entry.
+     * @param evictor     Action removing an evicted node from the cache.
+     */
+    void recordWrite(DNSNode key, long entryWeight, Consumer<DNSNode> evictor) {
+        sketch.increment(key);
+        Node node = nodes.get(key);
+        if (node == null) {
+            node = new Node(key, entryWeight, Node.WINDOW);
+            nodes.put(key, node);
+            window.addLast(node);
+            windowWeight += entryWeight;
+            weight += entryWeight;
+        } else {
+            setWeight(node, entryWeight);
+            onHit(node);
+        }
+        evict(evictor);
+    }
+
+    /** Records that some records of a node were removed without the node being used, for
+     * example because they expired. As the weight can only go down, nothing is evicted.
+     *
+     * @param key         Node whose entry shrank.
+     * @param entryWeight Current weight of the node's entry.
+     */
+    void updateWeight(DNSNode key, long entryWeight) {
+        Node node = nodes.get(key);
+        if (node != null)
+            setWeight(node, entryWeight);
+    }
+
+    /** Stops tracking a node that was removed from the cache for some other reason than
+     * eviction (for example, because all of its records expired).
+     *
+     * @param key Node that was removed.
+     */
+    void remove(DNSNode key) {
+        Node node = nodes.remove(key);
+        if (node != null)
+            unlink(node);
+    }
+
+    long weightedSize() {
+        return weight;
+    }
+
+    long evictionCount() {
+        return evictionCount;
+    }
+
+    long evictedWeight() {
+        return evictedWeight;
+    }
+
+    long rejectedCount() {
+        return rejectedCount;
+    }
+
+    private void setWeight(Node node, long entryWeight) {
+        long delta = entryWeight - node.weight;
+        node.weight = entryWeight;
+        weight += delta;
+        if (node.queue == Node.WINDOW)
+            windowWeight += delta;
+        else if (node.queue == Node.PROTECTED)
+            protectedWeight += delta;
+    }
+
+    private void onHit(Node node) {
+        switch (node.queue) {
+            case Node.WINDOW:
+                window.moveToBack(node);
+                break;
+            case Node.PROBATION:
+                probation.remove(node);
+                node.queue = Node.PROTECTED;
+                protectedQueue.addLast(node);
+                protectedWeight += node.weight;
+                // Demote the least recently used protected nodes if the segment overflows
+                while (protectedWeight > maximumProtectedWeight && protectedQueue.first != node) {
+                    Node demoted = protectedQueue.first;
+                    protectedQueue.remove(demoted);
+                    protectedWeight -= demoted.weight;
+                    demoted.queue = Node.PROBATION;
+                    probation.addLast(demoted);
+                }
+                break;
+            default:
+                protectedQueue.moveToBack(node);
+        }
+    }
+
+    private void evict(Consumer<DNSNode> evictor) {
+        // Overflowing window entries move to the back of probation as admission candidates
+        int candidates = 0;
+        while (windowWeight > maximumWindowWeight && window.first != null) {
+            Node node = window.first;
+            window.remove(node);
+            windowWeight -= node.weight;
+            node.queue = Node.PROBATION;
+            probation.addLast(node);
+            candidates++;
+        }
+
+        while (weight > maximumWeight) {
+            Node victim = probation.first != null ? probation.first
+                    : protectedQueue.first != null ? protectedQueue.first : window.first;
+            Node candidate = candidates > 0 ? probation.last : null;
+            if (candidate == null || candidate == victim) {
+                if (candidate != null)
+                    candidates--;
+                evictNode(victim, evictor);
+            } else if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                candidates--;
+                evictNode(victim, evictor);
+            } else {
+                candidates--;
+                rejectedCount++;
+                evictNode(candidate, evictor);
+            }
+        }
+    }
+
+    private void evictNode(Node node, Consumer<DNSNode> evictor) {
+        nodes.remove(node.key);
+        unlink(node);
+        evictionCount++;
+        evictedWeight += node.weight;
+        evictor.accept(node.key);
+    }
+
+    private void unlink(Node node) {
+        weight -= node.weight;
+        if (node.queue == Node.WINDOW) {
+            window.remove(node);
+            windowWeight -= node.weight;
+        } else if (node.queue == Node.PROBATION) {
+            probation.remove(node);
+        } else {
+            protectedQueue.remove(node);
+            protectedWeight -= node.weight;
+        }
+    }
+
+    /** Policy bookkeeping for a cached node. */
+    private static final class Node {
+        static final int WINDOW = 0;
+        static final int PROBATION = 1;
+        static final int PROTECTED = 2;
+
+        final DNSNode key;
+        long weight;
+        int queue;
+        Node previous;
+        Node next;
+
+        Node(DNSNode key, long weight, int queue) {
+            this.key = key;
+            this.weight = weight;
+            this.queue = queue;
+        }
+    }
+
+    /** Doubly-linked list of nodes ordered from least to most recently used. */
+    private static final class AccessOrderQueue {
+        Node first;
+        Node last;
+
+        void addLast(Node node) {
+            node.previous = last;
+            node.next = null;
+            if (last == null)
+                first = node;
+            else
+                last.next = node;
+            last = node;
+        }
+
+        void remove(Node node) {
+            if (node.previous == null)
+                first = node.next;
+            else
+                node.previous.next = node.next;
+            if (node.next == null)
+                last = node.previous;
+            else
+                node.next.previous = node.previous;
+            node.previous = null;
+            node.next = null;
+        }
+
+        void moveToBack(Node node) {
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package test;
+
+import ca.ubc.dnslookup.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class BatchLookupTests {
+
+    private static final int HOSTS = 300;
+
+    FakeDnsServer root;
+    FakeDnsServer leaf;
+    DNSTransport transport;
+    ExecutorService executor;
+    DNSResolver resolver;
+
+    @Before
+    public void init() throws Exception {
+        int port = FakeDnsServer.findFreePort();
+        root = new FakeDnsServer(InetAddress.getByName("127.0.0.1"), port)
+                .delegate("example.com", "ns1.example.com", "127.0.0.2");
+        leaf = new FakeDnsServer(InetAddress.getByName("127.0.0.2"), port)
+                .fail("broken.example.com", 2)
+                .addRecord("mail.example.com", RecordType.MX, 3600, "mx.example.com");
+        for (int i = 0; i < HOSTS; i++)
+            leaf.addRecord("host" + i + ".example.com", RecordType.A, 3600, "10.0." + (i / 256) + "." + (i % 256));
+
+        transport = new DNSTransport(port);
+        executor = Executors.newFixedThreadPool(2);
+        resolver = new DNSResolver(new DNSCache(), transport, root.getAddress(), executor);
+    }
+
+    @After
+    public void cleanUp() {
+        resolver.close();
+        executor.shutdownNow();
+        transport.close();
+        root.close();
+        leaf.close();
+    }
+
+    @Test
+    public void resolvesEveryListedHost() throws Exception {
+        StringBuilder input = new StringBuilder("# hosts to enrich\n\n");
+        for (int i = 0; i < HOSTS; i++)
+            input.append("host").append(i).append(".example.com\n");
+        input.append("mail.example.com mx   # with a type\n");
+        input.append("bad.example.com NOSUCHTYPE\n");
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        BatchLookup.Summary summary = new BatchLookup(resolver, 16, new PrintStream(output, true))
+                .run(new BufferedReader(new StringReader(input.toString())));
+
+        assertEquals(HOSTS + 1, summary.getLookupCount());
+        assertEquals(0, summary.getFailureCount());
+        assertEquals(1, summary.getInvalidCount());
+        assertTrue(summary.getLatencyPercentile(50) <= summary.getLatencyPercentile(99));
+        assertTrue(summary.getLatencyPercentile(99) <= summary.getLatencyPercentile(100));
+
+        // Results come in completion order, one line per record
+        Set<String> lines = new HashSet<>(Arrays.asList(output.toString().split("\n")));
+        assertEquals(HOSTS + 1, lines.size());
+        for (int i = 0; i < HOSTS; i++)
+            assertTrue(lines.contains(String.format("%-30s %-5s %-8d %s", "host" + i + ".example.com", "A", 3600,
+                    "10.0." + (i / 256) + "." + (i % 256))));
+        assertTrue(lines.contains(String.format("%-30s %-5s %-8d %s", "mail.example.com", "MX", 3600,
+                "mx.example.com")));
+    }
+
+    @Test
+    public void failedLookupsAreCounted() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        BatchLookup.Summary summary = new BatchLookup(resolver, 4, new PrintStream(output, true))
+                .run(new BufferedReader(new StringReader("host1.example.com\nbroken.example.com\nnosuch.example.com\n")));
+
+        assertEquals(3, summary.getLookupCount());
+        assertEquals(1, summary.getFailureCount());
+        assertTrue(output.toString().contains(String.format("%-30s %-5s %-8d %s", "broken.example.com", "A", -1,
+                "0.0.0.0")));
+        assertTrue(output.toString().contains(String.format("%-30s %-5s %-8d %s", "nosuch.example.com", "A", -1,
+                "0.0.0.0")));
+    }
+}
@@ -0,0 +1,180 @@
+package test;
+
+import ca.ubc.dnslookup.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class CacheSnapshotTests {
+
+    Path directory;
+    Path file;
+
+    @Before
+    public void init() throws IOException {
+        directory = Files.createTempDirectory("snapshot");
+        file = directory.resolve("cache.snapshot");
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path snapshot : (Iterable<Path>) files::iterator)
+                Files.delete(snapshot);
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void recordsAreLoadedLazilyFromSnapshot() throws Exception {
+        DNSCache cache = new DNSCache();
+        cache.addResult(new ResourceRecord("www.example.com", RecordType.A, 600, InetAddress.getByName("10.0.0.1")));
+        cache.addResult(new ResourceRecord("www.example.com", RecordType.A, 600, InetAddress.getByName("10.0.0.2")));
+        cache.addResult(new ResourceRecord("www.example.com", RecordType.AAAA, 600, InetAddress.getByName("2001:db8::1")));
+        cache.addResult(new ResourceRecord("mail.example.com", RecordType.CNAME, 600, "www.example.com"));
+        cache.addResult(new ResourceRecord("example.com", RecordType.NS, 600, "ns1.example.com"));
+        assertEquals(4, CacheSnapshot.write(cache, file));
+
+        CacheSnapshot snapshot = CacheSnapshot.open(file);
+        assertEquals(4, snapshot.getNodeCount());
+        DNSCache restarted = new DNSCache();
+        restarted.loadSnapshot(snapshot);
+        assertEquals(1, restarted.getDelegationCount());
+        assertEquals(0, countNodes(restarted));
+
+        Set<ResourceRecord> addresses = restarted.getCachedResults(new DNSNode("WWW.example.com", RecordType.A));
+        assertEquals(2, addresses.size());
+        for (ResourceRecord record : addresses) {
+            assertTrue(record.getTTL() > 590 && record.getTTL() <= 600);
+            assertTrue(record.getTextResult().equals("10.0.0.1") || record.getTextResult().equals("10.0.0.2"));
+        }
+        ResourceRecord ipv6 = restarted.getCachedResults(new DNSNode("www.example.com", RecordType.AAAA)).iterator().next();
+        assertEquals(InetAddress.getByName("2001:db8::1"), ipv6.getInetResult());
+        ResourceRecord alias = restarted.getCachedResults(new DNSNode("mail.example.com", RecordType.CNAME)).iterator().next();
+        assertEquals("www.example.com", alias.getTextResult());
+        assertTrue(restarted.getCachedResults(new DNSNode("ftp.example.com", RecordType.A)).isEmpty());
+        assertEquals(3, countNodes(restarted));
+    }
+
+    @Test
+    public void expiredRecordsAreNotLoaded() throws Exception {
+        DNSCache cache = new DNSCache();
+        cache.addResult(new ResourceRecord("www.example.com", RecordType.A, 1, InetAddress.getByName("10.0.0.1")));
+        cache.addResult(new ResourceRecord("www.example.com", RecordType.A, 600, InetAddress.getByName("10.0.0.2")));
+        cache.addResult(new ResourceRecord("example.com", RecordType.NS, 1, "ns1.example.com"));
+        CacheSnapshot.write(cache, file);
+        Thread.sleep(1100);
+
+        DNSCache restarted = new DNSCache();
+        restarted.loadSnapshot(CacheSnapshot.open(file));
+        assertEquals(0, restarted.getDelegationCount());
+        Set<ResourceRecord> addresses = restarted.getCachedResults(new DNSNode("www.example.com", RecordType.A));
+        assertEquals(1, addresses.size());
+        assertEquals("10.0.0.2", addresses.iterator().next().getTextResult());
+    }
+
+    @Test
+    public void rewriteKeepsNodesNotLoadedYet() throws Exception {
+        DNSCache cache = new DNSCache();
+        cache.addResult(new ResourceRecord("www.example.com", RecordType.A, 600, InetAddress.getByName("10.0.0.1")));
+        cache.addResult(new ResourceRecord("mail.example.com", RecordType.A, 600, InetAddress.getByName("10.0.0.2")));
+        CacheSnapshot.write(cache, file);
+
+        DNSCache restarted = new DNSCache();
+        restarted.loadSnapshot(CacheSnapshot.open(file));
+        restarted.getCachedResults(new DNSNode("www.example.com", RecordType.A));
+        restarted.addResult(new ResourceRecord("ftp.example.com", RecordType.A, 600, InetAddress.getByName("10.0.0.3")));
+        assertEquals(3, CacheSnapshot.write(restarted, file));
+
+        DNSCache again = new DNSCache();
+        again.loadSnapshot(CacheSnapshot.open(file));
+        for (String name : new String[] { "www.example.com", "mail.example.com", "ftp.example.com" })
+            assertEquals(1, again.getCachedResults(new DNSNode(name, RecordType.A)).size());
+    }
+
+    @Test
+    public void mappedSnapshotIsNotReplaced() throws Exception {
+        DNSCache cache = new DNSCache();
+        cache.addResult(new ResourceRecord("www.example.com", RecordType.A, 600, InetAddress.getByName("10.0.0.1")));
+        CacheSnapshot.write(cache, file);
+        byte[] mapped = Files.readAllBytes(file);
+
+        DNSCache restarted = new DNSCache();
+        restarted.loadSnapshot(CacheSnapshot.open(file));
+        Thread.sleep(5);
+        restarted.addResult(new ResourceRecord("ftp.example.com", RecordType.A, 600, InetAddress.getByName("10.0.0.3")));
+        CacheSnapshot.write(restarted, file);
+        assertArrayEquals(mapped, Files.readAllBytes(file));
+        // The newer snapshot, written next to the mapped one, is the one opened
+        CacheSnapshot newer = CacheSnapshot.open(file);
+        assertNotEquals(file, newer.getPath());
+        assertEquals(2, newer.getNodeCount());
+    }
+
+    @Test
+    public void evictedNodeIsNotReloaded() throws Exception {
+        DNSCache cache = new DNSCache();
+        DNSNode www = new DNSNode("www.example.com", RecordType.A);
+        cache.addResult(new ResourceRecord("www.example.com", RecordType.A, 600, InetAddress.getByName("10.0.0.1")));
+        CacheSnapshot.write(cache, file);
+
+        DNSCache restarted = DNSCache.withMaximumRecords(8);
+        restarted.loadSnapshot(CacheSnapshot.open(file));
+        assertEquals(1, restarted.getCachedResults(www).size());
+        for (int i = 0; i < 1000 && restarted.getEvictionCount() < 100; i++) {
+            DNSNode node = new DNSNode("host" + i + ".example.com", RecordType.A);
+            restarted.addResult(new ResourceRecord(node.getHostName(), RecordType.A, 600, InetAddress.getByName("10.0.1.1")));
+            for (int hit = 0; hit < 4; hit++)
+                restarted.getCachedResults(node);
+        }
+        assertFalse(nodes(restarted).contains(www));
+        assertTrue(restarted.getCachedResults(www).isEmpty());
+    }
+
+    @Test
+    public void corruptedSnapshotIsRejected() throws Exception {
+        DNSCache cache = new DNSCache();
+        cache.addResult(new ResourceRecord("www.example.com", RecordType.A, 600, InetAddress.getByName("10.0.0.1")));
+        CacheSnapshot.write(cache, file);
+        // Make the name of the only entry run past the end of the file
+        ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(file));
+        int entry = 32 + 4 * contents.getInt(20);
+        contents.putShort(entry + 6, (short) 0xFFFF);
+        Files.write(file, contents.array());
+        try {
+            CacheSnapshot.open(file);
+            fail("Corrupted snapshot opened");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Corrupted cache snapshot"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreRejected() throws Exception {
+        Files.write(file, "not a snapshot, but long enough for a header".getBytes());
+        CacheSnapshot.open(file);
+    }
+
+    private static Set<DNSNode> nodes(DNSCache cache) {
+        Set<DNSNode> nodes = new HashSet<>();
+        cache.forEachNode((node, records) -> nodes.add(node));
+        return nodes;
+    }
+
+    private static int countNodes(DNSCache cache) {
+        int[] count = new int[1];
+        cache.forEachNode((node, records) -> count[0]++);
+        return count[0];
+    }
+}
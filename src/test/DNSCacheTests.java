@@ -0,0 +1,210 @@
+package test;
+
+import ca.ubc.dnslookup.DNSCache;
+import ca.ubc.dnslookup.DNSNode;
+import ca.ubc.dnslookup.RecordType;
+import ca.ubc.dnslookup.ResourceRecord;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DNSCacheTests {
+
+    private static final int THREADS = 8;
+    private static final int HOSTS = 200;
+    private static final int ADDRESSES_PER_HOST = 4;
+
+    DNSCache cache;
+
+    @Before
+    public void init() {
+        cache = new DNSCache();
+    }
+
+    @Test
+    public void lookupIgnoresHostNameCase() {
+        cache.addResult(new ResourceRecord("WWW.Example.com", RecordType.CNAME, 60, "example.com"));
+        Set<ResourceRecord> results = cache.getCachedResults(new DNSNode("www.example.COM", RecordType.CNAME));
+        assertEquals(1, results.size());
+    }
+
+    @Test
+    public void onlyAsciiCaseIsIgnored() {
+        DNSNode upper = new DNSNode("WWW.Example.COM", RecordType.A);
+        DNSNode lower = new DNSNode("www.example.com", RecordType.A);
+        assertEquals(lower, upper);
+        assertEquals(lower.hashCode(), upper.hashCode());
+        assertEquals(0, lower.compareTo(upper));
+        // Non-ASCII letters equal to I and K when ignoring case, but not in DNS
+        assertNotEquals(new DNSNode("i.example.com", RecordType.A), new DNSNode("\u0131.example.com", RecordType.A));
+        assertNotEquals(new DNSNode("k.example.com", RecordType.A), new DNSNode("\u212A.example.com", RecordType.A));
+        assertNotEquals(0, new DNSNode("k.example.com", RecordType.A).compareTo(new DNSNode("\u212A.example.com", RecordType.A)));
+    }
+
+    @Test
+    public void expiredRecordsAreNotReturned() {
+        cache.addResult(new ResourceRecord("example.com", RecordType.NS, 0, "ns1.example.com"));
+        assertTrue(cache.getCachedResults(new DNSNode("example.com", RecordType.NS)).isEmpty());
+    }
+
+    @Test
+    public void expiredNodesAreReclaimedWithoutBeingRead() throws InterruptedException {
+        for (int i = 0; i < 100; i++)
+            cache.addResult(new ResourceRecord("short" + i + ".example.com", RecordType.CNAME, 1, "example.com"));
+        cache.addResult(new ResourceRecord("long.example.com", RecordType.CNAME, 3600, "example.com"));
+        cache.addResult(new ResourceRecord("short.example.com", RecordType.NS, 1, "ns1.example.com"));
+        cache.addResult(new ResourceRecord("example.com", RecordType.NS, 3600, "ns1.example.com"));
+        assertEquals(103, cache.getNodeCount());
+        assertEquals(2, cache.getDelegationCount());
+
+        Thread.sleep(2500);
+        cache.cleanUp();
+        assertEquals(2, cache.getNodeCount());
+        assertEquals(101, cache.getExpirationCount());
+        assertEquals(1, cache.getDelegationCount());
+    }
+
+    @Test
+    public void expiredRecordsAreKeptForStaleWindow() throws InterruptedException {
+        cache.setStaleWindow(60);
+        DNSNode node = new DNSNode("www.example.com", RecordType.A);
+        cache.addResult(new ResourceRecord("www.example.com", RecordType.A, 1, "10.0.0.1"));
+        assertTrue(cache.getStaleResults(node).isEmpty());
+
+        Thread.sleep(1100);
+        cache.cleanUp();
+        assertTrue(cache.getCachedResults(node).isEmpty());
+        Set<ResourceRecord> stale = cache.getStaleResults(node);
+        assertEquals(1, stale.size());
+        assertEquals("10.0.0.1", stale.iterator().next().getTextResult());
+        assertTrue(stale.iterator().next().getTTL() <= DNSCache.STALE_ANSWER_TTL);
+        assertEquals(1, cache.getNodeCount());
+    }
+
+    @Test
+    public void negativeAnswersAreCachedPerTypeOrPerName() {
+        cache.addNegativeResult(new DNSNode("www.example.com", RecordType.AAAA), 300, false);
+        cache.addNegativeResult(new DNSNode("nosuch.example.com", RecordType.A), 300, true);
+
+        assertTrue(cache.isNegativelyCached(new DNSNode("WWW.example.com", RecordType.AAAA)));
+        assertFalse(cache.isNegativelyCached(new DNSNode("www.example.com", RecordType.A)));
+        assertTrue(cache.isNegativelyCached(new DNSNode("nosuch.example.com", RecordType.MX)));
+        assertTrue(cache.getCachedResults(new DNSNode("www.example.com", RecordType.AAAA)).isEmpty());
+    }
+
+    @Test
+    public void recordReplacesNegativeAnswer() {
+        DNSNode node = new DNSNode("www.example.com", RecordType.CNAME);
+        cache.addNegativeResult(node, 300, false);
+        cache.addResult(new ResourceRecord("www.example.com", RecordType.CNAME, 60, "example.com"));
+        assertFalse(cache.isNegativelyCached(node));
+        assertEquals(1, cache.getCachedResults(node).size());
+
+        // ... but a negative answer does not replace valid records
+        cache.addNegativeResult(node, 300, false);
+        assertFalse(cache.isNegativelyCached(node));
+    }
+
+    @Test
+    public void laterExpiryReplacesEquivalentRecord() {
+        cache.addResult(new ResourceRecord("example.com", RecordType.NS, 10, "ns1.example.com"));
+        cache.addResult(new ResourceRecord("example.com", RecordType.NS, 1000, "ns1.example.com"));
+        cache.addResult(new ResourceRecord("example.com", RecordType.NS, 100, "ns1.example.com"));
+        Set<ResourceRecord> results = cache.getCachedResults(new DNSNode("example.com", RecordType.NS));
+        assertEquals(1, results.size());
+        assertTrue(results.iterator().next().getTTL() > 100);
+    }
+
+    @Test
+    public void boundedCacheStaysWithinRecordLimit() {
+        DNSCache bounded = DNSCache.withMaximumRecords(100);
+        for (int i = 0; i < 1000; i++)
+            bounded.addResult(new ResourceRecord("host" + i + ".example.com", RecordType.CNAME, 3600, "example.com"));
+
+        AtomicInteger records = new AtomicInteger();
+        bounded.forEachRecord((node, record) -> records.incrementAndGet());
+        assertTrue(records.get() <= 100);
+        assertEquals(records.get(), bounded.getWeightedSize());
+        assertEquals(1000 - records.get(), bounded.getEvictionCount());
+    }
+
+    @Test
+    public void boundedCacheStaysWithinByteLimit() {
+        DNSCache bounded = DNSCache.withMaximumBytes(64 * 1024);
+        for (int i = 0; i < 5000; i++)
+            bounded.addResult(new ResourceRecord("host" + i + ".example.com", RecordType.CNAME, 3600, "example.com"));
+
+        assertTrue(bounded.getWeightedSize() <= 64 * 1024);
+        assertTrue(bounded.getEvictedWeight() > 0);
+    }
+
+    @Test
+    public void frequentlyUsedRecordsSurviveScanOfOneOffNames() {
+        DNSCache bounded = DNSCache.withMaximumRecords(100);
+        for (int i = 0; i < 50; i++)
+            bounded.addResult(new ResourceRecord("hot" + i + ".example.com", RecordType.CNAME, 3600, "example.com"));
+        for (int round = 0; round < 5; round++)
+            for (int i = 0; i < 50; i++)
+                bounded.getCachedResults(new DNSNode("hot" + i + ".example.com", RecordType.CNAME));
+
+        for (int i = 0; i < 2000; i++)
+            bounded.addResult(new ResourceRecord("cold" + i + ".example.com", RecordType.CNAME, 3600, "example.com"));
+
+        int hotSurvivors = 0;
+        for (int i = 0; i < 50; i++)
+            if (!bounded.getCachedResults(new DNSNode("hot" + i + ".example.com", RecordType.CNAME)).isEmpty())
+                hotSurvivors++;
+        assertTrue("Only " + hotSurvivors + " hot records survived", hotSurvivors >= 45);
+        assertTrue(bounded.getRejectedCount() > 0);
+    }
+
+    @Test
+    public void concurrentReadersAndWriters() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CyclicBarrier start = new CyclicBarrier(THREADS);
+        AtomicInteger inconsistentReads = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < HOSTS; i++) {
+                    String host = "host" + i + ".example.com";
+                    if (i % THREADS == thread)
+                        for (int a = 0; a < ADDRESSES_PER_HOST; a++)
+                            cache.addResult(new ResourceRecord(host, RecordType.A, 3600,
+                                    InetAddress.getByAddress(new byte[]{10, 0, (byte) i, (byte) a})));
+                    // Readers must never see a partially built or duplicated set
+                    for (int r = 0; r < HOSTS; r += 7) {
+                        Set<ResourceRecord> results = cache.getCachedResults(
+                                new DNSNode("host" + r + ".example.com", RecordType.A));
+                        if (results.size() > ADDRESSES_PER_HOST || results.size() != (int) results.stream().distinct().count())
+                            inconsistentReads.incrementAndGet();
+                    }
+                    cache.forEachRecord((node, record) -> assertEquals(node, record.getNode()));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get(30, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        assertEquals(0, inconsistentReads.get());
+        for (int i = 0; i < HOSTS; i++)
+            assertEquals(ADDRESSES_PER_HOST,
+                    cache.getCachedResults(new DNSNode("host" + i + ".example.com", RecordType.A)).size());
+        AtomicInteger nodes = new AtomicInteger();
+        cache.forEachNode((node, records) -> nodes.incrementAndGet());
+        assertEquals(HOSTS, nodes.get());
+    }
+}
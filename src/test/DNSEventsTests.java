@@ -0,0 +1,84 @@
+package test;
+
+import ca.ubc.dnslookup.*;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class DNSEventsTests {
+
+    FakeDnsHierarchy hierarchy;
+    DNSTransport transport;
+    ExecutorService executor;
+    DNSResolver resolver;
+    Path file;
+
+    @Before
+    public void init() throws Exception {
+        hierarchy = FakeDnsHierarchy.load(FakeDnsHierarchy.DEFAULT_FIXTURE);
+        transport = new DNSTransport(hierarchy.getPort());
+        executor = Executors.newFixedThreadPool(2);
+        resolver = new DNSResolver(new DNSCache(), transport, hierarchy.getRootAddress(), executor);
+        file = Files.createTempFile("dns", ".jfr");
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        resolver.close();
+        executor.shutdownNow();
+        transport.close();
+        hierarchy.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void lookupIsRecorded() throws Exception {
+        try (Recording recording = new Recording()) {
+            for (String event : new String[] { "QuerySent", "QueryAnswered", "ResponseDecoded", "CacheInsert",
+                    "LookupCompleted" })
+                recording.enable("ca.ubc.dnslookup." + event).withThreshold(Duration.ZERO);
+            recording.start();
+            resolver.resolve(new DNSNode("alias.example.com", RecordType.A)).get(30, TimeUnit.SECONDS);
+            resolver.resolve(new DNSNode("alias.example.com", RecordType.A)).get(30, TimeUnit.SECONDS);
+            recording.stop();
+            recording.dump(file);
+        }
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+
+        List<RecordedEvent> sent = named(events, "QuerySent");
+        List<RecordedEvent> answered = named(events, "QueryAnswered");
+        assertFalse(sent.isEmpty());
+        assertEquals(sent.size(), answered.size());
+        assertEquals(sent.size(), named(events, "ResponseDecoded").size());
+        assertTrue(sent.stream().anyMatch(event -> event.getString("server").equals("127.0.0.1")));
+        assertTrue(answered.get(0).getInt("responseBytes") > 12);
+        assertFalse(named(events, "CacheInsert").isEmpty());
+
+        List<RecordedEvent> lookups = named(events, "LookupCompleted");
+        assertEquals(2, lookups.size());
+        RecordedEvent resolved = lookups.get(0).getBoolean("cached") ? lookups.get(1) : lookups.get(0);
+        assertEquals("alias.example.com", resolved.getString("name"));
+        assertEquals(2, resolved.getInt("cnames"));
+        assertTrue(resolved.getInt("queries") >= 3);
+        assertNull(resolved.getString("error"));
+    }
+
+    private static List<RecordedEvent> named(List<RecordedEvent> events, String name) {
+        return events.stream().filter(event -> event.getEventType().getName().equals("ca.ubc.dnslookup." + name))
+                .collect(Collectors.toList());
+    }
+}
@@ -1,7 +1,9 @@
 package test;
 
 import ca.ubc.dnslookup.DNSCache;
+import ca.ubc.dnslookup.DNSNode;
 import ca.ubc.dnslookup.DNSQueryHandler;
+import ca.ubc.dnslookup.RecordType;
 import ca.ubc.dnslookup.ResourceRecord;
 import org.junit.Before;
 import org.junit.Test;
@@ -94,6 +96,32 @@ public class DNSQueryHandlerTests {
         }
     }
 
+    @Test
+    public void noSuchNameResponseIsCachedNegatively() throws Exception {
+        DNSQueryHandler.decodeAndCacheResponse(
+                1,
+                byteBufferFromHexString(NO_SUCH_NAME_RAW_RESPONSE.replaceAll("\\s+", "")),
+                emptyCache
+        );
+        assertTrue(emptyCache.isNegativelyCached(new DNSNode("blueberry.ugrad.cs.ubc.ca", RecordType.A)));
+        assertTrue(emptyCache.isNegativelyCached(new DNSNode("blueberry.ugrad.cs.ubc.ca", RecordType.AAAA)));
+        assertFalse(emptyCache.isNegativelyCached(new DNSNode("ugrad.cs.ubc.ca", RecordType.A)));
+    }
+
+    @Test
+    public void cnameToNoDataIsCachedNegativelyAtTheEndOfTheChain() throws Exception {
+        Set<ResourceRecord> referral = DNSQueryHandler.decodeAndCacheResponse(
+                1,
+                byteBufferFromHexString(CNAME_NO_DATA_RAW_RESPONSE.replaceAll("\\s+", "")),
+                emptyCache
+        );
+        assertTrue(referral.isEmpty());
+        assertEquals(1, emptyCache.getCachedResults(new DNSNode("www.example.com", RecordType.CNAME)).size());
+        assertTrue(emptyCache.isNegativelyCached(new DNSNode("host.example.com", RecordType.A)));
+        assertFalse(emptyCache.isNegativelyCached(new DNSNode("host.example.com", RecordType.AAAA)));
+        assertFalse(emptyCache.isNegativelyCached(new DNSNode("www.example.com", RecordType.A)));
+    }
+
     private ByteBuffer byteBufferFromHexString(String packet) {
         int length = packet.length();
         byte[] data = new byte[length / 2];
@@ -0,0 +1,318 @@
+package test;
+
+import ca.ubc.dnslookup.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class DNSResolverTests {
+
+    private static final int CONCURRENT_LOOKUPS = 500;
+
+    List<FakeDnsServer> servers = new ArrayList<>();
+    FakeDnsServer root;
+    FakeDnsServer leaf;
+    DNSCache cache;
+    DNSTransport transport;
+    ExecutorService executor;
+    DNSResolver resolver;
+
+    @Before
+    public void init() throws Exception {
+        int port = FakeDnsServer.findFreePort();
+        root = server("127.0.0.1", port)
+                .delegate("com", "a.gtld.test", "127.0.0.2")
+                .delegate("net", "a.gtld.test", "127.0.0.2")
+                // Nothing listens on 127.0.0.9, so queries to it go unanswered
+                .delegate("example.org", "a.ns.example.org", "127.0.0.9")
+                .delegate("example.org", "b.ns.example.org", "127.0.0.3");
+        server("127.0.0.2", port)
+                .delegate("example.com", "ns1.example.com", "127.0.0.3")
+                .delegate("other.com", "ns.slow.net", null)
+                .delegate("other.com", "ns.hosting.net", null)
+                .delegate("hosting.net", "a.ns.hosting.net", "127.0.0.4")
+                .delegate("slow.net", "a.ns.slow.net", "127.0.0.9");
+        leaf = server("127.0.0.3", port)
+                .soa("example.com", 3600, 300)
+                .fail("broken.example.com", 2)
+                .addRecord("www.example.com", RecordType.A, 3600, "10.0.0.1")
+                .addRecord("www.example.org", RecordType.A, 3600, "10.2.0.1")
+                .addRecord("alias.example.com", RecordType.CNAME, 3600, "www.example.com")
+                .addRecord("short.example.com", RecordType.A, 1, "10.0.0.5");
+        for (int i = 0; i < CONCURRENT_LOOKUPS; i++)
+            leaf.addRecord("host" + i + ".example.com", RecordType.A, 3600, "10.0." + (i / 256) + "." + (i % 256));
+        // ns.hosting.net serves other.com, but is only named (without glue) in its delegation;
+        // its IPv6 address is unreachable
+        server("127.0.0.4", port)
+                .addRecord("ns.hosting.net", RecordType.A, 3600, "127.0.0.4")
+                .addRecord("ns.hosting.net", RecordType.AAAA, 3600, "2001:db8::53")
+                .addRecord("www.other.com", RecordType.A, 3600, "10.1.0.1");
+
+        cache = new DNSCache();
+        transport = new DNSTransport(port);
+        executor = Executors.newFixedThreadPool(2);
+        resolver = new DNSResolver(cache, transport, root.getAddress(), executor);
+    }
+
+    @After
+    public void cleanUp() {
+        resolver.close();
+        executor.shutdownNow();
+        transport.close();
+        servers.forEach(FakeDnsServer::close);
+    }
+
+    @Test
+    public void resolvesThroughReferralsThenFromCache() throws Exception {
+        assertEquals(Set.of("10.0.0.1"), addresses(resolve("www.example.com")));
+        assertEquals(1, root.getQueryCount());
+
+        assertEquals(Set.of("10.0.0.1"), addresses(resolve("www.example.com")));
+        assertEquals(1, root.getQueryCount());
+    }
+
+    @Test
+    public void siblingNameStartsAtCachedDelegation() throws Exception {
+        resolve("www.example.com");
+        long queries = resolver.getQueryCount();
+
+        assertEquals(Set.of("10.0.0.7"), addresses(resolve("host7.example.com")));
+        assertEquals(1, root.getQueryCount());
+        assertEquals(queries + 1, resolver.getQueryCount());
+        assertTrue(cache.getDelegationCount() >= 2);
+    }
+
+    @Test
+    public void unansweredQueryIsHedgedToAnotherServer() throws Exception {
+        InfrastructureCache servers = resolver.getInfrastructureCache();
+        servers.recordResponse(InetAddress.getByName("127.0.0.9"), 1_000_000);
+        servers.recordResponse(InetAddress.getByName("127.0.0.3"), 50_000_000);
+
+        long start = System.nanoTime();
+        assertEquals(Set.of("10.2.0.1"), addresses(resolve("www.example.org")));
+        // Much sooner than the query timeout
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        assertEquals(resolver.getHedgedQueryCount(), resolver.getHedgeWinCount());
+        assertTrue(resolver.getHedgeableQueryCount() >= 1);
+    }
+
+    @Test
+    public void lostQueryIsRetransmitted() throws Exception {
+        // A fast server gets a short retransmission timeout
+        resolver.getInfrastructureCache().recordResponse(leaf.getAddress(), 1_000_000);
+        leaf.drop(1);
+
+        long start = System.nanoTime();
+        assertEquals(Set.of("10.0.0.1"), addresses(resolve("www.example.com")));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        assertEquals(2, leaf.getQueryCount());
+        assertEquals(1, resolver.getTimeoutCount());
+        assertEquals(1, resolver.getRetryCount());
+        assertEquals(0, resolver.getFailoverCount());
+    }
+
+    @Test
+    public void singleServerQueriesShareTheResolverStatistics() throws Exception {
+        InetAddress silent = InetAddress.getByName("127.0.0.9");
+        resolver.getInfrastructureCache().recordResponse(silent, 1_000_000);
+        DNSNode node = new DNSNode("www.example.com", RecordType.A);
+        try {
+            DNSQueryHandler.buildAndSendQuery(new byte[512], silent, node, resolver);
+            fail("Query to a server not responding succeeded");
+        } catch (SocketTimeoutException expected) {
+        }
+        assertEquals(3, resolver.getQueryCount());
+        assertEquals(2, resolver.getRetryCount());
+        assertEquals(3, resolver.getTimeoutCount());
+        assertTrue(resolver.getInfrastructureCache().isHeldDown(silent));
+
+        DNSQueryHandler.buildAndSendQuery(new byte[512], leaf.getAddress(), node, resolver);
+        assertEquals(4, resolver.getQueryCount());
+        assertNotEquals(InfrastructureCache.UNKNOWN_SERVER_RTT_MICROS,
+                resolver.getInfrastructureCache().getSmoothedRttMicros(leaf.getAddress()));
+    }
+
+    @Test
+    public void retriesAreBounded() throws Exception {
+        resolver.getInfrastructureCache().recordResponse(InetAddress.getByName("127.0.0.9"), 1_000_000);
+        try {
+            resolve("www.slow.net");
+            fail("Lookup with no server responding succeeded");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }
+        // Sent once, then retransmitted with backoff
+        assertEquals(3, resolver.getTimeoutCount());
+        assertEquals(2, resolver.getRetryCount());
+    }
+
+    @Test
+    public void lookupFailsAtItsDeadline() throws Exception {
+        long start = System.nanoTime();
+        try {
+            resolver.resolve(new DNSNode("www.slow.net", RecordType.A), 300, TimeUnit.MILLISECONDS).get(30, TimeUnit.SECONDS);
+            fail("Lookup with no server responding succeeded");
+        } catch (ExecutionException e) {
+            LookupTimeoutException timeout = (LookupTimeoutException) e.getCause();
+            assertEquals(LookupTimeoutException.Stage.QUERY, timeout.getStage());
+            assertTrue(timeout.getStageNanos(LookupTimeoutException.Stage.QUERY) > 0);
+            assertTrue(timeout.getMessage().contains("www.slow.net"));
+        }
+        // Long before the retransmission timeout of an unknown server
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(900));
+    }
+
+    @Test
+    public void joinedLookupFailsAtItsOwnDeadline() throws Exception {
+        CompletableFuture<Set<ResourceRecord>> first = resolver.resolve(new DNSNode("www.slow.net", RecordType.A));
+        CompletableFuture<Set<ResourceRecord>> second =
+                resolver.resolve(new DNSNode("www.slow.net", RecordType.A), 200, TimeUnit.MILLISECONDS);
+        try {
+            second.get(30, TimeUnit.SECONDS);
+            fail("Lookup with no server responding succeeded");
+        } catch (ExecutionException e) {
+            assertEquals(LookupTimeoutException.Stage.JOINED, ((LookupTimeoutException) e.getCause()).getStage());
+        }
+        assertEquals(1, resolver.getCoalescedLookupCount());
+        assertFalse(first.isDone());
+    }
+
+    @Test
+    public void staleRecordsAnswerWhenServerFails() throws Exception {
+        cache.setStaleWindow(60);
+        resolve("short.example.com");
+        Thread.sleep(1100);
+        leaf.fail("short.example.com", 2);
+
+        Set<ResourceRecord> stale = resolve("short.example.com");
+        assertEquals(Set.of("10.0.0.5"), addresses(stale));
+        assertTrue(stale.iterator().next().getTTL() <= DNSCache.STALE_ANSWER_TTL);
+        assertEquals(1, resolver.getStaleAnswerCount());
+    }
+
+    @Test
+    public void staleRecordsAnswerSlowLookupWhileItContinues() throws Exception {
+        cache.setStaleWindow(60);
+        resolver.setStaleAnswerTimeout(50, TimeUnit.MILLISECONDS);
+        DNSNode node = new DNSNode("short.example.com", RecordType.A);
+        resolve("short.example.com");
+        Thread.sleep(1100);
+        // The first query is lost, and retransmitted after the stale answer timeout
+        resolver.getInfrastructureCache().recordResponse(leaf.getAddress(), 1_000_000);
+        leaf.drop(1);
+
+        assertEquals(Set.of("10.0.0.5"), addresses(resolve("short.example.com")));
+        assertEquals(1, resolver.getStaleAnswerCount());
+        assertTrue(cache.getCachedResults(node).isEmpty());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (cache.getCachedResults(node).isEmpty() && System.nanoTime() - deadline < 0)
+            Thread.sleep(10);
+        assertEquals(Set.of("10.0.0.5"), addresses(cache.getCachedResults(node)));
+    }
+
+    @Test
+    public void followsCname() throws Exception {
+        assertEquals(Set.of("10.0.0.1"), addresses(resolve("alias.example.com")));
+    }
+
+    @Test
+    public void resolvesGluelessNameserversConcurrently() throws Exception {
+        // ns.slow.net cannot be resolved before the query to its zone times out, but
+        // ns.hosting.net is resolved concurrently, and the lookup continues with it
+        long start = System.nanoTime();
+        assertEquals(Set.of("10.1.0.1"), addresses(resolve("www.other.com")));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        assertTrue(resolver.getAbandonedLookupCount() >= 1);
+    }
+
+    @Test
+    public void gluelessNameserverIsReachedOverIPv4() throws Exception {
+        assertEquals(Set.of("10.1.0.1"), addresses(resolve("www.other.com")));
+        // Its AAAA records are only a fallback, so they were not even looked up
+        assertFalse(cache.getCachedResults(new DNSNode("ns.hosting.net", RecordType.A)).isEmpty());
+        assertTrue(cache.getCachedResults(new DNSNode("ns.hosting.net", RecordType.AAAA)).isEmpty());
+    }
+
+    @Test
+    public void nonExistentNameIsCachedForAllTypes() throws Exception {
+        assertTrue(resolve("nosuch.example.com").isEmpty());
+        long queries = resolver.getQueryCount();
+
+        assertTrue(resolve("nosuch.example.com").isEmpty());
+        assertTrue(resolver.resolve(new DNSNode("nosuch.example.com", RecordType.MX)).get(30, TimeUnit.SECONDS).isEmpty());
+        assertEquals(queries, resolver.getQueryCount());
+        assertTrue(cache.isNegativelyCached(new DNSNode("NOSUCH.example.com", RecordType.AAAA)));
+    }
+
+    @Test
+    public void missingTypeIsCachedForThatTypeOnly() throws Exception {
+        DNSNode ipv6 = new DNSNode("www.example.com", RecordType.AAAA);
+        assertTrue(resolver.resolve(ipv6).get(30, TimeUnit.SECONDS).isEmpty());
+        int leafQueries = leaf.getQueryCount();
+
+        assertTrue(resolver.resolve(ipv6).get(30, TimeUnit.SECONDS).isEmpty());
+        assertEquals(leafQueries, leaf.getQueryCount());
+        assertEquals(Set.of("10.0.0.1"), addresses(resolve("www.example.com")));
+        assertEquals(leafQueries + 1, leaf.getQueryCount());
+    }
+
+    @Test
+    public void serverFailureFails() throws Exception {
+        try {
+            resolve("broken.example.com");
+            fail("Lookup answered with SERVFAIL succeeded");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof DNSParsingException);
+        }
+        assertFalse(cache.isNegativelyCached(new DNSNode("broken.example.com", RecordType.A)));
+    }
+
+    @Test
+    public void fewThreadsDriveManyConcurrentLookups() throws Exception {
+        List<CompletableFuture<Set<ResourceRecord>>> lookups = new ArrayList<>();
+        for (int i = 0; i < CONCURRENT_LOOKUPS; i++)
+            lookups.add(resolver.resolve(new DNSNode("host" + i + ".example.com", RecordType.A)));
+        for (int i = 0; i < CONCURRENT_LOOKUPS; i++)
+            assertEquals(Set.of("10.0." + (i / 256) + "." + (i % 256)),
+                    addresses(lookups.get(i).get(30, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    public void burstForSameNodeSharesOneLookup() throws Exception {
+        List<CompletableFuture<Set<ResourceRecord>>> lookups = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            lookups.add(resolver.resolve(new DNSNode("WWW.example.com", RecordType.A)));
+        for (CompletableFuture<Set<ResourceRecord>> lookup : lookups)
+            assertEquals(Set.of("10.0.0.1"), addresses(lookup.get(30, TimeUnit.SECONDS)));
+        assertEquals(1, root.getQueryCount());
+        assertEquals(3, resolver.getQueryCount());
+        assertEquals(99, resolver.getCoalescedLookupCount());
+    }
+
+    private FakeDnsServer server(String address, int port) throws Exception {
+        FakeDnsServer server = new FakeDnsServer(InetAddress.getByName(address), port);
+        servers.add(server);
+        return server;
+    }
+
+    private Set<ResourceRecord> resolve(String hostName) throws Exception {
+        return resolver.resolve(new DNSNode(hostName, RecordType.A)).get(30, TimeUnit.SECONDS);
+    }
+
+    private static Set<String> addresses(Set<ResourceRecord> records) {
+        Set<String> addresses = new HashSet<>();
+        for (ResourceRecord record : records)
+            addresses.add(record.getTextResult());
+        return addresses;
+    }
+}
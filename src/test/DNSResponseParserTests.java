@@ -0,0 +1,88 @@
+package test;
+
+import ca.ubc.dnslookup.DNSParsingException;
+import ca.ubc.dnslookup.DNSResponseParser;
+import ca.ubc.dnslookup.RecordType;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static test.HexDumps.*;
+
+public class DNSResponseParserTests {
+
+    DNSResponseParser parser;
+
+    @Before
+    public void init() {
+        parser = new DNSResponseParser();
+    }
+
+    @Test
+    public void visitsQuestionAndAllSections() throws DNSParsingException {
+        int[] transactionID = new int[1];
+        List<String> questions = new ArrayList<>();
+        int[] sections = new int[3];
+        List<String> nameservers = new ArrayList<>();
+        parser.parse(byteBufferFromHexString(STANFORD_NS_RAW_RESPONSE), new DNSResponseParser.Visitor() {
+            @Override
+            public void visitHeader(DNSResponseParser parser) {
+                transactionID[0] = parser.getTransactionID();
+            }
+
+            @Override
+            public void visitQuestion(DNSResponseParser parser) {
+                questions.add(parser.getName() + " " + parser.getType());
+            }
+
+            @Override
+            public void visitRecord(DNSResponseParser parser, int section) throws DNSParsingException {
+                sections[section]++;
+                if (parser.getType() == RecordType.NS)
+                    nameservers.add(parser.decodeDataName(0).toString());
+            }
+        });
+
+        assertEquals(0xb21e, transactionID[0]);
+        assertEquals(List.of("www.stanford.edu A"), questions);
+        assertArrayEquals(new int[]{0, 6, 7}, sections);
+        assertEquals(List.of("a.edu-servers.net", "c.edu-servers.net", "d.edu-servers.net",
+                "f.edu-servers.net", "g.edu-servers.net", "l.edu-servers.net"), nameservers);
+    }
+
+    @Test
+    public void parsingDoesNotMoveBuffer() throws DNSParsingException {
+        ByteBuffer response = byteBufferFromHexString(GOOGLE_MX_RAW_RESPONSE);
+        parser.parse(response, (parser, section) -> { });
+        assertEquals(0, response.position());
+    }
+
+    @Test(expected = DNSParsingException.class)
+    public void truncatedResponseIsRejected() throws DNSParsingException {
+        ByteBuffer response = byteBufferFromHexString(STANFORD_NS_RAW_RESPONSE);
+        response.limit(response.limit() - 5);
+        parser.parse(response, (parser, section) -> { });
+    }
+
+    @Test(expected = DNSParsingException.class)
+    public void compressionLoopIsRejected() throws DNSParsingException {
+        // One question whose name is a pointer to itself
+        ByteBuffer response = byteBufferFromHexString("0001 8000 0001 0000 0000 0000 c00c 0001 0001");
+        parser.parse(response, (parser, section) -> { });
+    }
+
+    private ByteBuffer byteBufferFromHexString(String packet) {
+        packet = packet.replaceAll("\\s+", "");
+        int length = packet.length();
+        byte[] data = new byte[length / 2];
+        for (int i = 0; i < length; i += 2) {
+            data[i / 2] = (byte) (((Character.digit(packet.charAt(i), 16) << 4)) +
+                    Character.digit(packet.charAt(i + 1), 16));
+        }
+        return ByteBuffer.wrap(data);
+    }
+}
@@ -0,0 +1,117 @@
+package test;
+
+import ca.ubc.dnslookup.DNSNode;
+import ca.ubc.dnslookup.DNSServerResponse;
+import ca.ubc.dnslookup.DNSTransport;
+import ca.ubc.dnslookup.RecordType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class DNSTransportTests {
+
+    private static final int QUERIES = 1000;
+
+    DatagramSocket server;
+    Thread serverThread;
+    volatile boolean corruptQuestion;
+
+    @Before
+    public void init() throws Exception {
+        server = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.setReceiveBufferSize(4 << 20);
+        serverThread = new Thread(this::echoQueries);
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+    @After
+    public void cleanUp() {
+        server.close();
+    }
+
+    @Test
+    public void concurrentQueriesShareOneSocket() throws Exception {
+        try (DNSTransport transport = new DNSTransport(server.getLocalPort())) {
+            List<CompletableFuture<DNSServerResponse>> futures = new ArrayList<>();
+            int[] ids = new int[QUERIES];
+            for (int i = 0; i < QUERIES; i++) {
+                final int query = i;
+                DNSNode node = new DNSNode("host" + i + ".example.com", RecordType.A);
+                futures.add(transport.send(server.getLocalAddress(), node, id -> {
+                    ids[query] = id;
+                    return encode(id, node.getHostName());
+                }, 5000));
+            }
+            // Each response must be routed to the query it answers
+            for (int i = 0; i < QUERIES; i++)
+                assertEquals(ids[i], futures.get(i).get(10, TimeUnit.SECONDS).getTransactionID());
+            assertEquals(0, transport.getPendingCount());
+        }
+    }
+
+    @Test
+    public void responseToAnotherQuestionIsIgnored() throws Exception {
+        corruptQuestion = true;
+        try (DNSTransport transport = new DNSTransport(server.getLocalPort())) {
+            DNSNode node = new DNSNode("www.example.com", RecordType.A);
+            CompletableFuture<DNSServerResponse> future = transport.send(server.getLocalAddress(), node,
+                    id -> encode(id, node.getHostName()), 500);
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("Response to another question was accepted");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+            assertEquals(0, transport.getPendingCount());
+        }
+    }
+
+    /** Answers each query by echoing it back as an empty response. */
+    private void echoQueries() {
+        byte[] buffer = new byte[512];
+        while (!server.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                server.receive(packet);
+                buffer[2] = (byte) 0x81;
+                buffer[3] = (byte) 0x80;
+                if (corruptQuestion)
+                    buffer[13] = 'x';
+                server.send(new DatagramPacket(buffer, packet.getLength(), packet.getSocketAddress()));
+            } catch (Exception e) {
+                return;
+            }
+        }
+    }
+
+    private static byte[] encode(int id, String hostName) {
+        byte[] query = new byte[12 + hostName.length() + 2 + 4];
+        query[0] = (byte) (id >>> 8);
+        query[1] = (byte) id;
+        query[5] = 1;
+        int index = 12;
+        for (String label : hostName.split("\\.")) {
+            query[index++] = (byte) label.length();
+            for (char c : label.toCharArray())
+                query[index++] = (byte) c;
+        }
+        query[index++] = 0;
+        query[index + 1] = (byte) RecordType.A.getCode();
+        query[index + 3] = 1;
+        return query;
+    }
+}
@@ -0,0 +1,247 @@
+package test;
+
+import ca.ubc.dnslookup.RecordType;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Simulated DNS hierarchy made of FakeDnsServer instances on loopback addresses, all sharing
+ * one UDP port, so full iterative lookups can run (and be load tested) without the network.
+ * The hierarchy is loaded from a fixture in zone file syntax, with one section per server:
+ * <pre>
+ * $SERVER 127.0.0.2          ; the following zones are served by 127.0.0.2
+ * $ORIGIN com.
+ * $TTL 3600
+ * @        900 SOA a.gtld-servers.test. hostmaster.gtld-servers.test. 1 1800 900 604800 86400
+ * @            NS  a.gtld-servers.test.
+ * example      NS  ns1.example.com.  ; below the origin: delegates example.com
+ * ns1.example  A   127.0.0.4         ; glue of the referral
+ * </pre>
+ * Records are written name [ttl] [IN] type data, one per line, with names relative to the
+ * $ORIGIN unless they end with a dot; a line starting with a blank has the name of the line
+ * before it. The root server is the one serving the root zone ($ORIGIN .).
+ *
+ * Faults set on the hierarchy (latency, loss, truncation) apply to all of its servers. Each
+ * server decides the faults of every packet from its own seed, derived from the seed of the
+ * hierarchy and its position in the fixture, so runs are repeatable.
+ *
+ * The hierarchy can also be started on its own, to point DNSLookupService or a load test at:
+ *
+ *     java -cp bin test.FakeDnsHierarchy [port [fixture]]
+ *     java -Ddnslookup.port=port -jar DNSLookupService.jar 127.0.0.1
+ */
+public class FakeDnsHierarchy implements Closeable {
+
+    /** Fixture with root, TLD and leaf zones, CNAME chains and glue-less referrals. */
+    public static final String DEFAULT_FIXTURE = "hierarchy.zone";
+
+    private final Map<String, FakeDnsServer> servers = new LinkedHashMap<>();
+    private final int port;
+    private FakeDnsServer root;
+
+    private FakeDnsHierarchy(int port) {
+        this.port = port;
+    }
+
+    /** Starts the servers of a fixture found on the class path next to this class, on a free port. */
+    public static FakeDnsHierarchy load(String resource) throws IOException {
+        InputStream in = FakeDnsHierarchy.class.getResourceAsStream(resource);
+        if (in == null)
+            throw new IOException("Fixture not found: " + resource);
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            return load(reader, FakeDnsServer.findFreePort());
+        }
+    }
+
+    /** Starts the servers of a fixture on a port. */
+    public static FakeDnsHierarchy load(Reader fixture, int port) throws IOException {
+        FakeDnsHierarchy hierarchy = new FakeDnsHierarchy(port);
+        try {
+            hierarchy.parse(new BufferedReader(fixture));
+        } catch (IOException | RuntimeException e) {
+            hierarchy.close();
+            throw e;
+        }
+        if (hierarchy.root == null)
+            hierarchy.root = hierarchy.servers.values().stream().findFirst()
+                    .orElseThrow(() -> new IOException("Fixture has no $SERVER section"));
+        return hierarchy;
+    }
+
+    private void parse(BufferedReader reader) throws IOException {
+        FakeDnsServer server = null;
+        String origin = "";
+        String owner = null;
+        int defaultTtl = 3600;
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            int comment = line.indexOf(';');
+            if (comment >= 0)
+                line = line.substring(0, comment);
+            if (line.isBlank())
+                continue;
+            boolean sameOwner = Character.isWhitespace(line.charAt(0));
+            Deque<String> tokens = new ArrayDeque<>(Arrays.asList(line.trim().split("\\s+")));
+            String first = tokens.peekFirst();
+            try {
+                if (first.equals("$SERVER")) {
+                    server = startServer(tokens.removeLast());
+                    continue;
+                } else if (first.equals("$ORIGIN")) {
+                    origin = absolute(tokens.removeLast(), "");
+                    if (origin.isEmpty() && root == null)
+                        root = server;
+                    continue;
+                } else if (first.equals("$TTL")) {
+                    defaultTtl = Integer.parseInt(tokens.removeLast());
+                    continue;
+                }
+                if (server == null)
+                    throw new IOException("Record before any $SERVER");
+                if (!sameOwner)
+                    owner = absolute(tokens.removeFirst(), origin);
+                else if (owner == null)
+                    throw new IOException("Record without a name");
+                int ttl = Character.isDigit(tokens.peekFirst().charAt(0))
+                        ? Integer.parseInt(tokens.removeFirst()) : defaultTtl;
+                if (tokens.peekFirst().equalsIgnoreCase("IN"))
+                    tokens.removeFirst();
+                addRecord(server, origin, owner, ttl, RecordType.valueOf(tokens.removeFirst().toUpperCase()),
+                        new ArrayList<>(tokens));
+            } catch (IOException | RuntimeException e) {
+                throw new IOException("Invalid fixture line " + lineNumber + ": " + line.trim()
+                        + " (" + e.getMessage() + ")", e);
+            }
+        }
+    }
+
+    private FakeDnsServer startServer(String address) throws IOException {
+        FakeDnsServer server = servers.get(address);
+        if (server == null) {
+            server = new FakeDnsServer(InetAddress.getByName(address), port).seed(servers.size());
+            servers.put(address, server);
+        }
+        return server;
+    }
+
+    private static void addRecord(FakeDnsServer server, String origin, String owner, int ttl, RecordType type,
+                                  List<String> data) {
+        switch (type) {
+            case SOA:
+                server.soa(owner, ttl, Integer.parseInt(data.get(data.size() - 1)));
+                break;
+            case NS:
+                // NS records at the origin are the zone's own; below it, they delegate a child zone
+                if (owner.equals(origin))
+                    server.addRecord(owner, type, ttl, absolute(data.get(0), origin));
+                else
+                    server.delegate(owner, absolute(data.get(0), origin), null);
+                break;
+            case MX:
+                server.addRecord(owner, type, ttl, absolute(data.get(1), origin));
+                break;
+            case CNAME:
+                server.addRecord(owner, type, ttl, absolute(data.get(0), origin));
+                break;
+            case A:
+            case AAAA:
+                server.addRecord(owner, type, ttl, data.get(0));
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported record type " + type);
+        }
+    }
+
+    /** Returns a name without its trailing dot, relative names being completed with the origin. */
+    private static String absolute(String name, String origin) {
+        if (name.equals("@"))
+            return origin;
+        if (name.endsWith("."))
+            return name.substring(0, name.length() - 1);
+        return origin.isEmpty() ? name : name + "." + origin;
+    }
+
+    public InetAddress getRootAddress() {
+        return root.getAddress();
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /** Returns the server listening on an address, or null. */
+    public FakeDnsServer getServer(String address) {
+        return servers.get(address);
+    }
+
+    public Collection<FakeDnsServer> getServers() {
+        return Collections.unmodifiableCollection(servers.values());
+    }
+
+    /** Returns the number of queries received by all the servers. */
+    public int getQueryCount() {
+        return servers.values().stream().mapToInt(FakeDnsServer::getQueryCount).sum();
+    }
+
+    /** Delays every response of every server by a time drawn uniformly between two bounds. */
+    public FakeDnsHierarchy latency(long minMillis, long maxMillis) {
+        servers.values().forEach(server -> server.latency(minMillis, maxMillis));
+        return this;
+    }
+
+    /** Makes every server ignore a fraction of its queries, chosen by the seed. */
+    public FakeDnsHierarchy loss(double rate) {
+        servers.values().forEach(server -> server.loss(rate));
+        return this;
+    }
+
+    /** Makes every server truncate a fraction of its responses, chosen by the seed. */
+    public FakeDnsHierarchy truncate(double rate) {
+        servers.values().forEach(server -> server.truncate(rate));
+        return this;
+    }
+
+    /** Seeds the faults of the servers. */
+    public FakeDnsHierarchy seed(long seed) {
+        int index = 0;
+        for (FakeDnsServer server : servers.values())
+            server.seed(seed + index++);
+        return this;
+    }
+
+    @Override
+    public void close() {
+        servers.values().forEach(FakeDnsServer::close);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5353;
+        FakeDnsHierarchy hierarchy;
+        if (args.length > 1) {
+            try (Reader reader = Files.newBufferedReader(Paths.get(args[1]))) {
+                hierarchy = load(reader, port);
+            }
+        } else {
+            try (Reader reader = new InputStreamReader(
+                    Objects.requireNonNull(FakeDnsHierarchy.class.getResourceAsStream(DEFAULT_FIXTURE)),
+                    StandardCharsets.UTF_8)) {
+                hierarchy = load(reader, port);
+            }
+        }
+        System.out.println("Simulated root server " + hierarchy.getRootAddress().getHostAddress()
+                + " listening on port " + port + " with " + hierarchy.getServers().size() + " servers.");
+        Thread.currentThread().join();
+    }
+}
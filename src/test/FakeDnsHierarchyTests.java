@@ -0,0 +1,179 @@
+package test;
+
+import ca.ubc.dnslookup.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class FakeDnsHierarchyTests {
+
+    FakeDnsHierarchy hierarchy;
+    DNSCache cache;
+    DNSTransport transport;
+    ExecutorService executor;
+    DNSResolver resolver;
+
+    @Before
+    public void init() throws Exception {
+        hierarchy = FakeDnsHierarchy.load(FakeDnsHierarchy.DEFAULT_FIXTURE);
+        cache = new DNSCache();
+        transport = new DNSTransport(hierarchy.getPort());
+        executor = Executors.newFixedThreadPool(2);
+        resolver = new DNSResolver(cache, transport, hierarchy.getRootAddress(), executor);
+    }
+
+    @After
+    public void cleanUp() {
+        resolver.close();
+        executor.shutdownNow();
+        transport.close();
+        hierarchy.close();
+    }
+
+    @Test
+    public void fixtureIsLoaded() {
+        assertEquals("127.0.0.1", hierarchy.getRootAddress().getHostAddress());
+        assertEquals(5, hierarchy.getServers().size());
+    }
+
+    @Test
+    public void resolvesFromRootToLeaf() throws Exception {
+        assertEquals(Set.of("10.0.0.1"), addresses(resolve("www.example.com", RecordType.A)));
+        assertEquals(Set.of("2001:db8:0:0:0:0:0:1"), addresses(resolve("www.example.com", RecordType.AAAA)));
+        assertEquals(1, hierarchy.getServer("127.0.0.1").getQueryCount());
+        assertEquals(1, hierarchy.getServer("127.0.0.2").getQueryCount());
+    }
+
+    @Test
+    public void followsCnameChainThroughGluelessReferral() throws Exception {
+        Set<String> results = addresses(resolve("alias.example.com", RecordType.A));
+        assertTrue(results.containsAll(Set.of("10.1.0.1", "10.1.0.2")));
+        // The address of ns1.cdn.net was looked up to follow the referral for example.org
+        assertFalse(cache.getCachedResults(new DNSNode("ns1.cdn.net", RecordType.A)).isEmpty());
+        // alias.example.com -> www.example.org -> edge.cdn.net
+        assertEquals(1, resolver.getCnameDepths().snapshot().getCount());
+        assertEquals(2, resolver.getCnameDepths().snapshot().getMax());
+        assertTrue(resolver.getReferralDepths().snapshot().getMax() >= 4);
+    }
+
+    @Test
+    public void lostQueriesAreRetransmitted() throws Exception {
+        // Each server drops the same packets whatever the timing, so every run is the same
+        hierarchy.loss(0.5).seed(42);
+        assertEquals(Set.of("10.0.0.1"), addresses(resolve("www.example.com", RecordType.A)));
+        assertEquals(Set.of("10.0.0.2"), addresses(resolve("mail.example.com", RecordType.A)));
+        assertEquals(Set.of("10.1.0.1", "10.1.0.2"), addresses(resolve("edge.cdn.net", RecordType.A)));
+        assertEquals(Set.of("10.1.0.1", "10.1.0.2"), addresses(resolve("alias.example.com", RecordType.A)));
+        assertEquals(5, resolver.getRetryCount());
+        assertEquals(16, hierarchy.getQueryCount());
+    }
+
+    @Test
+    public void latencyIsAddedToEveryResponse() throws Exception {
+        hierarchy.latency(50, 50);
+        long start = System.nanoTime();
+        resolve("www.example.com", RecordType.A);
+        // Root, TLD and leaf servers each answered once
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+    }
+
+    @Test
+    public void largeAndSelectedResponsesAreTruncated() throws Exception {
+        FakeDnsServer leaf = hierarchy.getServer("127.0.0.4");
+        ByteBuffer response = query(leaf, "big.example.com");
+        assertTrue((response.getShort(2) & 0x0200) != 0);
+        assertEquals(0, response.getShort(6));
+
+        assertEquals(0, query(leaf, "www.example.com").getShort(2) & 0x0200);
+        leaf.truncate(1);
+        assertTrue((query(leaf, "www.example.com").getShort(2) & 0x0200) != 0);
+        assertEquals(2, leaf.getTruncatedCount());
+    }
+
+    @Test
+    public void truncatedResponsesAreRetriedOverTcp() throws Exception {
+        Set<String> results = addresses(resolve("big.example.com", RecordType.A));
+        assertEquals(20, results.size());
+        assertTrue(results.contains("10.0.1.20"));
+        FakeDnsServer leaf = hierarchy.getServer("127.0.0.4");
+        assertEquals(1, leaf.getTcpQueryCount());
+        assertEquals(1, transport.getTruncatedCount());
+    }
+
+    @Test
+    public void tcpQueriesArePipelinedOnOneConnection() throws Exception {
+        FakeDnsServer leaf = hierarchy.getServer("127.0.0.4");
+        resolve("ns1.example.com", RecordType.A);
+        // Every response of the leaf goes over TCP, and arrives in random order
+        leaf.truncate(1).latency(1, 50);
+        List<CompletableFuture<Set<ResourceRecord>>> lookups = new ArrayList<>();
+        for (String name : new String[] { "www.example.com", "mail.example.com", "big.example.com" })
+            for (RecordType type : new RecordType[] { RecordType.A, RecordType.AAAA })
+                lookups.add(resolver.resolve(new DNSNode(name, type)));
+        for (CompletableFuture<Set<ResourceRecord>> lookup : lookups)
+            lookup.get(30, TimeUnit.SECONDS);
+        assertEquals(Set.of("10.0.0.1"), addresses(lookups.get(0).get()));
+        assertEquals(Set.of("10.0.0.2"), addresses(lookups.get(2).get()));
+        assertEquals(20, lookups.get(4).get().size());
+        assertEquals(6, leaf.getTcpQueryCount());
+        assertEquals(1, leaf.getTcpConnectionCount());
+        assertEquals(1, transport.getTcpConnectionCount());
+    }
+
+    @Test
+    public void connectionClosedByServerIsReopened() throws Exception {
+        FakeDnsServer leaf = hierarchy.getServer("127.0.0.4");
+        resolve("ns1.example.com", RecordType.A);
+        leaf.truncate(1);
+        assertEquals(Set.of("10.0.0.1"), addresses(resolve("www.example.com", RecordType.A)));
+        leaf.closeTcpConnections();
+        assertEquals(Set.of("10.0.0.2"), addresses(resolve("mail.example.com", RecordType.A)));
+        assertEquals(2, leaf.getTcpConnectionCount());
+    }
+
+    private ByteBuffer query(FakeDnsServer server, String name) throws Exception {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(5000);
+            byte[] query = encodeQuery(name);
+            socket.send(new DatagramPacket(query, query.length, server.getAddress(), hierarchy.getPort()));
+            DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+            socket.receive(packet);
+            return ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+        }
+    }
+
+    /** Encodes a query for the A records of a name, with ID 1. */
+    private static byte[] encodeQuery(String name) {
+        ByteBuffer query = ByteBuffer.allocate(512);
+        query.putShort((short) 1).putShort((short) 0).putShort((short) 1).putShort((short) 0)
+                .putShort((short) 0).putShort((short) 0);
+        for (String label : name.split("\\."))
+            query.put((byte) label.length()).put(label.getBytes(StandardCharsets.US_ASCII));
+        query.put((byte) 0).putShort((short) 1).putShort((short) 1);
+        return Arrays.copyOf(query.array(), query.position());
+    }
+
+    private Set<ResourceRecord> resolve(String hostName, RecordType type) throws Exception {
+        return resolver.resolve(new DNSNode(hostName, type)).get(30, TimeUnit.SECONDS);
+    }
+
+    private static Set<String> addresses(Set<ResourceRecord> records) {
+        Set<String> addresses = new HashSet<>();
+        for (ResourceRecord record : records)
+            addresses.add(record.getTextResult());
+        return addresses;
+    }
+}
@@ -0,0 +1,489 @@
+package test;
+
+import ca.ubc.dnslookup.RecordType;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal authoritative DNS server listening on a loopback address, used to test the resolver
+ * without the network. The server answers from the records and delegations it is given:
+ * queries under a delegated zone get a referral (with glue when known), queries for a name it
+ * holds get an authoritative answer, and any other name gets NXDOMAIN. Negative answers carry
+ * the SOA record of the enclosing zone, if one was given.
+ *
+ * Faults can be injected: latency before each response, loss of a fraction of the queries,
+ * and truncation (TC bit set, no records) of a fraction of the responses. Responses that do
+ * not fit in 512 bytes are always truncated, as by a real server. Faults are decided per
+ * packet, from a hash of the seed, the server address, the question and the number of times
+ * the server has received that question: a packet's fate does not depend on the order in
+ * which the queries of concurrent lookups arrive, so a run with the same seed is repeatable.
+ *
+ * The server also answers over TCP on the same port, never truncating, for clients retrying
+ * truncated queries. Several queries can be pipelined on a connection; with latency, their
+ * responses are sent in the order their delays end, not the order of the queries.
+ */
+public class FakeDnsServer implements Closeable {
+
+    private final DatagramSocket socket;
+    private final Thread thread;
+    private final ServerSocket tcpSocket;
+    private final Set<Socket> tcpConnections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger tcpConnectionCount = new AtomicInteger();
+    private final AtomicInteger tcpQueryCount = new AtomicInteger();
+    private final Map<String, List<Record>> records = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> delegations = new ConcurrentHashMap<>();
+    private final Map<String, Record> soaRecords = new ConcurrentHashMap<>();
+    private final Map<String, Integer> failures = new ConcurrentHashMap<>();
+    private final AtomicInteger queryCount = new AtomicInteger();
+    private final AtomicInteger dropCount = new AtomicInteger();
+    private final AtomicInteger truncatedCount = new AtomicInteger();
+    /** Number of times each question (name and type) was received. */
+    private final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+
+    private static final int MAX_UDP_RESPONSE = 512;
+    private static final int MAX_TCP_RESPONSE = 65535;
+    private static final int LOSS = 1;
+    private static final int TRUNCATION = 2;
+    private static final int LATENCY = 3;
+    private static final ScheduledExecutorService delayedResponses = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "fake-dns-latency");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Fault injection
+    private volatile long seed;
+    private volatile long minLatencyMillis;
+    private volatile long maxLatencyMillis;
+    private volatile double lossRate;
+    private volatile double truncationRate;
+
+    public FakeDnsServer(InetAddress address, int port) throws IOException {
+        socket = new DatagramSocket(null);
+        socket.setReuseAddress(true);
+        socket.setReceiveBufferSize(4 << 20);
+        socket.bind(new InetSocketAddress(address, port));
+        try {
+            tcpSocket = new ServerSocket();
+            tcpSocket.setReuseAddress(true);
+            tcpSocket.bind(new InetSocketAddress(address, port));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        thread = new Thread(this::serve, "fake-dns-" + address.getHostAddress());
+        thread.setDaemon(true);
+        thread.start();
+        Thread acceptor = new Thread(this::acceptConnections, "fake-dns-tcp-" + address.getHostAddress());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /** Returns a port that is free for both UDP and TCP on the loopback interface. */
+    public static int findFreePort() throws IOException {
+        while (true) {
+            try (DatagramSocket probe = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+                ServerSocket tcpProbe;
+                try {
+                    tcpProbe = new ServerSocket(probe.getLocalPort(), 1, InetAddress.getLoopbackAddress());
+                } catch (IOException e) {
+                    continue; // Taken for TCP, try another one
+                }
+                tcpProbe.close();
+                return probe.getLocalPort();
+            }
+        }
+    }
+
+    public InetAddress getAddress() {
+        return socket.getLocalAddress();
+    }
+
+    public int getQueryCount() {
+        return queryCount.get();
+    }
+
+    /** Adds a record. The data is an address for A and AAAA records, or a name otherwise. */
+    public FakeDnsServer addRecord(String name, RecordType type, int ttl, String data) {
+        records.computeIfAbsent(name.toLowerCase(), k -> new ArrayList<>()).add(new Record(name, type, ttl, data));
+        return this;
+    }
+
+    /** Delegates a zone to a name server, adding its glue address if one is given. */
+    public FakeDnsServer delegate(String zone, String nameserver, String glueAddress) {
+        delegations.computeIfAbsent(zone.toLowerCase(), k -> new ArrayList<>()).add(nameserver);
+        if (glueAddress != null)
+            addRecord(nameserver, RecordType.A, 3600, glueAddress);
+        return this;
+    }
+
+    /** Adds the SOA record of a zone, returned with negative answers for names in the zone. */
+    public FakeDnsServer soa(String zone, int ttl, int minimum) {
+        soaRecords.put(zone.toLowerCase(), new Record(zone, RecordType.SOA, ttl, "ns1." + zone, minimum));
+        return this;
+    }
+
+    /** Makes the server answer any query for a name with an error code, e.g. 2 (SERVFAIL). */
+    public FakeDnsServer fail(String name, int rcode) {
+        failures.put(name.toLowerCase(), rcode);
+        return this;
+    }
+
+    /** Makes the server ignore its next queries, as if they were lost. */
+    public FakeDnsServer drop(int queries) {
+        dropCount.set(queries);
+        return this;
+    }
+
+    /** Delays every response by a time drawn uniformly between two bounds. */
+    public FakeDnsServer latency(long minMillis, long maxMillis) {
+        if (minMillis < 0 || maxMillis < minMillis)
+            throw new IllegalArgumentException("Invalid latency bounds");
+        minLatencyMillis = minMillis;
+        maxLatencyMillis = maxMillis;
+        return this;
+    }
+
+    /** Makes the server ignore a fraction of the queries, chosen by the seed, as if they were lost. */
+    public FakeDnsServer loss(double rate) {
+        lossRate = rate;
+        return this;
+    }
+
+    /** Makes the server truncate a fraction of the responses, chosen by the seed. */
+    public FakeDnsServer truncate(double rate) {
+        truncationRate = rate;
+        return this;
+    }
+
+    /** Sets the seed of the faults. */
+    public FakeDnsServer seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /** Returns the number of truncated responses sent. */
+    public int getTruncatedCount() {
+        return truncatedCount.get();
+    }
+
+    /** Returns the number of TCP connections accepted. */
+    public int getTcpConnectionCount() {
+        return tcpConnectionCount.get();
+    }
+
+    /** Returns the number of queries received over TCP. */
+    public int getTcpQueryCount() {
+        return tcpQueryCount.get();
+    }
+
+    /** Closes the TCP connections accepted so far, as a server does with idle connections. */
+    public void closeTcpConnections() {
+        for (Socket connection : tcpConnections)
+            closeQuietly(connection);
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+        closeQuietly(tcpSocket);
+        closeTcpConnections();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void serve() {
+        byte[] buffer = new byte[512];
+        while (!socket.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                queryCount.incrementAndGet();
+                ByteBuffer query = ByteBuffer.wrap(buffer, 0, packet.getLength());
+                String question = question(query);
+                int attempt = attempts.computeIfAbsent(question, k -> new AtomicInteger()).incrementAndGet();
+                if (dropCount.getAndUpdate(n -> Math.max(0, n - 1)) > 0 || fault(LOSS, question, attempt) < lossRate)
+                    continue;
+                byte[] response = answer(query, fault(TRUNCATION, question, attempt) < truncationRate,
+                        MAX_UDP_RESPONSE);
+                DatagramPacket reply = new DatagramPacket(response, response.length, packet.getSocketAddress());
+                long latency = latency(question, attempt);
+                if (latency == 0)
+                    socket.send(reply);
+                else
+                    delayedResponses.schedule(() -> sendQuietly(reply), latency, TimeUnit.MILLISECONDS);
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void acceptConnections() {
+        while (!tcpSocket.isClosed()) {
+            try {
+                Socket connection = tcpSocket.accept();
+                tcpConnectionCount.incrementAndGet();
+                tcpConnections.add(connection);
+                Thread reader = new Thread(() -> serve(connection), "fake-dns-tcp-connection");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    /** Answers the queries of a TCP connection, each preceded by its length on two bytes,
+     * until the client closes it. */
+    private void serve(Socket connection) {
+        try (DataInputStream in = new DataInputStream(connection.getInputStream())) {
+            DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+            while (true) {
+                byte[] query = new byte[in.readUnsignedShort()];
+                in.readFully(query);
+                tcpQueryCount.incrementAndGet();
+                String question = question(ByteBuffer.wrap(query));
+                int attempt = attempts.computeIfAbsent(question, k -> new AtomicInteger()).incrementAndGet();
+                byte[] response = answer(ByteBuffer.wrap(query), false, MAX_TCP_RESPONSE);
+                long latency = latency(question, attempt);
+                if (latency == 0)
+                    writeQuietly(out, response);
+                else
+                    delayedResponses.schedule(() -> writeQuietly(out, response), latency, TimeUnit.MILLISECONDS);
+            }
+        } catch (IOException e) {
+            // Closed by either side
+        } finally {
+            tcpConnections.remove(connection);
+            closeQuietly(connection);
+        }
+    }
+
+    private static void writeQuietly(DataOutputStream out, byte[] response) {
+        synchronized (out) {
+            try {
+                out.writeShort(response.length);
+                out.write(response);
+                out.flush();
+            } catch (IOException e) {
+                // Closed while the response was delayed
+            }
+        }
+    }
+
+    private long latency(String question, int attempt) {
+        return minLatencyMillis + (long) (fault(LATENCY, question, attempt) * (maxLatencyMillis - minLatencyMillis + 1));
+    }
+
+    /** Returns the name and type of the question of a query. */
+    private static String question(ByteBuffer query) {
+        ByteBuffer question = query.duplicate().position(12);
+        return readName(question).toLowerCase() + "/" + (question.getShort() & 0xFFFF);
+    }
+
+    /** Returns a number in [0, 1) that only depends on the seed, the address of the server, the
+     * kind of fault, the question and how many times it was received.
+     */
+    private double fault(int kind, String question, int attempt) {
+        long hash = mix(seed + kind);
+        hash = mix(hash ^ getAddress().hashCode());
+        hash = mix(hash ^ question.hashCode());
+        hash = mix(hash ^ attempt);
+        return (hash >>> 11) * 0x1.0p-53;
+    }
+
+    /** The SplitMix64 finalizer. */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private void sendQuietly(DatagramPacket reply) {
+        try {
+            socket.send(reply);
+        } catch (IOException e) {
+            // Closed while the response was delayed
+        }
+    }
+
+    private byte[] answer(ByteBuffer query, boolean truncate, int maxLength) {
+        int id = query.getShort(0) & 0xFFFF;
+        query.position(12);
+        String name = readName(query);
+        RecordType type = RecordType.getByCode(query.getShort() & 0xFFFF);
+
+        List<Record> answers = new ArrayList<>();
+        List<Record> authority = new ArrayList<>();
+        List<Record> additional = new ArrayList<>();
+        boolean authoritative = true;
+        int rcode = 0;
+
+        String zone = findDelegation(name);
+        List<Record> known = records.getOrDefault(name.toLowerCase(), Collections.emptyList());
+        if (failures.containsKey(name.toLowerCase())) {
+            rcode = failures.get(name.toLowerCase());
+        } else if (zone != null) {
+            authoritative = false;
+            for (String nameserver : delegations.get(zone)) {
+                authority.add(new Record(zone, RecordType.NS, 3600, nameserver));
+                for (Record glue : records.getOrDefault(nameserver.toLowerCase(), Collections.emptyList()))
+                    if (glue.type == RecordType.A)
+                        additional.add(glue);
+            }
+        } else if (known.isEmpty()) {
+            rcode = 3;
+        } else {
+            for (Record record : known)
+                if (record.type == type || record.type == RecordType.CNAME)
+                    answers.add(record);
+        }
+        if (authoritative && rcode != 2 && answers.isEmpty()) {
+            Record soa = findSoa(name);
+            if (soa != null)
+                authority.add(soa);
+        }
+
+        ByteBuffer response = ByteBuffer.allocate(65535);
+        int flags = 0x8000 | (authoritative ? 0x0400 : 0) | rcode;
+        response.putShort((short) id);
+        response.putShort((short) flags);
+        response.putShort((short) 1);
+        response.putShort((short) answers.size());
+        response.putShort((short) authority.size());
+        response.putShort((short) additional.size());
+        writeName(response, name);
+        response.putShort((short) type.getCode());
+        response.putShort((short) 1);
+        int questionEnd = response.position();
+        for (List<Record> section : List.of(answers, authority, additional))
+            for (Record record : section)
+                record.write(response);
+        if (truncate || response.position() > maxLength) {
+            // Like most servers, send the question only, so the client retries over TCP
+            truncatedCount.incrementAndGet();
+            response.putShort(2, (short) (flags | 0x0200));
+            response.putShort(6, (short) 0).putShort(8, (short) 0).putShort(10, (short) 0);
+            response.position(questionEnd);
+        }
+        return Arrays.copyOf(response.array(), response.position());
+    }
+
+    /** Returns the most specific delegated zone containing a name, or null. */
+    private String findDelegation(String name) {
+        String candidate = name.toLowerCase();
+        while (true) {
+            if (delegations.containsKey(candidate))
+                return candidate;
+            int dot = candidate.indexOf('.');
+            if (dot < 0)
+                return null;
+            candidate = candidate.substring(dot + 1);
+        }
+    }
+
+    /** Returns the SOA record of the most specific zone containing a name, or null. */
+    private Record findSoa(String name) {
+        String candidate = name.toLowerCase();
+        while (!soaRecords.containsKey(candidate)) {
+            if (candidate.isEmpty())
+                return null;
+            int dot = candidate.indexOf('.');
+            candidate = dot < 0 ? "" : candidate.substring(dot + 1);
+        }
+        return soaRecords.get(candidate);
+    }
+
+    private static String readName(ByteBuffer buffer) {
+        StringBuilder name = new StringBuilder();
+        int length;
+        while ((length = buffer.get() & 0xFF) != 0) {
+            if (name.length() > 0)
+                name.append('.');
+            for (int i = 0; i < length; i++)
+                name.append((char) buffer.get());
+        }
+        return name.toString();
+    }
+
+    private static void writeName(ByteBuffer buffer, String name) {
+        for (String label : name.split("\\.")) {
+            if (label.isEmpty())
+                continue;
+            buffer.put((byte) label.length());
+            buffer.put(label.getBytes(StandardCharsets.US_ASCII));
+        }
+        buffer.put((byte) 0);
+    }
+
+    private static class Record {
+        final String name;
+        final RecordType type;
+        final int ttl;
+        final String data;
+        final int minimum;
+
+        Record(String name, RecordType type, int ttl, String data) {
+            this(name, type, ttl, data, 0);
+        }
+
+        Record(String name, RecordType type, int ttl, String data, int minimum) {
+            this.name = name;
+            this.type = type;
+            this.ttl = ttl;
+            this.data = data;
+            this.minimum = minimum;
+        }
+
+        void write(ByteBuffer buffer) {
+            writeName(buffer, name);
+            buffer.putShort((short) type.getCode());
+            buffer.putShort((short) 1);
+            buffer.putInt(ttl);
+            int lengthIndex = buffer.position();
+            buffer.putShort((short) 0);
+            if (type == RecordType.A || type == RecordType.AAAA) {
+                try {
+                    buffer.put(InetAddress.getByName(data).getAddress());
+                } catch (IOException e) {
+                    throw new IllegalArgumentException(e);
+                }
+            } else if (type == RecordType.SOA) {
+                writeName(buffer, data);
+                writeName(buffer, "hostmaster." + name);
+                buffer.putInt(1);       // serial
+                buffer.putInt(3600);    // refresh
+                buffer.putInt(600);     // retry
+                buffer.putInt(86400);   // expire
+                buffer.putInt(minimum);
+            } else {
+                if (type == RecordType.MX)
+                    buffer.putShort((short) 10);
+                writeName(buffer, data);
+            }
+            buffer.putShort(lengthIndex, (short) (buffer.position() - lengthIndex - 2));
+        }
+    }
+}
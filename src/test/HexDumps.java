@@ -106,6 +106,16 @@ public class HexDumps {
 
     public static final Set<ResourceRecord> NO_SUCH_NAME_EXPECTED_RESPONSE = new HashSet<>();
 
+    /** www.example.com A, answered with a CNAME to host.example.com, which has no A record. */
+    public static final String CNAME_NO_DATA_RAW_RESPONSE =
+            "0001 8400 0001 0001 0001 0000 0377 7777\n" +
+            "0765 7861 6d70 6c65 0363 6f6d 0000 0100\n" +
+            "01c0 0c00 0500 0100 0001 2c00 0704 686f\n" +
+            "7374 c010 c010 0006 0001 0000 0e10 0027\n" +
+            "036e 7331 c010 0a68 6f73 746d 6173 7465\n" +
+            "72c0 1000 0000 0100 001c 2000 000e 1000\n" +
+            "1275 0000 0001 2c\n";
+
     public static final String GOOGLE_MX_RAW_RESPONSE =
             "00 0a 81 80 00 01 00 05 00 00 00 00 06 67 6f 6f\n" +
             "67 6c 65 03 63 6f 6d 00 00 0f 00 01 c0 0c 00 0f\n" +
@@ -0,0 +1,86 @@
+package test;
+
+import ca.ubc.dnslookup.InfrastructureCache;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class InfrastructureCacheTests {
+
+    private static final int SELECTIONS = 2000;
+
+    InfrastructureCache servers;
+    InetAddress fast;
+    InetAddress slow;
+    InetAddress unknown;
+
+    @Before
+    public void init() throws Exception {
+        servers = new InfrastructureCache();
+        fast = InetAddress.getByName("192.0.2.1");
+        slow = InetAddress.getByName("192.0.2.2");
+        unknown = InetAddress.getByName("192.0.2.3");
+    }
+
+    @Test
+    public void rttIsSmoothed() {
+        assertEquals(InfrastructureCache.UNKNOWN_SERVER_RTT_MICROS, servers.getSmoothedRttMicros(fast));
+        servers.recordResponse(fast, 80_000_000);
+        assertEquals(80_000, servers.getSmoothedRttMicros(fast));
+        assertEquals(40_000, servers.getRttVariationMicros(fast));
+
+        servers.recordResponse(fast, 8_000_000);
+        assertEquals(71_000, servers.getSmoothedRttMicros(fast));
+        assertEquals(48_000, servers.getRttVariationMicros(fast));
+    }
+
+    @Test
+    public void fastestServerIsPreferredButOthersAreExplored() {
+        servers.recordResponse(fast, 5_000_000);
+        servers.recordResponse(slow, 50_000_000);
+        int fastCount = 0, slowCount = 0, unknownCount = 0;
+        for (int i = 0; i < SELECTIONS; i++) {
+            InetAddress selected = servers.select(List.of(slow, unknown, fast));
+            if (selected.equals(fast)) fastCount++;
+            else if (selected.equals(slow)) slowCount++;
+            else unknownCount++;
+        }
+        assertTrue(fastCount > SELECTIONS * 0.9);
+        assertTrue(slowCount > 0);
+        assertTrue(unknownCount > 0);
+    }
+
+    @Test
+    public void timedOutServerIsHeldDown() {
+        servers.recordResponse(fast, 5_000_000);
+        servers.recordResponse(slow, 50_000_000);
+        servers.recordTimeout(fast);
+        assertTrue(servers.isHeldDown(fast));
+        for (int i = 0; i < SELECTIONS; i++)
+            assertEquals(slow, servers.select(List.of(fast, slow)));
+
+        servers.recordResponse(fast, 5_000_000);
+        assertFalse(servers.isHeldDown(fast));
+    }
+
+    @Test
+    public void retransmissionTimeoutFollowsRtt() {
+        assertEquals(1128, servers.getRetransmissionTimeoutMillis(unknown));
+        servers.recordResponse(fast, 8_000_000);
+        assertEquals(InfrastructureCache.MIN_RTO_MILLIS, servers.getRetransmissionTimeoutMillis(fast));
+        servers.recordResponse(slow, 400_000_000);
+        assertEquals(1200, servers.getRetransmissionTimeoutMillis(slow));
+    }
+
+    @Test
+    public void someServerIsSelectedWhenAllAreHeldDown() {
+        servers.recordTimeout(fast);
+        servers.recordTimeout(slow);
+        InetAddress selected = servers.select(List.of(fast, slow));
+        assertTrue(selected.equals(fast) || selected.equals(slow));
+    }
+}
@@ -0,0 +1,133 @@
+package test;
+
+import ca.ubc.dnslookup.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class PrefetcherTests {
+
+    FakeDnsServer root;
+    FakeDnsServer leaf;
+    DNSCache cache;
+    DNSTransport transport;
+    ExecutorService executor;
+    DNSResolver resolver;
+
+    @Before
+    public void init() throws Exception {
+        int port = FakeDnsServer.findFreePort();
+        root = new FakeDnsServer(InetAddress.getByName("127.0.0.1"), port)
+                .delegate("example.com", "ns1.example.com", "127.0.0.2");
+        // Short TTLs, so entries reach the last half of their TTL after one second
+        leaf = new FakeDnsServer(InetAddress.getByName("127.0.0.2"), port)
+                .addRecord("www.example.com", RecordType.A, 2, "10.0.0.1")
+                .addRecord("mail.example.com", RecordType.A, 2, "10.0.0.2");
+
+        cache = new DNSCache();
+        transport = new DNSTransport(port);
+        executor = Executors.newFixedThreadPool(2);
+        resolver = new DNSResolver(cache, transport, root.getAddress(), executor);
+    }
+
+    @After
+    public void cleanUp() {
+        resolver.close();
+        executor.shutdownNow();
+        transport.close();
+        root.close();
+        leaf.close();
+    }
+
+    @Test
+    public void popularEntryIsRefreshedBeforeItExpires() throws Exception {
+        Prefetcher prefetcher = new Prefetcher(resolver, 0.5, 3, 10);
+        prefetcher.start();
+        DNSNode www = new DNSNode("www.example.com", RecordType.A);
+        long start = System.nanoTime();
+        resolve(www);
+        for (int i = 0; i < 3; i++)
+            assertFalse(cache.getCachedResults(www).isEmpty());
+        assertEquals(0, prefetcher.getPrefetchCount());
+
+        // In the last half of the TTL, a read starts the refresh
+        sleepUntil(start + TimeUnit.MILLISECONDS.toNanos(1200));
+        assertFalse(cache.getCachedResults(www).isEmpty());
+        assertEquals(1, prefetcher.getPrefetchCount());
+        waitFor(() -> cache.getPrefetchedCount() == 1);
+        assertEquals(2, leaf.getQueryCount());
+
+        // After the original TTL, the name is still cached
+        sleepUntil(start + TimeUnit.MILLISECONDS.toNanos(2300));
+        assertEquals(2, leaf.getQueryCount());
+        assertEquals(Set.of("10.0.0.1"), addresses(cache.getCachedResults(www)));
+        assertEquals(1, cache.getPrefetchHitCount());
+        assertEquals(1.0, prefetcher.getHitRatio(), 0);
+    }
+
+    @Test
+    public void prefetchesAreRateLimited() throws Exception {
+        Prefetcher prefetcher = new Prefetcher(resolver, 0.5, 1, 1);
+        prefetcher.start();
+        DNSNode www = new DNSNode("www.example.com", RecordType.A);
+        DNSNode mail = new DNSNode("mail.example.com", RecordType.A);
+        long start = System.nanoTime();
+        resolve(www);
+        resolve(mail);
+
+        sleepUntil(start + TimeUnit.MILLISECONDS.toNanos(1200));
+        cache.getCachedResults(www);
+        cache.getCachedResults(mail);
+        assertEquals(1, prefetcher.getPrefetchCount());
+        assertEquals(1, prefetcher.getRateLimitedCount());
+    }
+
+    @Test
+    public void unpopularEntryIsNotRefreshed() throws Exception {
+        Prefetcher prefetcher = new Prefetcher(resolver, 0.5, 10, 10);
+        prefetcher.start();
+        DNSNode www = new DNSNode("www.example.com", RecordType.A);
+        long start = System.nanoTime();
+        resolve(www);
+
+        sleepUntil(start + TimeUnit.MILLISECONDS.toNanos(1200));
+        assertFalse(cache.getCachedResults(www).isEmpty());
+        assertEquals(0, prefetcher.getPrefetchCount());
+        assertEquals(1, leaf.getQueryCount());
+    }
+
+    private void resolve(DNSNode node) throws Exception {
+        assertFalse(resolver.resolve(node).get(30, TimeUnit.SECONDS).isEmpty());
+    }
+
+    private static void sleepUntil(long deadlineNanos) throws InterruptedException {
+        long remaining = deadlineNanos - System.nanoTime();
+        if (remaining > 0)
+            TimeUnit.NANOSECONDS.sleep(remaining);
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out waiting", System.nanoTime() - deadline < 0);
+            Thread.sleep(10);
+        }
+    }
+
+    private static Set<String> addresses(Set<ResourceRecord> records) {
+        Set<String> addresses = new HashSet<>();
+        for (ResourceRecord record : records)
+            addresses.add(record.getTextResult());
+        return addresses;
+    }
+}
@@ -0,0 +1,84 @@
+package test;
+
+import ca.ubc.dnslookup.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TraceLogTests {
+
+    FakeDnsHierarchy hierarchy;
+    DNSTransport transport;
+    ExecutorService executor;
+    Path file;
+
+    @Before
+    public void init() throws Exception {
+        hierarchy = FakeDnsHierarchy.load(FakeDnsHierarchy.DEFAULT_FIXTURE);
+        transport = new DNSTransport(hierarchy.getPort());
+        executor = Executors.newFixedThreadPool(2);
+        file = Files.createTempFile("trace", ".log");
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        DNSQueryHandler.setTrace(null);
+        executor.shutdownNow();
+        transport.close();
+        hierarchy.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void textTraceKeepsLayout() throws Exception {
+        List<String> lines = trace(TraceLog.Format.TEXT);
+        // Root, com and example.com servers
+        assertEquals(3, lines.stream().filter(line -> line.startsWith("Query ID")).count());
+        assertTrue(lines.get(2).matches("Query ID     \\d+ www\\.example\\.com  A --> 127\\.0\\.0\\.1"));
+        assertTrue(lines.get(3).matches("Response ID: \\d+ Authoritative = false"));
+        assertEquals("  Answers(0)", lines.get(4));
+        assertEquals("  Nameservers(1)", lines.get(5));
+        assertTrue(lines.get(6).matches("       com {28}\\d+ +NS   a\\.gtld-servers\\.test"));
+        assertEquals("  Additional Information(1)", lines.get(7));
+        assertTrue(lines.contains("       www.example.com                300        A    10.0.0.1"));
+    }
+
+    @Test
+    public void binaryTraceConvertsToText() throws Exception {
+        List<String> text = trace(TraceLog.Format.TEXT);
+        List<String> converted = trace(TraceLog.Format.BINARY);
+        assertEquals(text.size(), converted.size());
+        for (int i = 0; i < text.size(); i++)
+            assertEquals(text.get(i).replaceAll("\\d+ ", ""), converted.get(i).replaceAll("\\d+ ", ""));
+    }
+
+    /** Looks up www.example.com from the root, with a new cache, and returns its trace as text. */
+    private List<String> trace(TraceLog.Format format) throws Exception {
+        try (DNSResolver resolver = new DNSResolver(new DNSCache(), transport, hierarchy.getRootAddress(), executor)) {
+            DNSQueryHandler.setTrace(TraceLog.open(file, format, TraceLog.DEFAULT_CAPACITY));
+            resolver.resolve(new DNSNode("www.example.com", RecordType.A)).get(30, TimeUnit.SECONDS);
+            DNSQueryHandler.setTrace(null);
+        }
+        if (format == TraceLog.Format.TEXT)
+            return Files.readAllLines(file);
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        try (InputStream in = Files.newInputStream(file)) {
+            TraceLog.convert(in, new PrintStream(text, true, StandardCharsets.UTF_8));
+        }
+        return Arrays.asList(text.toString(StandardCharsets.UTF_8).split("\n"));
+    }
+}